@@ -1,29 +1,102 @@
 // TxtReader.java
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 import javax.swing.*;
 import javax.swing.event.*;
 import javax.swing.tree.*;
+import javax.swing.table.AbstractTableModel;
+import javax.swing.table.TableColumn;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultHighlighter;
+import javax.swing.text.Highlighter;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.font.FontRenderContext;
+import java.awt.font.LineBreakMeasurer;
+import java.awt.font.TextAttribute;
+import java.awt.font.TextLayout;
+import java.awt.geom.Rectangle2D;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.net.URI;
-import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.AttributedString;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.prefs.Preferences;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 // 数据模型类
 class Chapter {
+    public static final int LEVEL_VOLUME = 0;
+    public static final int LEVEL_CHAPTER = 1;
+    
     private String title;
     private int startLine;
+    private int level;
     
     public Chapter(String title, int startLine) {
+        this(title, startLine, LEVEL_CHAPTER);
+    }
+    
+    public Chapter(String title, int startLine, int level) {
         this.title = title;
         this.startLine = startLine;
+        this.level = level;
     }
     
     public String getTitle() { return title; }
     public int getStartLine() { return startLine; }
+    public int getLevel() { return level; }
     
     @Override
     public String toString() {
@@ -58,9 +131,13 @@ class LibraryBook {
     private Date addTime;
     
     public LibraryBook(String name, String filePath) {
+        this(name, filePath, new Date());
+    }
+    
+    public LibraryBook(String name, String filePath, Date addTime) {
         this.name = name;
         this.filePath = filePath;
-        this.addTime = new Date();
+        this.addTime = addTime;
     }
     
     public String getName() { return name; }
@@ -70,161 +147,467 @@ class LibraryBook {
     public void setName(String name) { this.name = name; }
 }
 
-// 简化的表格模型基类
-abstract class SimpleTableModel {
-    protected void fireTableRowsInserted(int firstRow, int lastRow) {
-        // 简化实现
+// 表格模型基类：行放在槽位里，删除的行留下空槽；每个排序列第一次用到时把槽位按该列排好存成int数组，
+// 之后切换排序、过滤和增删改都只处理int数组，只通知受影响的行
+abstract class IndexedTableModel<T> extends AbstractTableModel {
+    private ArrayList<T> slots = new ArrayList<>();
+    // 每个槽位用于过滤的小写文字，输入筛选条件时不用每次都转换
+    private ArrayList<String> filterTexts = new ArrayList<>();
+    private IdentityHashMap<T, Integer> slotOf = new IdentityHashMap<>();
+    // 每列按升序排好的有效槽位，相等时按槽位号排，没有算过的列为null
+    private int[][] orders;
+    private int[] orderSizes;
+    // 当前显示的槽位，已经按排序方向和过滤条件处理好
+    private int[] view = new int[0];
+    private int viewSize;
+    // 筛选时逐段发行增删事件，事件之间的显示内容是view的前splitRow行接着tail从tailFrom开始的部分
+    private int[] tail;
+    private int tailFrom;
+    private int splitRow;
+    private int sortColumn = -1;
+    private boolean descending;
+    private String filter = "";
+    private String[] columnNames;
+    
+    protected IndexedTableModel(String[] columnNames) {
+        this.columnNames = columnNames;
+        orders = new int[columnNames.length][];
+        orderSizes = new int[columnNames.length];
+    }
+    
+    protected abstract Object valueOf(T row, int column);
+    
+    // 按column比较两行，用于排序
+    protected abstract int compare(T a, T b, int column);
+    
+    // 参与过滤的文字
+    protected abstract String filterText(T row);
+    
+    public int getRowCount() { return viewSize; }
+    public int getColumnCount() { return columnNames.length; }
+    
+    // 排序的列后面带上方向箭头
+    public String getColumnName(int column) {
+        if (column != sortColumn) return columnNames[column];
+        return columnNames[column] + (descending ? " \u25bc" : " \u25b2");
     }
     
-    protected void fireTableRowsDeleted(int firstRow, int lastRow) {
-        // 简化实现
+    public Object getValueAt(int row, int column) {
+        return valueOf(getRow(row), column);
     }
     
-    public abstract int getRowCount();
-    public abstract int getColumnCount();
-    public abstract String getColumnName(int column);
-    public abstract Object getValueAt(int row, int column);
-}
-
-// 书签表格模型
-class BookmarkTableModel extends SimpleTableModel {
-    private ArrayList<Bookmark> bookmarks;
-    private String[] columnNames = {"书签名称", "位置", "创建时间"};
+    public T getRow(int row) {
+        if (tail != null && row >= splitRow) {
+            return slots.get(tail[row - splitRow + tailFrom]);
+        }
+        return slots.get(view[row]);
+    }
     
-    public BookmarkTableModel() {
-        bookmarks = new ArrayList<>();
+    // 整体替换所有行
+    public void setRows(Collection<T> rows) {
+        slots = new ArrayList<>(rows);
+        filterTexts = new ArrayList<>(slots.size());
+        slotOf.clear();
+        for (int i = 0; i < slots.size(); i++) {
+            slotOf.put(slots.get(i), i);
+            filterTexts.add(filterText(slots.get(i)).toLowerCase(Locale.ROOT));
+        }
+        Arrays.fill(orders, null);
+        rebuildView();
     }
     
-    public void addBookmark(Bookmark bookmark) {
-        bookmarks.add(bookmark);
-        fireTableRowsInserted(bookmarks.size() - 1, bookmarks.size() - 1);
+    // 点同一列时切换升序和降序
+    public void sortBy(int column) {
+        descending = column == sortColumn && !descending;
+        sortColumn = column;
+        rebuildView();
     }
     
-    public void removeBookmark(int row) {
-        bookmarks.remove(row);
-        fireTableRowsDeleted(row, row);
+    // 新条件包含旧条件时只在当前显示的行里筛，发出被筛掉的各段行的删除事件；
+    // 旧条件包含新条件时发出多出来的各段行的插入事件，表格的选择不会被清掉
+    public void setFilter(String text) {
+        String lower = text.trim().toLowerCase(Locale.ROOT);
+        if (lower.equals(filter)) return;
+        boolean narrowing = lower.contains(filter);
+        boolean widening = filter.contains(lower);
+        filter = lower;
+        if (narrowing) {
+            narrowView();
+        } else if (widening) {
+            widenView();
+        } else {
+            rebuildView();
+        }
     }
     
-    public Bookmark getBookmarkAt(int row) {
-        return bookmarks.get(row);
+    // 从后往前删，前面的行号在事件之间不变
+    private void narrowView() {
+        int oldSize = viewSize;
+        int[] old = view;
+        int[] kept = new int[Math.max(16, oldSize)];
+        int[] keptBefore = new int[oldSize + 1];
+        int keptCount = 0;
+        for (int i = 0; i < oldSize; i++) {
+            keptBefore[i] = keptCount;
+            if (matches(old[i])) {
+                kept[keptCount++] = old[i];
+            }
+        }
+        keptBefore[oldSize] = keptCount;
+        tail = kept;
+        int end = oldSize;
+        while (end > 0) {
+            if (matches(old[end - 1])) {
+                end--;
+                continue;
+            }
+            int start = end - 1;
+            while (start > 0 && !matches(old[start - 1])) start--;
+            splitRow = start;
+            tailFrom = keptBefore[start];
+            viewSize = start + keptCount - tailFrom;
+            fireTableRowsDeleted(start, end - 1);
+            end = start;
+        }
+        tail = null;
+        view = kept;
+        viewSize = keptCount;
     }
     
-    public void clear() {
-        int size = bookmarks.size();
-        bookmarks.clear();
-        fireTableRowsDeleted(0, size - 1);
+    // 重新算出显示的行，旧的显示是新的按顺序的一部分；从前往后插，前面的行号在事件之间不变
+    private void widenView() {
+        int[] old = view;
+        int oldSize = viewSize;
+        int[] next = new int[Math.max(16, slots.size())];
+        int nextSize = fillView(next);
+        int matched = 0;
+        for (int i = 0; i < nextSize && matched < oldSize; i++) {
+            if (next[i] == old[matched]) matched++;
+        }
+        if (matched < oldSize) {
+            rebuildView();
+            return;
+        }
+        view = next;
+        tail = old;
+        int oldFrom = 0;
+        int row = 0;
+        while (row < nextSize) {
+            if (oldFrom < oldSize && next[row] == old[oldFrom]) {
+                oldFrom++;
+                row++;
+                continue;
+            }
+            int start = row;
+            while (row < nextSize && (oldFrom >= oldSize || next[row] != old[oldFrom])) row++;
+            splitRow = row;
+            tailFrom = oldFrom;
+            viewSize = row + oldSize - oldFrom;
+            fireTableRowsInserted(start, row - 1);
+        }
+        tail = null;
+        viewSize = nextSize;
     }
     
-    public int getRowCount() {
-        return bookmarks.size();
+    public void addRow(T row) {
+        int slot = slots.size();
+        slots.add(row);
+        filterTexts.add(filterText(row).toLowerCase(Locale.ROOT));
+        slotOf.put(row, slot);
+        for (int column = 0; column < orders.length; column++) {
+            if (orders[column] != null) {
+                insertOrdered(column, slot);
+            }
+        }
+        showSlot(slot);
     }
     
-    public int getColumnCount() {
-        return columnNames.length;
+    public void removeRow(T row) {
+        Integer slot = slotOf.remove(row);
+        if (slot == null) return;
+        hideSlot(slot);
+        for (int column = 0; column < orders.length; column++) {
+            if (orders[column] != null) {
+                removeOrdered(column, slot);
+            }
+        }
+        slots.set(slot, null);
+        filterTexts.set(slot, null);
     }
     
-    public String getColumnName(int column) {
-        return columnNames[column];
+    private boolean matches(int slot) {
+        return filter.isEmpty() || filterTexts.get(slot).contains(filter);
     }
     
-    public Object getValueAt(int row, int column) {
-        Bookmark bookmark = bookmarks.get(row);
-        switch (column) {
-            case 0: return bookmark.getName();
-            case 1: return "第" + (bookmark.getLineNumber() + 1) + "行";
-            case 2: return bookmark.getCreateTime().toString();
-            default: return null;
+    // 行的内容变了：排序位置不变时只重画这一行
+    public void rowChanged(T row) {
+        Integer slot = slotOf.get(row);
+        if (slot == null) return;
+        filterTexts.set(slot, filterText(row).toLowerCase(Locale.ROOT));
+        // 先按旧的位置从排列里取出来，再按新的值插回去
+        int oldRow = indexOf(view, viewSize, slot);
+        for (int column = 0; column < orders.length; column++) {
+            if (orders[column] != null) {
+                int[] order = orders[column];
+                int index = indexOf(order, orderSizes[column], slot);
+                System.arraycopy(order, index + 1, order, index, orderSizes[column] - index - 1);
+                orderSizes[column]--;
+                insertOrdered(column, slot);
+            }
+        }
+        if (oldRow >= 0) {
+            System.arraycopy(view, oldRow + 1, view, oldRow, viewSize - oldRow - 1);
+            viewSize--;
+        }
+        int newRow = matches(slot) ? viewPosition(slot) : -1;
+        if (newRow >= 0) {
+            insertView(newRow, slot);
+        }
+        if (oldRow >= 0 && oldRow == newRow) {
+            fireTableRowsUpdated(oldRow, oldRow);
+            return;
         }
+        if (oldRow >= 0) fireTableRowsDeleted(oldRow, oldRow);
+        if (newRow >= 0) fireTableRowsInserted(newRow, newRow);
     }
-}
-
-// 书库表格模型
-class LibraryTableModel extends SimpleTableModel {
-    private ArrayList<LibraryBook> books;
-    private String[] columnNames = {"书名", "文件路径", "添加时间"};
     
-    public LibraryTableModel() {
-        books = new ArrayList<>();
+    private void rebuildView() {
+        view = new int[Math.max(16, slots.size())];
+        viewSize = fillView(view);
+        fireTableDataChanged();
     }
     
-    public void addBook(LibraryBook book) {
-        books.add(book);
-        fireTableRowsInserted(books.size() - 1, books.size() - 1);
+    // 按排序方向和过滤条件把要显示的槽位依次写进target，返回个数
+    private int fillView(int[] target) {
+        int[] source = sortColumn >= 0 ? order(sortColumn) : null;
+        int count = source != null ? orderSizes[sortColumn] : slots.size();
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            int slot = source == null ? i : source[descending ? count - 1 - i : i];
+            if (slots.get(slot) != null && matches(slot)) {
+                target[size++] = slot;
+            }
+        }
+        return size;
     }
     
-    public void removeBook(int row) {
-        books.remove(row);
-        fireTableRowsDeleted(row, row);
+    private int[] order(int column) {
+        if (orders[column] == null) {
+            int[] order = new int[Math.max(16, slots.size())];
+            int count = 0;
+            for (int slot = 0; slot < slots.size(); slot++) {
+                if (slots.get(slot) != null) {
+                    order[count++] = slot;
+                }
+            }
+            sort(order, new int[count], 0, count, column);
+            orders[column] = order;
+            orderSizes[column] = count;
+        }
+        return orders[column];
     }
     
-    public LibraryBook getBookAt(int row) {
-        return books.get(row);
+    private int compareSlots(int a, int b, int column) {
+        int result = compare(slots.get(a), slots.get(b), column);
+        return result != 0 ? result : Integer.compare(a, b);
+    }
+    
+    // 归并排序，直接排int数组
+    private void sort(int[] order, int[] temp, int from, int to, int column) {
+        if (to - from < 2) return;
+        int mid = (from + to) >>> 1;
+        sort(order, temp, from, mid, column);
+        sort(order, temp, mid, to, column);
+        if (compareSlots(order[mid - 1], order[mid], column) <= 0) return;
+        System.arraycopy(order, from, temp, from, to - from);
+        int left = from;
+        int right = mid;
+        for (int i = from; i < to; i++) {
+            if (right >= to || left < mid && compareSlots(temp[left], temp[right], column) <= 0) {
+                order[i] = temp[left++];
+            } else {
+                order[i] = temp[right++];
+            }
+        }
     }
     
-    public void clear() {
-        int size = books.size();
-        books.clear();
-        fireTableRowsDeleted(0, size - 1);
+    // 在按column排好的数组里找slot应该插入的位置
+    private int search(int[] order, int count, int slot, int column, boolean reversed) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int result = column >= 0 ? compareSlots(order[mid], slot, column) : Integer.compare(order[mid], slot);
+            if (reversed ? result > 0 : result < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
     }
     
-    public int getRowCount() {
-        return books.size();
+    private void insertOrdered(int column, int slot) {
+        int count = orderSizes[column];
+        int index = search(orders[column], count, slot, column, false);
+        orders[column] = insertAt(orders[column], count, index, slot);
+        orderSizes[column] = count + 1;
     }
     
-    public int getColumnCount() {
-        return columnNames.length;
+    private void removeOrdered(int column, int slot) {
+        int[] order = orders[column];
+        int index = search(order, orderSizes[column], slot, column, false);
+        System.arraycopy(order, index + 1, order, index, orderSizes[column] - index - 1);
+        orderSizes[column]--;
     }
     
-    public String getColumnName(int column) {
-        return columnNames[column];
+    private static int[] insertAt(int[] array, int count, int index, int value) {
+        if (count == array.length) {
+            array = Arrays.copyOf(array, count * 2);
+        }
+        System.arraycopy(array, index, array, index + 1, count - index);
+        array[index] = value;
+        return array;
     }
     
-    public Object getValueAt(int row, int column) {
-        LibraryBook book = books.get(row);
+    private static int indexOf(int[] array, int count, int value) {
+        for (int i = 0; i < count; i++) {
+            if (array[i] == value) return i;
+        }
+        return -1;
+    }
+    
+    // 没有排序时按加入的先后显示
+    private int viewPosition(int slot) {
+        return search(view, viewSize, slot, sortColumn, descending);
+    }
+    
+    private void insertView(int row, int slot) {
+        view = insertAt(view, viewSize, row, slot);
+        viewSize++;
+    }
+    
+    private void showSlot(int slot) {
+        if (!matches(slot)) return;
+        int row = viewPosition(slot);
+        insertView(row, slot);
+        fireTableRowsInserted(row, row);
+    }
+    
+    private void hideSlot(int slot) {
+        int row = indexOf(view, viewSize, slot);
+        if (row < 0) return;
+        System.arraycopy(view, row + 1, view, row, viewSize - row - 1);
+        viewSize--;
+        fireTableRowsDeleted(row, row);
+    }
+    
+    // 点表头按该列排序
+    public static void installHeaderSorting(final JTable table, final IndexedTableModel<?> model) {
+        table.getTableHeader().addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                int column = table.columnAtPoint(e.getPoint());
+                if (column < 0) return;
+                model.sortBy(table.convertColumnIndexToModel(column));
+                for (int i = 0; i < table.getColumnCount(); i++) {
+                    TableColumn tableColumn = table.getColumnModel().getColumn(i);
+                    tableColumn.setHeaderValue(model.getColumnName(tableColumn.getModelIndex()));
+                }
+                table.getTableHeader().repaint();
+            }
+        });
+    }
+}
+
+// 书签表格模型，行来自书签存储中这本书的书签
+class BookmarkTableModel extends IndexedTableModel<Bookmark> {
+    private BookmarkStore store;
+    private String bookKey;
+    
+    public BookmarkTableModel(BookmarkStore store, String bookKey) {
+        super(new String[] {"书签名称", "位置", "创建时间"});
+        this.store = store;
+        this.bookKey = bookKey;
+        setRows(store.getAll(bookKey));
+    }
+    
+    public void removeBookmark(int row) {
+        Bookmark bookmark = getRow(row);
+        store.remove(bookKey, bookmark);
+        removeRow(bookmark);
+    }
+    
+    public Bookmark getBookmarkAt(int row) {
+        return getRow(row);
+    }
+    
+    protected Object valueOf(Bookmark bookmark, int column) {
         switch (column) {
-            case 0: return book.getName();
-            case 1: return book.getFilePath();
-            case 2: return book.getAddTime().toString();
+            case 0: return bookmark.getName();
+            case 1: return "第" + (bookmark.getLineNumber() + 1) + "行";
+            case 2: return bookmark.getCreateTime().toString();
             default: return null;
         }
     }
+    
+    protected int compare(Bookmark a, Bookmark b, int column) {
+        switch (column) {
+            case 0: return a.getName().compareTo(b.getName());
+            case 1: return Integer.compare(a.getLineNumber(), b.getLineNumber());
+            default: return a.getCreateTime().compareTo(b.getCreateTime());
+        }
+    }
+    
+    protected String filterText(Bookmark bookmark) {
+        return bookmark.getName();
+    }
 }
 
-// 自定义表格类
-class SimpleTable extends JTable {
-    private SimpleTableModel model;
-    
-    public SimpleTable(SimpleTableModel model) {
-        super();
-        this.model = model;
+// 书库表格模型，按书名和路径过滤
+class LibraryTableModel extends IndexedTableModel<LibraryBook> {
+    public LibraryTableModel() {
+        super(new String[] {"书名", "文件路径", "添加时间"});
     }
     
-    public int getRowCount() {
-        return model.getRowCount();
+    public LibraryBook getBookAt(int row) {
+        return getRow(row);
     }
     
-    public int getColumnCount() {
-        return model.getColumnCount();
+    protected Object valueOf(LibraryBook book, int column) {
+        switch (column) {
+            case 0: return book.getName();
+            case 1: return book.getFilePath();
+            case 2: return book.getAddTime().toString();
+            default: return null;
+        }
     }
     
-    public String getColumnName(int column) {
-        return model.getColumnName(column);
+    protected int compare(LibraryBook a, LibraryBook b, int column) {
+        switch (column) {
+            case 0: return a.getName().compareTo(b.getName());
+            case 1: return a.getFilePath().compareTo(b.getFilePath());
+            default: return a.getAddTime().compareTo(b.getAddTime());
+        }
     }
     
-    public Object getValueAt(int row, int column) {
-        return model.getValueAt(row, column);
+    // 书名和路径之间用换行隔开，过滤条件不会跨两个字段匹配
+    protected String filterText(LibraryBook book) {
+        return book.getName() + '\n' + book.getFilePath();
     }
 }
 
 // 书签管理对话框
 class BookmarkManagerDialog extends JDialog {
-    private SimpleTable bookmarkTable;
+    private JTable bookmarkTable;
     private BookmarkTableModel tableModel;
-    private HashMap<String, Bookmark> bookmarks;
+    private BookmarkStore store;
+    private String bookKey;
     
-    public BookmarkManagerDialog(JFrame parent, HashMap<String, Bookmark> bookmarks) {
+    public BookmarkManagerDialog(JFrame parent, BookmarkStore store, String bookKey) {
         super(parent, "书签管理", true);
-        this.bookmarks = bookmarks;
+        this.store = store;
+        this.bookKey = bookKey;
         initComponents();
         pack();
         setSize(500, 300);
@@ -234,9 +617,10 @@ class BookmarkManagerDialog extends JDialog {
     private void initComponents() {
         setLayout(new BorderLayout());
         
-        tableModel = new BookmarkTableModel();
-        bookmarkTable = new SimpleTable(tableModel);
+        tableModel = new BookmarkTableModel(store, bookKey);
+        bookmarkTable = new JTable(tableModel);
         bookmarkTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        IndexedTableModel.installHeaderSorting(bookmarkTable, tableModel);
         
         JScrollPane scrollPane = new JScrollPane(bookmarkTable);
         add(scrollPane, BorderLayout.CENTER);
@@ -260,22 +644,11 @@ class BookmarkManagerDialog extends JDialog {
         buttonPanel.add(closeButton);
         
         add(buttonPanel, BorderLayout.SOUTH);
-        
-        loadBookmarks();
-    }
-    
-    private void loadBookmarks() {
-        tableModel.clear();
-        for (Bookmark bookmark : bookmarks.values()) {
-            tableModel.addBookmark(bookmark);
-        }
     }
     
     private void deleteBookmark() {
         int selectedRow = bookmarkTable.getSelectedRow();
         if (selectedRow >= 0) {
-            Bookmark bookmark = tableModel.getBookmarkAt(selectedRow);
-            bookmarks.values().remove(bookmark);
             tableModel.removeBookmark(selectedRow);
         }
     }
@@ -283,17 +656,22 @@ class BookmarkManagerDialog extends JDialog {
 
 // 书库管理对话框
 class LibraryManagerDialog extends JDialog {
-    private SimpleTable libraryTable;
+    private JTable libraryTable;
+    private JTextField filterField;
     private LibraryTableModel tableModel;
     private LibraryManager libraryManager;
+    // 监视的文件夹有变化时刷新列表
+    private ChangeListener libraryListener;
     private JButton openButton, renameButton, deleteButton;
+    private JFrame parent;
     
     public LibraryManagerDialog(JFrame parent, LibraryManager libraryManager) {
         super(parent, "书库管理", true);
+        this.parent = parent;
         this.libraryManager = libraryManager;
         initComponents();
         pack();
-        setSize(500, 400);
+        setSize(720, 400);
         setLocationRelativeTo(parent);
     }
     
@@ -301,8 +679,22 @@ class LibraryManagerDialog extends JDialog {
         setLayout(new BorderLayout());
         
         tableModel = new LibraryTableModel();
-        libraryTable = new SimpleTable(tableModel);
+        libraryTable = new JTable(tableModel);
         libraryTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        IndexedTableModel.installHeaderSorting(libraryTable, tableModel);
+        
+        // 输入时按书名和路径筛选
+        JPanel filterPanel = new JPanel(new BorderLayout(5, 0));
+        filterPanel.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
+        filterField = new JTextField();
+        filterField.getDocument().addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) { tableModel.setFilter(filterField.getText()); }
+            public void removeUpdate(DocumentEvent e) { tableModel.setFilter(filterField.getText()); }
+            public void changedUpdate(DocumentEvent e) { tableModel.setFilter(filterField.getText()); }
+        });
+        filterPanel.add(new JLabel("筛选:"), BorderLayout.WEST);
+        filterPanel.add(filterField, BorderLayout.CENTER);
+        add(filterPanel, BorderLayout.NORTH);
         
         JScrollPane scrollPane = new JScrollPane(libraryTable);
         add(scrollPane, BorderLayout.CENTER);
@@ -311,6 +703,9 @@ class LibraryManagerDialog extends JDialog {
         openButton = new JButton("打开");
         renameButton = new JButton("重命名");
         deleteButton = new JButton("删除");
+        JButton searchButton = new JButton("全文搜索");
+        JButton foldersButton = new JButton("监视文件夹");
+        JButton duplicatesButton = new JButton("查找重复");
         JButton closeButton = new JButton("关闭");
         
         openButton.addActionListener(new ActionListener() {
@@ -328,6 +723,22 @@ class LibraryManagerDialog extends JDialog {
                 deleteBook();
             }
         });
+        searchButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                dispose();
+                new LibrarySearchDialog(parent, libraryManager).setVisible(true);
+            }
+        });
+        foldersButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                new WatchedFoldersDialog(LibraryManagerDialog.this, libraryManager).setVisible(true);
+            }
+        });
+        duplicatesButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                new DuplicateReportDialog(LibraryManagerDialog.this, libraryManager).setVisible(true);
+            }
+        });
         closeButton.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
                 dispose();
@@ -337,11 +748,32 @@ class LibraryManagerDialog extends JDialog {
         buttonPanel.add(openButton);
         buttonPanel.add(renameButton);
         buttonPanel.add(deleteButton);
+        buttonPanel.add(searchButton);
+        buttonPanel.add(foldersButton);
+        buttonPanel.add(duplicatesButton);
         buttonPanel.add(closeButton);
         
         add(buttonPanel, BorderLayout.SOUTH);
         
         loadLibrary();
+        // 监视文件夹带来的变化只增删对应的行
+        libraryListener = new ChangeListener() {
+            public void stateChanged(ChangeEvent e) {
+                if (e instanceof LibraryChangeEvent) {
+                    LibraryChangeEvent change = (LibraryChangeEvent) e;
+                    for (LibraryBook book : change.getRemoved()) {
+                        tableModel.removeRow(book);
+                    }
+                    for (LibraryBook book : change.getAdded()) {
+                        tableModel.addRow(book);
+                    }
+                } else {
+                    loadLibrary();
+                }
+                updateButtonStates();
+            }
+        };
+        libraryManager.addLibraryListener(libraryListener);
         
         libraryTable.getSelectionModel().addListSelectionListener(new ListSelectionListener() {
             public void valueChanged(ListSelectionEvent e) {
@@ -351,11 +783,14 @@ class LibraryManagerDialog extends JDialog {
         updateButtonStates();
     }
     
+    @Override
+    public void dispose() {
+        libraryManager.removeLibraryListener(libraryListener);
+        super.dispose();
+    }
+    
     private void loadLibrary() {
-        tableModel.clear();
-        for (LibraryBook book : libraryManager.getAllBooks()) {
-            tableModel.addBook(book);
-        }
+        tableModel.setRows(libraryManager.getAllBooks());
     }
     
     private void updateButtonStates() {
@@ -381,7 +816,7 @@ class LibraryManagerDialog extends JDialog {
             String newName = JOptionPane.showInputDialog(this, "请输入新名称:", book.getName());
             if (newName != null && !newName.trim().isEmpty()) {
                 libraryManager.updateBook(book.getName(), newName.trim());
-                loadLibrary();
+                tableModel.rowChanged(book);
             }
         }
     }
@@ -394,132 +829,7477 @@ class LibraryManagerDialog extends JDialog {
                 "确定要删除《" + book.getName() + "》吗？", "确认删除", JOptionPane.YES_NO_OPTION);
             if (result == JOptionPane.YES_OPTION) {
                 libraryManager.removeBook(book.getName());
-                tableModel.removeBook(selectedRow);
+                tableModel.removeRow(book);
+            }
+        }
+    }
+}
+
+// 书库中重复和内容相似的书
+class DuplicateReportDialog extends JDialog {
+    private LibraryManager libraryManager;
+    private JProgressBar progressBar;
+    private JTextArea reportArea;
+    
+    public DuplicateReportDialog(JDialog parent, LibraryManager libraryManager) {
+        super(parent, "重复的书", true);
+        this.libraryManager = libraryManager;
+        initComponents();
+        setSize(600, 400);
+        setLocationRelativeTo(parent);
+        analyze();
+    }
+    
+    private void initComponents() {
+        setLayout(new BorderLayout());
+        progressBar = new JProgressBar(0, 100);
+        progressBar.setStringPainted(true);
+        reportArea = new JTextArea();
+        reportArea.setEditable(false);
+        
+        JButton closeButton = new JButton("关闭");
+        closeButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                dispose();
+            }
+        });
+        JPanel buttonPanel = new JPanel(new FlowLayout());
+        buttonPanel.add(closeButton);
+        
+        add(progressBar, BorderLayout.NORTH);
+        add(new JScrollPane(reportArea), BorderLayout.CENTER);
+        add(buttonPanel, BorderLayout.SOUTH);
+    }
+    
+    // 在后台线程上计算，缓存中已有的书不用重新读文件
+    private void analyze() {
+        final ArrayList<LibraryBook> books = libraryManager.getAllBooks();
+        Thread worker = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    final ArrayList<DuplicateGroup> groups = libraryManager.getFingerprintService().findDuplicates(books, new FingerprintProgress() {
+                        public void fingerprinted(final int done, final int total) {
+                            SwingUtilities.invokeLater(new Runnable() {
+                                public void run() {
+                                    progressBar.setValue(done * 100 / Math.max(1, total));
+                                    progressBar.setString("计算指纹 " + done + "/" + total);
+                                }
+                            });
+                        }
+                    });
+                    SwingUtilities.invokeLater(new Runnable() {
+                        public void run() {
+                            showReport(books.size(), groups);
+                        }
+                    });
+                } catch (final Exception e) {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        public void run() {
+                            progressBar.setString("失败: " + e.getMessage());
+                        }
+                    });
+                }
+            }
+        }, "duplicate-report");
+        worker.setDaemon(true);
+        worker.start();
+    }
+    
+    private void showReport(int total, ArrayList<DuplicateGroup> groups) {
+        progressBar.setValue(100);
+        progressBar.setString("共 " + total + " 本书，" + groups.size() + " 组重复");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < groups.size(); i++) {
+            DuplicateGroup group = groups.get(i);
+            sb.append("第").append(i + 1).append("组: ").append(group.getReason()).append('\n');
+            for (LibraryBook book : group.getBooks()) {
+                sb.append("    ").append(book.getName()).append("    ").append(book.getFilePath()).append('\n');
+            }
+            sb.append('\n');
+        }
+        reportArea.setText(groups.isEmpty() ? "没有发现重复的书" : sb.toString());
+        reportArea.setCaretPosition(0);
+    }
+}
+
+// 书库监视的文件夹
+class WatchedFoldersDialog extends JDialog {
+    private LibraryManager libraryManager;
+    private DefaultListModel<String> listModel = new DefaultListModel<>();
+    private JList<String> folderList = new JList<>(listModel);
+    
+    public WatchedFoldersDialog(JDialog parent, LibraryManager libraryManager) {
+        super(parent, "监视文件夹", true);
+        this.libraryManager = libraryManager;
+        initComponents();
+        setSize(460, 300);
+        setLocationRelativeTo(parent);
+    }
+    
+    private void initComponents() {
+        setLayout(new BorderLayout());
+        for (String folder : libraryManager.getWatchedFolders()) {
+            listModel.addElement(folder);
+        }
+        add(new JLabel("这些文件夹中新增、修改和删除的TXT文件会自动同步到书库"), BorderLayout.NORTH);
+        add(new JScrollPane(folderList), BorderLayout.CENTER);
+        
+        JPanel buttonPanel = new JPanel(new FlowLayout());
+        JButton addButton = new JButton("添加");
+        final JButton removeButton = new JButton("移除");
+        JButton closeButton = new JButton("关闭");
+        
+        addButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                addFolder();
+            }
+        });
+        removeButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                String folder = folderList.getSelectedValue();
+                if (folder != null) {
+                    libraryManager.removeWatchedFolder(Paths.get(folder));
+                    listModel.removeElement(folder);
+                }
+            }
+        });
+        closeButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                dispose();
+            }
+        });
+        folderList.addListSelectionListener(new ListSelectionListener() {
+            public void valueChanged(ListSelectionEvent e) {
+                removeButton.setEnabled(folderList.getSelectedIndex() >= 0);
             }
+        });
+        removeButton.setEnabled(false);
+        
+        buttonPanel.add(addButton);
+        buttonPanel.add(removeButton);
+        buttonPanel.add(closeButton);
+        add(buttonPanel, BorderLayout.SOUTH);
+    }
+    
+    private void addFolder() {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        
+        String folder = chooser.getSelectedFile().getAbsolutePath();
+        if (!listModel.contains(folder)) {
+            libraryManager.addWatchedFolder(Paths.get(folder));
+            listModel.addElement(folder);
         }
     }
 }
 
+// 打开书库中的书，由主程序实现
+interface BookOpener {
+    void openBook(File file, int line);
+}
+
 // 书库管理类
 class LibraryManager {
-    private HashMap<String, LibraryBook> books;
-    private Preferences prefs;
+    private LibraryStore store;
     private static final String LIBRARY_KEY = "book_library";
+    private static final String FOLDERS_KEY = "library_folders";
+    private Preferences prefs;
+    private BookOpener bookOpener;
+    private LibraryIndex searchIndex;
+    private FingerprintService fingerprintService;
+    private LibraryWatcher watcher;
+    private ArrayList<ChangeListener> listeners = new ArrayList<>();
     
     public LibraryManager() {
         prefs = Preferences.userNodeForPackage(LibraryManager.class);
-        loadLibrary();
+        store = new LibraryStore(AppDirs.dataDir(), prefs, LIBRARY_KEY);
     }
     
-    public void addBook(String name, String filePath) {
-        books.put(name, new LibraryBook(name, filePath));
-        saveLibrary();
+    // 开始监视设置中的文件夹，每个文件夹启动时遍历一次
+    public void startWatching(ArrayList<ChapterRule> rules) {
+        try {
+            watcher = new LibraryWatcher(this, rules);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        for (String folder : getWatchedFolders()) {
+            watcher.addFolder(Paths.get(folder));
+        }
     }
     
-    public void removeBook(String name) {
-        books.remove(name);
-        saveLibrary();
+    public ArrayList<String> getWatchedFolders() {
+        ArrayList<String> folders = new ArrayList<>();
+        for (String folder : prefs.get(FOLDERS_KEY, "").split("\n")) {
+            if (!folder.isEmpty()) {
+                folders.add(folder);
+            }
+        }
+        return folders;
     }
     
-    public void updateBook(String oldName, String newName) {
-        LibraryBook book = books.get(oldName);
-        if (book != null) {
-            books.remove(oldName);
-            book.setName(newName);
-            books.put(newName, book);
-            saveLibrary();
+    public void addWatchedFolder(Path dir) {
+        ArrayList<String> folders = getWatchedFolders();
+        folders.add(dir.toAbsolutePath().toString());
+        prefs.put(FOLDERS_KEY, String.join("\n", folders));
+        if (watcher != null) {
+            watcher.addFolder(dir.toAbsolutePath());
         }
     }
     
-    public ArrayList<LibraryBook> getAllBooks() {
-        return new ArrayList<>(books.values());
+    // 停止监视，已经导入的书留在书库中
+    public void removeWatchedFolder(Path dir) {
+        ArrayList<String> folders = getWatchedFolders();
+        folders.remove(dir.toAbsolutePath().toString());
+        prefs.put(FOLDERS_KEY, String.join("\n", folders));
+        if (watcher != null) {
+            watcher.removeFolder(dir.toAbsolutePath());
+        }
     }
     
-    public void openBook(LibraryBook book) {
-        File file = new File(book.getFilePath());
-        if (file.exists()) {
-            // 在实际实现中，需要通过回调或事件通知主程序
-            System.out.println("打开书籍: " + book.getName() + ", 路径: " + book.getFilePath());
-        }
+    // 在事件线程上通知书库有变化
+    public void addLibraryListener(ChangeListener listener) {
+        listeners.add(listener);
     }
     
-    public void backupLibrary() {
-        try {
-            String backupDir = System.getProperty("user.home") + File.separator + "txt_reader_backup";
-            Files.createDirectories(Paths.get(backupDir));
-            
-            String backupFile = backupDir + File.separator + "library_backup_" + 
-                System.currentTimeMillis() + ".txt";
+    public void removeLibraryListener(ChangeListener listener) {
+        listeners.remove(listener);
+    }
+    
+    // 监视文件夹的一批变化：新文件以文件名加入书库，已删除的文件和文件夹下的书从书库移除
+    public void applyFolderChanges(Collection<Path> present, Collection<Path> removed, Collection<Path> removedDirs) {
+        final ArrayList<LibraryBook> added = new ArrayList<>();
+        final ArrayList<LibraryBook> dropped = new ArrayList<>();
+        synchronized (this) {
+            HashMap<String, LibraryBook> byPath = new HashMap<>();
+            for (LibraryBook book : store.getAll()) {
+                byPath.put(book.getFilePath(), book);
+            }
+            for (Path file : removed) {
+                LibraryBook book = byPath.remove(file.toAbsolutePath().toString());
+                if (book != null) {
+                    store.remove(book.getName());
+                    dropped.add(book);
+                }
+            }
+            for (Path dir : removedDirs) {
+                Iterator<LibraryBook> it = byPath.values().iterator();
+                while (it.hasNext()) {
+                    LibraryBook book = it.next();
+                    if (Paths.get(book.getFilePath()).startsWith(dir)) {
+                        it.remove();
+                        store.remove(book.getName());
+                        dropped.add(book);
+                    }
+                }
+            }
+            // 同一批里移除的书按文件名记下，所在文件夹改名或文件移到别处后沿用原来的书名和加入时间
+            HashMap<String, LibraryBook> moved = new HashMap<>();
+            for (LibraryBook book : dropped) {
+                moved.put(Paths.get(book.getFilePath()).getFileName().toString(), book);
+            }
+            for (Path file : present) {
+                String path = file.toAbsolutePath().toString();
+                if (!byPath.containsKey(path)) {
+                    LibraryBook previous = moved.remove(file.getFileName().toString());
+                    LibraryBook book = previous != null && store.get(previous.getName()) == null
+                        ? new LibraryBook(previous.getName(), path, previous.getAddTime())
+                        : new LibraryBook(uniqueName(file), path);
+                    store.put(book);
+                    byPath.put(path, book);
+                    added.add(book);
+                }
+            }
+        }
+        if (!added.isEmpty() || !dropped.isEmpty()) {
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    ChangeEvent event = new LibraryChangeEvent(LibraryManager.this, added, dropped);
+                    for (ChangeListener listener : new ArrayList<>(listeners)) {
+                        listener.stateChanged(event);
+                    }
+                }
+            });
+        }
+    }
+    
+    // 书名取文件名，和已有的书重名时加上序号
+    private String uniqueName(Path file) {
+        String base = BookStorage.bookName(file.getFileName().toString());
+        String name = base;
+        for (int i = 2; store.get(name) != null; i++) {
+            name = base + " (" + i + ")";
+        }
+        return name;
+    }
+    
+    public void addBook(String name, String filePath) {
+        store.put(new LibraryBook(name, filePath));
+    }
+    
+    public void removeBook(String name) {
+        store.remove(name);
+    }
+    
+    public void updateBook(String oldName, String newName) {
+        LibraryBook book = store.get(oldName);
+        if (book != null) {
+            store.remove(oldName);
+            book.setName(newName);
+            store.put(book);
+        }
+    }
+    
+    public ArrayList<LibraryBook> getAllBooks() {
+        return store.getAll();
+    }
+    
+    public void setBookOpener(BookOpener bookOpener) {
+        this.bookOpener = bookOpener;
+    }
+    
+    public void openBook(LibraryBook book) {
+        openBook(book, -1);
+    }
+    
+    // line为-1时回到书签位置
+    public void openBook(LibraryBook book, int line) {
+        File file = new File(book.getFilePath());
+        if (file.exists() && bookOpener != null) {
+            bookOpener.openBook(file, line);
+        }
+    }
+    
+    // 全文索引第一次用到时才创建
+    public synchronized LibraryIndex getSearchIndex() {
+        if (searchIndex == null) {
+            searchIndex = new LibraryIndex(AppDirs.cacheDir().resolve("library_index"));
+        }
+        return searchIndex;
+    }
+    
+    public synchronized FingerprintService getFingerprintService() {
+        if (fingerprintService == null) {
+            fingerprintService = new FingerprintService(AppDirs.cacheDir().resolve("fingerprints.dat"));
+        }
+        return fingerprintService;
+    }
+    
+    public void backupLibrary() {
+        try {
+            String backupDir = System.getProperty("user.home") + File.separator + "txt_reader_backup";
+            Files.createDirectories(Paths.get(backupDir));
+            
+            String backupFile = backupDir + File.separator + "library_backup_" + 
+                System.currentTimeMillis() + ".txt";
+            
+            try (PrintWriter writer = new PrintWriter(backupFile, "UTF-8")) {
+                for (LibraryBook book : store.getAll()) {
+                    writer.println(book.getName() + "|" + book.getFilePath() + "|" + book.getAddTime().getTime());
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
+
+// 书库中加入和移除了哪些书
+class LibraryChangeEvent extends ChangeEvent {
+    private ArrayList<LibraryBook> added;
+    private ArrayList<LibraryBook> removed;
+    
+    public LibraryChangeEvent(Object source, ArrayList<LibraryBook> added, ArrayList<LibraryBook> removed) {
+        super(source);
+        this.added = added;
+        this.removed = removed;
+    }
+    
+    public ArrayList<LibraryBook> getAdded() { return added; }
+    public ArrayList<LibraryBook> getRemoved() { return removed; }
+}
+
+// 监视书库文件夹：启动或添加文件夹时扫描一次，之后只处理WatchService报告的变化；
+// 一段时间内连续的变化合并成一批导入书库，再在后台为新书预先建立加载结果
+class LibraryWatcher {
+    private static final long QUIET_MILLIS = 1000;
+    private static final long MAX_DELAY_MILLIS = 5000;
+    
+    private LibraryManager library;
+    private WatchService watchService;
+    // 以下字段只在监视线程上访问
+    private HashMap<WatchKey, Path> keys = new HashMap<>();
+    // 等待合并的变化：文件 -> 是否还存在
+    private LinkedHashMap<Path, Boolean> pending = new LinkedHashMap<>();
+    private ArrayList<Path> removedDirs = new ArrayList<>();
+    private long firstPendingTime;
+    private ScheduledFuture<?> flushFuture;
+    private ScheduledExecutorService executor;
+    private ExecutorService extractor;
+    private BatchIndexer indexer;
+    
+    public LibraryWatcher(LibraryManager library, ArrayList<ChapterRule> rules) throws IOException {
+        this.library = library;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.indexer = new BatchIndexer(1, false, rules, new BookMetaCache(AppDirs.cacheDir().resolve("meta")));
+        executor = Executors.newSingleThreadScheduledExecutor(daemonThread("library-watcher", Thread.NORM_PRIORITY));
+        extractor = Executors.newSingleThreadExecutor(daemonThread("library-extract", Thread.MIN_PRIORITY));
+        Thread poller = daemonThread("library-watch-poll", Thread.NORM_PRIORITY).newThread(new Runnable() {
+            public void run() {
+                poll();
+            }
+        });
+        poller.start();
+    }
+    
+    private static ThreadFactory daemonThread(final String name, final int priority) {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                thread.setPriority(priority);
+                return thread;
+            }
+        };
+    }
+    
+    public static boolean isBook(Path file) {
+        return BookStorage.isBookFile(file.getFileName().toString());
+    }
+    
+    public void addFolder(final Path dir) {
+        executor.execute(new Runnable() {
+            public void run() {
+                scanFolder(dir);
+            }
+        });
+    }
+    
+    public void removeFolder(final Path dir) {
+        executor.execute(new Runnable() {
+            public void run() {
+                unregisterTree(dir);
+            }
+        });
+    }
+    
+    // 取消dir和它下面所有子文件夹的监视
+    private void unregisterTree(Path dir) {
+        Iterator<Map.Entry<WatchKey, Path>> it = keys.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<WatchKey, Path> entry = it.next();
+            if (entry.getValue().startsWith(dir)) {
+                entry.getKey().cancel();
+                it.remove();
+            }
+        }
+    }
+    
+    // 在阻塞的线程上等待事件，交给监视线程处理
+    private void poll() {
+        while (true) {
+            final WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            final java.util.List<WatchEvent<?>> events = key.pollEvents();
+            executor.execute(new Runnable() {
+                public void run() {
+                    handle(key, events);
+                }
+            });
+        }
+    }
+    
+    // 遍历一次文件夹：注册所有子文件夹，已有的书加入书库，书库中这个文件夹下已经不存在的书移除
+    private void scanFolder(Path dir) {
+        final HashSet<Path> found = new HashSet<>();
+        try {
+            registerTree(dir, found);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        for (Path file : found) {
+            pending.put(file, true);
+        }
+        for (LibraryBook book : library.getAllBooks()) {
+            Path path = Paths.get(book.getFilePath());
+            if (path.startsWith(dir) && !found.contains(path)) {
+                pending.put(path, false);
+            }
+        }
+        flush();
+    }
+    
+    private void registerTree(Path dir, final Collection<Path> books) throws IOException {
+        Files.walkFileTree(dir.toAbsolutePath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path subdir, BasicFileAttributes attrs) throws IOException {
+                keys.put(subdir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), subdir);
+                return FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && isBook(file)) {
+                    books.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+    
+    private void handle(WatchKey key, java.util.List<WatchEvent<?>> events) {
+        Path dir = keys.get(key);
+        if (dir == null) return;
+        for (WatchEvent<?> event : events) {
+            WatchEvent.Kind<?> kind = event.kind();
+            if (kind == StandardWatchEventKinds.OVERFLOW) {
+                // 事件丢失，只重新列出这一个文件夹
+                relistDirectory(dir);
+                continue;
+            }
+            Path child = dir.resolve((Path) event.context());
+            if (kind == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                // 新建或移进来的文件夹，只遍历它自己
+                ArrayList<Path> books = new ArrayList<>();
+                try {
+                    registerTree(child, books);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                for (Path book : books) {
+                    pending.put(book, true);
+                }
+            } else if (kind == StandardWatchEventKinds.ENTRY_DELETE && keys.containsValue(child)) {
+                // 删除或移走的文件夹：移走后原来的注册还会报告事件，但路径已经不对了
+                unregisterTree(child);
+                removedDirs.add(child);
+            } else if (isBook(child)) {
+                pending.remove(child);
+                pending.put(child, kind != StandardWatchEventKinds.ENTRY_DELETE);
+            }
+        }
+        if (!key.reset()) {
+            keys.remove(key);
+        }
+        scheduleFlush();
+    }
+    
+    private void relistDirectory(Path dir) {
+        HashSet<Path> found = new HashSet<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path file : stream) {
+                if (Files.isRegularFile(file) && isBook(file)) {
+                    found.add(file);
+                    pending.put(file, true);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (LibraryBook book : library.getAllBooks()) {
+            Path path = Paths.get(book.getFilePath());
+            if (dir.equals(path.getParent()) && !found.contains(path)) {
+                pending.put(path, false);
+            }
+        }
+    }
+    
+    // 安静一段时间后再导入，持续有变化时最多推迟MAX_DELAY_MILLIS
+    private void scheduleFlush() {
+        if (pending.isEmpty() && removedDirs.isEmpty()) return;
+        long now = System.currentTimeMillis();
+        if (flushFuture == null) {
+            firstPendingTime = now;
+        } else {
+            flushFuture.cancel(false);
+        }
+        long delay = Math.min(QUIET_MILLIS, Math.max(0, firstPendingTime + MAX_DELAY_MILLIS - now));
+        flushFuture = executor.schedule(new Runnable() {
+            public void run() {
+                flush();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+    
+    private void flush() {
+        if (flushFuture != null) {
+            flushFuture.cancel(false);
+            flushFuture = null;
+        }
+        ArrayList<Path> present = new ArrayList<>();
+        ArrayList<Path> removed = new ArrayList<>();
+        for (Map.Entry<Path, Boolean> entry : pending.entrySet()) {
+            // 删除后又建立的文件以最后的状态为准
+            if (entry.getValue() && Files.isRegularFile(entry.getKey())) {
+                present.add(entry.getKey());
+            } else {
+                removed.add(entry.getKey());
+            }
+        }
+        ArrayList<Path> dirs = new ArrayList<>(removedDirs);
+        pending.clear();
+        removedDirs.clear();
+        if (present.isEmpty() && removed.isEmpty() && dirs.isEmpty()) return;
+        
+        library.applyFolderChanges(present, removed, dirs);
+        for (final Path file : present) {
+            extractor.execute(new Runnable() {
+                public void run() {
+                    indexer.indexFile(file);
+                }
+            });
+        }
+    }
+}
+
+// 书库存储：快照文件加只追加的变更日志，修改只追加一条记录，后台批量写盘
+// 日志记录格式：长度, CRC32, 操作, 书名[, 路径, 添加时间]，读到不完整的尾部记录时截断
+class LibraryStore implements Closeable {
+    private static final int SNAPSHOT_MAGIC = 0x54584C42;
+    private static final int VERSION = 1;
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final long FLUSH_DELAY_MS = 200;
+    private static final int MIN_COMPACT_RECORDS = 1000;
+    
+    private Path snapshotPath;
+    private Path journalPath;
+    private Preferences legacyPrefs;
+    private String legacyKey;
+    private HashMap<String, LibraryBook> books;
+    private ArrayList<byte[]> pending = new ArrayList<>();
+    private boolean flushScheduled;
+    private int journalRecords;
+    private FileChannel journal;
+    private ScheduledExecutorService writer;
+    private Future<?> loading;
+    private Thread shutdownHook;
+    private boolean closed;
+    
+    // 在后台线程上读入，第一次访问书库时才等待读完；legacyPrefs为null时不导入旧版本的书库
+    public LibraryStore(Path dir, Preferences legacyPrefs, String legacyKey) {
+        this.snapshotPath = dir.resolve("library.dat");
+        this.journalPath = dir.resolve("library.journal");
+        this.legacyPrefs = legacyPrefs;
+        this.legacyKey = legacyKey;
+        writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "library-store");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        loading = writer.submit(new Callable<Void>() {
+            public Void call() throws IOException {
+                load();
+                return null;
+            }
+        });
+        shutdownHook = new Thread(new Runnable() {
+            public void run() {
+                close();
+            }
+        }, "library-store-shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+    
+    public ArrayList<LibraryBook> getAll() {
+        awaitLoaded();
+        synchronized (this) {
+            return new ArrayList<>(books.values());
+        }
+    }
+    
+    public LibraryBook get(String name) {
+        awaitLoaded();
+        synchronized (this) {
+            return books.get(name);
+        }
+    }
+    
+    public void put(LibraryBook book) {
+        awaitLoaded();
+        synchronized (this) {
+            books.put(book.getName(), book);
+            append(encode(OP_PUT, book.getName(), book));
+        }
+    }
+    
+    public void remove(String name) {
+        awaitLoaded();
+        synchronized (this) {
+            if (books.remove(name) != null) {
+                append(encode(OP_REMOVE, name, null));
+            }
+        }
+    }
+    
+    private void awaitLoaded() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                loading.get();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (ExecutionException e) {
+                // 读取失败时books是已经读到的部分，可能是空书库，不影响使用
+                e.getCause().printStackTrace();
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private void append(byte[] record) {
+        pending.add(record);
+        if (!flushScheduled) {
+            flushScheduled = true;
+            writer.schedule(new Runnable() {
+                public void run() {
+                    try {
+                        flush();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    // 无论读取是否出错都会设置books，出错时书库里是已经读到的部分
+    private void load() throws IOException {
+        HashMap<String, LibraryBook> loaded = new HashMap<>();
+        try {
+            Files.createDirectories(snapshotPath.getParent());
+            boolean exists = Files.exists(snapshotPath) || Files.exists(journalPath);
+            if (Files.exists(snapshotPath)) {
+                try {
+                    readSnapshot(loaded);
+                } catch (IOException e) {
+                    // 快照损坏时挪到library.dat.bad留着，日志里的记录照常重放
+                    System.err.println("书库文件损坏: " + snapshotPath + ": " + e);
+                    loaded.clear();
+                    Files.move(snapshotPath, snapshotPath.resolveSibling("library.dat.bad"), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            openJournal(loaded);
+            if (!exists && legacyPrefs != null) {
+                migrateLegacy(loaded);
+            }
+        } finally {
+            synchronized (this) {
+                books = loaded;
+            }
+        }
+    }
+    
+    private void readSnapshot(HashMap<String, LibraryBook> loaded) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotPath)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != VERSION) {
+                throw new IOException("书库文件格式不对: " + snapshotPath);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                LibraryBook book = new LibraryBook(in.readUTF(), in.readUTF(), new Date(in.readLong()));
+                loaded.put(book.getName(), book);
+            }
+        }
+    }
+    
+    // 打开日志并重放到loaded里，截掉结尾不完整的记录
+    private void openJournal(HashMap<String, LibraryBook> loaded) throws IOException {
+        FileChannel channel = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long validEnd = replay(channel, loaded);
+            channel.truncate(validEnd);
+            channel.position(validEnd);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        journal = channel;
+    }
+    
+    // 重放日志，返回最后一条完整记录的结尾位置
+    private long replay(FileChannel channel, HashMap<String, LibraryBook> loaded) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate((int) Math.min(channel.size(), Integer.MAX_VALUE));
+        while (data.hasRemaining() && channel.read(data) > 0) {
+        }
+        data.flip();
+        CRC32 crc = new CRC32();
+        long validEnd = 0;
+        while (data.remaining() >= 8) {
+            int length = data.getInt();
+            int checksum = data.getInt();
+            if (length <= 0 || length > data.remaining()) break;
+            byte[] payload = new byte[length];
+            data.get(payload);
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != checksum) break;
+            
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            byte op = in.readByte();
+            String name = in.readUTF();
+            if (op == OP_PUT) {
+                loaded.put(name, new LibraryBook(name, in.readUTF(), new Date(in.readLong())));
+            } else {
+                loaded.remove(name);
+            }
+            journalRecords++;
+            validEnd = data.position();
+        }
+        return validEnd;
+    }
+    
+    // 旧版本把书库存在Preferences的一个字符串里，第一次启动时导入
+    private void migrateLegacy(HashMap<String, LibraryBook> loaded) throws IOException {
+        String libraryData = legacyPrefs.get(legacyKey, "");
+        if (libraryData.isEmpty()) return;
+        for (String entry : libraryData.split(";;")) {
+            String[] parts = entry.split("\\|");
+            if (parts.length >= 2) {
+                Date addTime = new Date();
+                if (parts.length >= 3) {
+                    try {
+                        addTime = new Date(Long.parseLong(parts[2]));
+                    } catch (NumberFormatException e) {
+                        // 保留当前时间
+                    }
+                }
+                loaded.put(parts[0], new LibraryBook(parts[0], parts[1], addTime));
+            }
+        }
+        writeSnapshot(new ArrayList<>(loaded.values()));
+        legacyPrefs.remove(legacyKey);
+    }
+    
+    private byte[] encode(byte op, String name, LibraryBook book) {
+        try {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(payload);
+            out.writeByte(op);
+            out.writeUTF(name);
+            if (book != null) {
+                out.writeUTF(book.getFilePath());
+                out.writeLong(book.getAddTime().getTime());
+            }
+            out.flush();
+            byte[] bytes = payload.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            ByteBuffer record = ByteBuffer.allocate(8 + bytes.length);
+            record.putInt(bytes.length).putInt((int) crc.getValue()).put(bytes);
+            return record.array();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    // 在写盘线程上执行：一次写出积累的所有记录，只做一次fsync
+    private void flush() throws IOException {
+        ArrayList<byte[]> batch;
+        int bookCount;
+        synchronized (this) {
+            batch = pending;
+            pending = new ArrayList<>();
+            flushScheduled = false;
+            bookCount = books == null ? 0 : books.size();
+        }
+        if (batch.isEmpty()) return;
+        
+        int length = 0;
+        for (byte[] record : batch) {
+            length += record.length;
+        }
+        ByteBuffer data = ByteBuffer.allocate(length);
+        for (byte[] record : batch) {
+            data.put(record);
+        }
+        data.flip();
+        try {
+            // 读取时没能打开日志就在这里重试，书库内容已经在内存里，重放结果丢掉
+            if (journal == null) {
+                openJournal(new HashMap<String, LibraryBook>());
+            }
+        } catch (IOException e) {
+            requeue(batch);
+            throw e;
+        }
+        long start = journal.position();
+        try {
+            while (data.hasRemaining()) {
+                journal.write(data);
+            }
+            journal.force(false);
+        } catch (IOException e) {
+            // 截掉写了一半的记录，否则重放时会停在这里
+            try {
+                journal.truncate(start);
+                journal.position(start);
+            } catch (IOException truncateFailed) {
+                // 原来的错误更有用
+            }
+            requeue(batch);
+            throw e;
+        }
+        journalRecords += batch.size();
+        
+        if (journalRecords > MIN_COMPACT_RECORDS && journalRecords > bookCount * 2) {
+            compact();
+        }
+    }
+    
+    // 没写成的记录放回队列前面，下次写盘或退出时再写
+    private void requeue(ArrayList<byte[]> batch) {
+        synchronized (this) {
+            batch.addAll(pending);
+            pending = batch;
+        }
+    }
+    
+    // 把当前书库写成新快照后清空日志；快照之后才写入日志的记录重放时结果不变
+    private void compact() throws IOException {
+        ArrayList<LibraryBook> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>(books.values());
+        }
+        writeSnapshot(snapshot);
+        journal.truncate(0);
+        journal.position(0);
+        journal.force(false);
+        journalRecords = 0;
+    }
+    
+    private void writeSnapshot(ArrayList<LibraryBook> snapshot) throws IOException {
+        Path temp = snapshotPath.resolveSibling("library.tmp");
+        try (FileOutputStream file = new FileOutputStream(temp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(snapshot.size());
+            for (LibraryBook book : snapshot) {
+                out.writeUTF(book.getName());
+                out.writeUTF(book.getFilePath());
+                out.writeLong(book.getAddTime().getTime());
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temp, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    // 写完所有未写盘的记录，停掉写盘线程；退出时由关闭钩子调用，重复调用没有影响
+    public void close() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+        }
+        try {
+            writer.submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    flush();
+                    if (journal != null) {
+                        journal.close();
+                    }
+                    return null;
+                }
+            }).get(5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        writer.shutdown();
+        if (Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // 已经在退出
+            }
+        }
+    }
+}
+
+// 内容指纹：文件大小加上开头、中间和结尾的几段字节的摘要，文件改名或移动后不变
+class ContentFingerprint {
+    private static final int SAMPLE_BYTES = 16 * 1024;
+    private static final int SAMPLES = 4;
+    
+    public static String of(BookStorage file) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            long size = file.size();
+            digest.update(ByteBuffer.allocate(8).putLong(size).array());
+            if (size <= SAMPLE_BYTES * SAMPLES) {
+                digest.update(file.slice(0, (int) size));
+            } else {
+                for (int i = 0; i < SAMPLES; i++) {
+                    long offset = (size - SAMPLE_BYTES) / (SAMPLES - 1) * i;
+                    digest.update(file.slice(offset, SAMPLE_BYTES));
+                }
+            }
+            byte[] hash = digest.digest();
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 16; i++) {
+                sb.append(String.format("%02x", hash[i]));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
+
+// 书的指纹：文件的抽样摘要、规范化文字的哈希和MinHash草图
+// 规范化文字只保留字母和数字，全角转半角，重新编码或改了换行和标点的同一本书哈希相同，略有修改的书草图相近
+class BookFingerprint {
+    private static final int SHINGLE_CHARS = 5;
+    private static final int SKETCH_SIZE = 64;
+    private static final int CHUNK_BYTES = 1024 * 1024;
+    
+    private String path;
+    private long size;
+    private long modified;
+    private String sampled;
+    private long textHash;
+    // 所有5字片段哈希值中最小的SKETCH_SIZE个，升序
+    private long[] sketch;
+    
+    public BookFingerprint(String path, long size, long modified, String sampled, long textHash, long[] sketch) {
+        this.path = path;
+        this.size = size;
+        this.modified = modified;
+        this.sampled = sampled;
+        this.textHash = textHash;
+        this.sketch = sketch;
+    }
+    
+    public String getPath() { return path; }
+    public String getSampled() { return sampled; }
+    public long getTextHash() { return textHash; }
+    public long[] getSketch() { return sketch; }
+    
+    public boolean matches(BasicFileAttributes attrs) {
+        return attrs.size() == size && attrs.lastModifiedTime().toMillis() == modified;
+    }
+    
+    public static BookFingerprint compute(Path path) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        try (BookStorage file = BookStorage.open(path)) {
+            Charset charset = CharsetDetector.detect(file);
+            CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            Sketcher sketcher = new Sketcher();
+            CharBuffer out = CharBuffer.allocate(64 * 1024);
+            long position = CharsetDetector.bomLength(file, charset);
+            long size = file.size();
+            while (true) {
+                ByteBuffer in = file.slice(position, (int) Math.min(CHUNK_BYTES, size - position));
+                boolean last = position + in.remaining() >= size;
+                while (decoder.decode(in, out, last).isOverflow()) {
+                    sketcher.add(out);
+                }
+                sketcher.add(out);
+                position += in.position();
+                if (last) break;
+            }
+            decoder.flush(out);
+            sketcher.add(out);
+            return new BookFingerprint(path.toAbsolutePath().toString(), attrs.size(), attrs.lastModifiedTime().toMillis(),
+                ContentFingerprint.of(file), sketcher.hash, sketcher.sketch());
+        }
+    }
+    
+    // 估计两本书5字片段集合的Jaccard相似度：两个草图合并后最小的SKETCH_SIZE个值中两边都有的比例
+    public double similarity(BookFingerprint other) {
+        long[] a = sketch;
+        long[] b = other.sketch;
+        int i = 0;
+        int j = 0;
+        int taken = 0;
+        int shared = 0;
+        while (taken < SKETCH_SIZE && (i < a.length || j < b.length)) {
+            if (j >= b.length || i < a.length && a[i] < b[j]) {
+                i++;
+            } else if (i >= a.length || b[j] < a[i]) {
+                j++;
+            } else {
+                shared++;
+                i++;
+                j++;
+            }
+            taken++;
+        }
+        return taken == 0 ? 0 : (double) shared / taken;
+    }
+    
+    public void write(DataOutputStream out) throws IOException {
+        out.writeUTF(path);
+        out.writeLong(size);
+        out.writeLong(modified);
+        out.writeUTF(sampled);
+        out.writeLong(textHash);
+        out.writeShort(sketch.length);
+        for (long value : sketch) {
+            out.writeLong(value);
+        }
+    }
+    
+    public static BookFingerprint read(DataInputStream in) throws IOException {
+        String path = in.readUTF();
+        long size = in.readLong();
+        long modified = in.readLong();
+        String sampled = in.readUTF();
+        long textHash = in.readLong();
+        long[] sketch = new long[in.readShort()];
+        for (int i = 0; i < sketch.length; i++) {
+            sketch[i] = in.readLong();
+        }
+        return new BookFingerprint(path, size, modified, sampled, textHash, sketch);
+    }
+    
+    // 逐字符计算规范化文字的哈希，同时保留片段哈希的最小值
+    private static class Sketcher {
+        private long hash = 0xcbf29ce484222325L;
+        private char[] window = new char[SHINGLE_CHARS];
+        private int count;
+        private TreeSet<Long> smallest = new TreeSet<>();
+        private long threshold = Long.MAX_VALUE;
+        
+        void add(CharBuffer out) {
+            out.flip();
+            while (out.hasRemaining()) {
+                char c = out.get();
+                if (c >= '\uFF01' && c <= '\uFF5E') {
+                    c -= 0xFEE0;
+                }
+                if (!Character.isLetterOrDigit(c)) continue;
+                c = Character.toLowerCase(c);
+                hash = (hash ^ c) * 0x100000001b3L;
+                window[count % SHINGLE_CHARS] = c;
+                count++;
+                if (count >= SHINGLE_CHARS) {
+                    addShingle();
+                }
+            }
+            out.clear();
+        }
+        
+        private void addShingle() {
+            long h = 0;
+            for (int i = count - SHINGLE_CHARS; i < count; i++) {
+                h = h * 31 + window[i % SHINGLE_CHARS];
+            }
+            // splitmix64的混合函数，让相近的片段哈希值分散开
+            h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+            h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+            h = h ^ (h >>> 31);
+            if (h >= threshold) return;
+            if (smallest.add(h) && smallest.size() > SKETCH_SIZE) {
+                smallest.pollLast();
+            }
+            if (smallest.size() == SKETCH_SIZE) {
+                threshold = smallest.last();
+            }
+        }
+        
+        long[] sketch() {
+            long[] values = new long[smallest.size()];
+            int i = 0;
+            for (long value : smallest) {
+                values[i++] = value;
+            }
+            return values;
+        }
+    }
+}
+
+// 一组重复或相似的书
+class DuplicateGroup {
+    private String reason;
+    private ArrayList<LibraryBook> books;
+    
+    public DuplicateGroup(String reason, ArrayList<LibraryBook> books) {
+        this.reason = reason;
+        this.books = books;
+    }
+    
+    public String getReason() { return reason; }
+    public ArrayList<LibraryBook> getBooks() { return books; }
+}
+
+interface FingerprintProgress {
+    // 在计算线程上调用
+    void fingerprinted(int done, int total);
+}
+
+// 书库指纹服务：并行计算每本书的指纹，按文件大小和修改时间缓存，找出重复和内容相似的书
+class FingerprintService {
+    private static final int MAGIC = 0x54584650;
+    private static final int VERSION = 1;
+    private static final double SIMILAR_THRESHOLD = 0.5;
+    
+    private Path cacheFile;
+    private HashMap<String, BookFingerprint> cache;
+    
+    public FingerprintService(Path cacheFile) {
+        this.cacheFile = cacheFile;
+    }
+    
+    private void loadCache() {
+        cache = new HashMap<>();
+        if (!Files.exists(cacheFile)) return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cacheFile), 64 * 1024))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return;
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                BookFingerprint fingerprint = BookFingerprint.read(in);
+                cache.put(fingerprint.getPath(), fingerprint);
+            }
+        } catch (IOException e) {
+            // 缓存损坏时全部重新计算
+            cache.clear();
+        }
+    }
+    
+    private void saveCache(Collection<BookFingerprint> fingerprints) throws IOException {
+        Files.createDirectories(cacheFile.getParent());
+        Path temp = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(fingerprints.size());
+            for (BookFingerprint fingerprint : fingerprints) {
+                fingerprint.write(out);
+            }
+        }
+        Files.move(temp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    // 取得所有书的指纹，缓存中过期或没有的在线程池中并行计算；文件不存在的书对应null
+    public synchronized BookFingerprint[] fingerprints(ArrayList<LibraryBook> books, final FingerprintProgress progress) throws Exception {
+        if (cache == null) {
+            loadCache();
+        }
+        final int total = books.size();
+        final AtomicInteger done = new AtomicInteger();
+        BookFingerprint[] result = new BookFingerprint[total];
+        ArrayList<Future<BookFingerprint>> futures = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            for (int i = 0; i < total; i++) {
+                final Path path = Paths.get(books.get(i).getFilePath()).toAbsolutePath();
+                BookFingerprint cached = cache.get(path.toString());
+                futures.add(pool.submit(new Callable<BookFingerprint>() {
+                    public BookFingerprint call() {
+                        try {
+                            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                            return cached != null && cached.matches(attrs) ? cached : BookFingerprint.compute(path);
+                        } catch (IOException e) {
+                            return null;
+                        } finally {
+                            progress.fingerprinted(done.incrementAndGet(), total);
+                        }
+                    }
+                }));
+            }
+            HashMap<String, BookFingerprint> updated = new HashMap<>();
+            for (int i = 0; i < total; i++) {
+                result[i] = futures.get(i).get();
+                if (result[i] != null) {
+                    updated.put(result[i].getPath(), result[i]);
+                }
+            }
+            cache = updated;
+            saveCache(updated.values());
+        } finally {
+            pool.shutdownNow();
+        }
+        return result;
+    }
+    
+    // 文件相同、文字相同或草图相似的书合并成一组
+    public ArrayList<DuplicateGroup> findDuplicates(ArrayList<LibraryBook> books, FingerprintProgress progress) throws Exception {
+        BookFingerprint[] prints = fingerprints(books, progress);
+        int n = prints.length;
+        int[] parent = new int[n];
+        for (int i = 0; i < n; i++) {
+            parent[i] = i;
+        }
+        HashMap<String, Integer> bySampled = new HashMap<>();
+        HashMap<Long, Integer> byText = new HashMap<>();
+        HashMap<Long, IntList> bySketch = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            if (prints[i] == null) continue;
+            Integer same = bySampled.putIfAbsent(prints[i].getSampled(), i);
+            if (same != null) union(parent, same, i);
+            same = byText.putIfAbsent(prints[i].getTextHash(), i);
+            if (same != null) union(parent, same, i);
+            for (long value : prints[i].getSketch()) {
+                IntList list = bySketch.get(value);
+                if (list == null) {
+                    list = new IntList(2);
+                    bySketch.put(value, list);
+                }
+                list.add(i);
+            }
+        }
+        // 只比较至少共有几个草图值的书；很多书都有的常见片段不参与比较
+        int maxPosting = Math.max(50, n / 10);
+        for (int i = 0; i < n; i++) {
+            if (prints[i] == null) continue;
+            HashMap<Integer, Integer> shared = new HashMap<>();
+            for (long value : prints[i].getSketch()) {
+                IntList list = bySketch.get(value);
+                if (list.size() > maxPosting) continue;
+                for (int k = 0; k < list.size(); k++) {
+                    int j = list.get(k);
+                    if (j > i) {
+                        Integer count = shared.get(j);
+                        shared.put(j, count == null ? 1 : count + 1);
+                    }
+                }
+            }
+            for (Map.Entry<Integer, Integer> entry : shared.entrySet()) {
+                int j = entry.getKey();
+                if (entry.getValue() >= 4 && prints[i].similarity(prints[j]) >= SIMILAR_THRESHOLD) {
+                    union(parent, i, j);
+                }
+            }
+        }
+        
+        LinkedHashMap<Integer, IntList> members = new LinkedHashMap<>();
+        for (int i = 0; i < n; i++) {
+            if (prints[i] == null) continue;
+            int root = find(parent, i);
+            IntList list = members.get(root);
+            if (list == null) {
+                list = new IntList(2);
+                members.put(root, list);
+            }
+            list.add(i);
+        }
+        ArrayList<DuplicateGroup> groups = new ArrayList<>();
+        for (IntList list : members.values()) {
+            if (list.size() < 2) continue;
+            ArrayList<LibraryBook> grouped = new ArrayList<>();
+            boolean sameFile = true;
+            boolean sameText = true;
+            double similarity = 1;
+            BookFingerprint first = prints[list.get(0)];
+            for (int k = 0; k < list.size(); k++) {
+                BookFingerprint print = prints[list.get(k)];
+                grouped.add(books.get(list.get(k)));
+                sameFile &= print.getSampled().equals(first.getSampled());
+                sameText &= print.getTextHash() == first.getTextHash();
+                similarity = Math.min(similarity, first.similarity(print));
+            }
+            String reason = sameFile ? "文件相同" : sameText ? "文字相同（编码或排版不同）"
+                : similarity > 0.99 ? "内容几乎相同" : "内容相似 " + Math.round(similarity * 100) + "%";
+            groups.add(new DuplicateGroup(reason, grouped));
+        }
+        return groups;
+    }
+    
+    private static int find(int[] parent, int i) {
+        while (parent[i] != i) {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+    
+    private static void union(int[] parent, int a, int b) {
+        parent[find(parent, a)] = find(parent, b);
+    }
+}
+
+// 一本书的书签和自动记录的阅读位置
+class BookMarks {
+    private ArrayList<Bookmark> bookmarks = new ArrayList<>();
+    private int lastLine = -1;
+    
+    public ArrayList<Bookmark> getBookmarks() { return bookmarks; }
+    public int getLastLine() { return lastLine; }
+    public void setLastLine(int lastLine) { this.lastLine = lastLine; }
+}
+
+// 书签存储：每本书一个文件，以内容指纹命名，打开书时只读这一本的书签
+// 修改后合并到后台线程上延迟写盘，同一本书多次修改只写一次
+class BookmarkStore {
+    private static final int MAGIC = 0x5458424D;
+    private static final int VERSION = 2;
+    private static final long WRITE_DELAY_MS = 500;
+    // 阅读位置变化频繁，最多每隔几秒写一次
+    private static final long POSITION_WRITE_DELAY_MS = 3000;
+    
+    private Path dir;
+    private HashMap<String, BookMarks> books = new HashMap<>();
+    private LinkedHashSet<String> dirty = new LinkedHashSet<>();
+    private ScheduledExecutorService writer;
+    
+    public BookmarkStore(Path dir) {
+        this.dir = dir;
+        writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "bookmark-store");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                close();
+            }
+        }, "bookmark-store-shutdown"));
+    }
+    
+    public synchronized ArrayList<Bookmark> getAll(String bookKey) {
+        return new ArrayList<>(marks(bookKey).getBookmarks());
+    }
+    
+    // 最近添加的书签，没有时返回null
+    public synchronized Bookmark getLatest(String bookKey) {
+        Bookmark latest = null;
+        for (Bookmark bookmark : marks(bookKey).getBookmarks()) {
+            if (latest == null || !bookmark.getCreateTime().before(latest.getCreateTime())) {
+                latest = bookmark;
+            }
+        }
+        return latest;
+    }
+    
+    public synchronized void add(String bookKey, Bookmark bookmark) {
+        marks(bookKey).getBookmarks().add(bookmark);
+        markDirty(bookKey, WRITE_DELAY_MS);
+    }
+    
+    public synchronized void remove(String bookKey, Bookmark bookmark) {
+        if (marks(bookKey).getBookmarks().remove(bookmark)) {
+            markDirty(bookKey, WRITE_DELAY_MS);
+        }
+    }
+    
+    // 上次读到的行，没有记录时返回-1
+    public synchronized int getLastLine(String bookKey) {
+        return marks(bookKey).getLastLine();
+    }
+    
+    public synchronized void setLastLine(String bookKey, int line) {
+        BookMarks marks = marks(bookKey);
+        if (marks.getLastLine() != line) {
+            marks.setLastLine(line);
+            markDirty(bookKey, POSITION_WRITE_DELAY_MS);
+        }
+    }
+    
+    private BookMarks marks(String bookKey) {
+        BookMarks marks = books.get(bookKey);
+        if (marks == null) {
+            marks = read(bookKey);
+            books.put(bookKey, marks);
+        }
+        return marks;
+    }
+    
+    private Path pathOf(String bookKey) {
+        return dir.resolve(bookKey + ".bm");
+    }
+    
+    private BookMarks read(String bookKey) {
+        BookMarks marks = new BookMarks();
+        Path path = pathOf(bookKey);
+        if (!Files.exists(path)) return marks;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC) return marks;
+            int version = in.readInt();
+            if (version > VERSION) return marks;
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                marks.getBookmarks().add(new Bookmark(in.readUTF(), in.readInt(), new Date(in.readLong())));
+            }
+            if (version >= 2) {
+                marks.setLastLine(in.readInt());
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return marks;
+    }
+    
+    // 已有待写的修改时跟着一起写，不再另排
+    private void markDirty(String bookKey, long delayMs) {
+        if (dirty.isEmpty()) {
+            writer.schedule(new Runnable() {
+                public void run() {
+                    flush();
+                }
+            }, delayMs, TimeUnit.MILLISECONDS);
+        }
+        dirty.add(bookKey);
+    }
+    
+    private void flush() {
+        HashMap<String, BookMarks> changed = new HashMap<>();
+        synchronized (this) {
+            for (String bookKey : dirty) {
+                BookMarks marks = books.get(bookKey);
+                BookMarks copy = new BookMarks();
+                copy.getBookmarks().addAll(marks.getBookmarks());
+                copy.setLastLine(marks.getLastLine());
+                changed.put(bookKey, copy);
+            }
+            dirty.clear();
+        }
+        for (Map.Entry<String, BookMarks> entry : changed.entrySet()) {
+            try {
+                write(entry.getKey(), entry.getValue());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+    
+    private void write(String bookKey, BookMarks marks) throws IOException {
+        Path path = pathOf(bookKey);
+        if (marks.getBookmarks().isEmpty() && marks.getLastLine() < 0) {
+            Files.deleteIfExists(path);
+            return;
+        }
+        Files.createDirectories(dir);
+        Path temp = dir.resolve(bookKey + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(marks.getBookmarks().size());
+            for (Bookmark bookmark : marks.getBookmarks()) {
+                out.writeUTF(bookmark.getName());
+                out.writeInt(bookmark.getLineNumber());
+                out.writeLong(bookmark.getCreateTime().getTime());
+            }
+            out.writeInt(marks.getLastLine());
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    // 退出前写完所有未写盘的修改
+    public void close() {
+        try {
+            writer.submit(new Runnable() {
+                public void run() {
+                    flush();
+                }
+            }).get(5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
+
+// 内存映射文本文件，按段映射以支持超过2GB的文件
+class MappedTextFile implements BookStorage {
+    private static final long SEGMENT_SIZE = 1L << 30;
+    
+    private Path path;
+    private FileChannel channel;
+    private MappedByteBuffer[] segments;
+    private long size;
+    
+    public MappedTextFile(Path path) throws IOException {
+        this(path, path);
+    }
+    
+    // 映射mapped，getPath返回source，用于从压缩包解压出来的文件
+    public MappedTextFile(Path mapped, Path source) throws IOException {
+        this.path = source;
+        channel = FileChannel.open(mapped, StandardOpenOption.READ);
+        size = channel.size();
+        int count = (int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        segments = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long start = i * SEGMENT_SIZE;
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+        }
+    }
+    
+    public long size() { return size; }
+    public Path getPath() { return path; }
+    
+    public byte get(long position) {
+        return segments[(int) (position / SEGMENT_SIZE)].get((int) (position % SEGMENT_SIZE));
+    }
+    
+    // 从from开始查找字节value，找不到返回-1
+    public long indexOf(byte value, long from) {
+        for (int index = (int) (from / SEGMENT_SIZE); index < segments.length; index++) {
+            MappedByteBuffer segment = segments[index];
+            int limit = segment.limit();
+            int start = index == from / SEGMENT_SIZE ? (int) (from % SEGMENT_SIZE) : 0;
+            for (int i = start; i < limit; i++) {
+                if (segment.get(i) == value) {
+                    return index * SEGMENT_SIZE + i;
+                }
+            }
+        }
+        return -1;
+    }
+    
+    // 返回指定区间的只读视图，跨段时复制到堆内缓冲区
+    public ByteBuffer slice(long start, int length) {
+        if (length == 0) {
+            return ByteBuffer.allocate(0);
+        }
+        int index = (int) (start / SEGMENT_SIZE);
+        int offset = (int) (start % SEGMENT_SIZE);
+        if (offset + length <= segments[index].limit()) {
+            ByteBuffer view = segments[index].duplicate();
+            view.position(offset).limit(offset + length);
+            return view.slice();
+        }
+        byte[] bytes = new byte[length];
+        int copied = 0;
+        while (copied < length) {
+            ByteBuffer view = segments[index].duplicate();
+            view.position(offset);
+            int count = Math.min(view.remaining(), length - copied);
+            view.get(bytes, copied, count);
+            copied += count;
+            index++;
+            offset = 0;
+        }
+        return ByteBuffer.wrap(bytes);
+    }
+    
+    public void close() throws IOException {
+        channel.close();
+    }
+}
+
+// 书的原始字节：BookContent只通过这个接口读取，可以是内存映射的文件、解压出来的文件或分块压缩的文件
+interface BookStorage extends Closeable {
+    long size();
+    
+    // 用户打开的文件，压缩的书是压缩文件本身
+    Path getPath();
+    
+    byte get(long position);
+    
+    // 从from开始查找字节value，找不到返回-1
+    long indexOf(byte value, long from);
+    
+    // 指定区间的只读视图
+    ByteBuffer slice(long start, int length);
+    
+    public static boolean isBookFile(String name) {
+        String lower = name.toLowerCase(Locale.ROOT);
+        return lower.endsWith(".txt") || lower.endsWith(".txt.gz") || lower.endsWith(".zip") || lower.endsWith(BlockCompressedFile.EXTENSION);
+    }
+    
+    // 去掉书文件的扩展名
+    public static String bookName(String fileName) {
+        String lower = fileName.toLowerCase(Locale.ROOT);
+        for (String extension : new String[] {".txt.gz", BlockCompressedFile.EXTENSION, ".zip", ".txt", ".gz"}) {
+            if (lower.endsWith(extension)) {
+                return fileName.substring(0, fileName.length() - extension.length());
+            }
+        }
+        return fileName;
+    }
+    
+    // 按扩展名选择读取方式：.txtz按块解压，.gz和.zip解压到缓存目录后映射，其余直接映射
+    public static BookStorage open(Path path) throws IOException {
+        String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        if (name.endsWith(BlockCompressedFile.EXTENSION)) {
+            return new BlockCompressedFile(path);
+        }
+        if (name.endsWith(".gz") || name.endsWith(".zip")) {
+            return new MappedTextFile(ArchiveUnpacker.unpack(path), path);
+        }
+        return new MappedTextFile(path);
+    }
+}
+
+// .txt.gz和.zip里的书整个解压到缓存目录，源文件没变时直接用上次解压的结果
+class ArchiveUnpacker {
+    public static Path unpack(Path archive) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(archive, BasicFileAttributes.class);
+        Path dir = AppDirs.cacheDir().resolve("unpacked");
+        String key = AppDirs.hashName(archive.toAbsolutePath().normalize() + "|" + attrs.size() + "|" + attrs.lastModifiedTime().toMillis());
+        Path target = dir.resolve(key + ".txt");
+        if (Files.exists(target)) return target;
+        
+        Files.createDirectories(dir);
+        Path temp = Files.createTempFile(dir, key, ".tmp");
+        try {
+            if (archive.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".zip")) {
+                unzip(archive, temp);
+            } else {
+                try (InputStream in = new GZIPInputStream(Files.newInputStream(archive), 64 * 1024)) {
+                    Files.copy(in, temp, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        return target;
+    }
+    
+    // 压缩包里有多个文件时取最大的TXT文件，没有TXT时取最大的文件
+    private static void unzip(Path archive, Path target) throws IOException {
+        try (ZipFile zip = new ZipFile(archive.toFile())) {
+            ZipEntry best = null;
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.isDirectory()) continue;
+                boolean text = entry.getName().toLowerCase(Locale.ROOT).endsWith(".txt");
+                boolean bestText = best != null && best.getName().toLowerCase(Locale.ROOT).endsWith(".txt");
+                if (best == null || text && !bestText || text == bestText && entry.getSize() > best.getSize()) {
+                    best = entry;
+                }
+            }
+            if (best == null) {
+                throw new IOException("压缩包里没有文件: " + archive);
+            }
+            try (InputStream in = zip.getInputStream(best)) {
+                Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+}
+
+// 分块压缩的书：原文按固定大小分块，各块单独用Deflate压缩，跳转时只解压用到的块
+// 格式：魔数, 版本, 各块的压缩数据, 块表(每块的压缩偏移和长度), 章节规则签名和加载结果(编码、指纹、行索引、章节),
+// 文件尾(原文大小, 块大小, 块数, 块表偏移, 加载结果偏移, 魔数)
+class BlockCompressedFile implements BookStorage {
+    public static final String EXTENSION = ".txtz";
+    public static final int MAGIC = 0x5458545a;
+    public static final int VERSION = 1;
+    public static final int TRAILER_BYTES = 36;
+    // 最近用过的块留在内存里
+    private static final int CACHED_BLOCKS = 16;
+    
+    private Path path;
+    private FileChannel channel;
+    private long size;
+    private int blockSize;
+    private long[] offsets;
+    private int[] lengths;
+    private long metaOffset;
+    private LinkedHashMap<Integer, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+    // 上一次用到的块，顺序读取时不用查缓存
+    private volatile Block last;
+    
+    private static class Block {
+        final int index;
+        final byte[] data;
+        
+        Block(int index, byte[] data) {
+            this.index = index;
+            this.data = data;
+        }
+    }
+    
+    public BlockCompressedFile(Path path) throws IOException {
+        this.path = path;
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long fileSize = channel.size();
+            if (fileSize < 8 + TRAILER_BYTES || readAt(0, 4).getInt() != MAGIC) {
+                throw new IOException("不是分块压缩的书: " + path);
+            }
+            if (readAt(4, 4).getInt() != VERSION) {
+                throw new IOException("不支持的分块压缩格式版本: " + path);
+            }
+            ByteBuffer trailer = readAt(fileSize - TRAILER_BYTES, TRAILER_BYTES);
+            size = trailer.getLong();
+            blockSize = trailer.getInt();
+            int count = trailer.getInt();
+            long tableOffset = trailer.getLong();
+            metaOffset = trailer.getLong();
+            if (trailer.getInt() != MAGIC) {
+                throw new IOException("分块压缩的书不完整: " + path);
+            }
+            ByteBuffer table = readAt(tableOffset, count * 12);
+            offsets = new long[count];
+            lengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                offsets[i] = table.getLong();
+                lengths[i] = table.getInt();
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+    
+    private ByteBuffer readAt(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException(path.toString());
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+    
+    public long size() { return size; }
+    public Path getPath() { return path; }
+    public int getBlockCount() { return offsets.length; }
+    
+    // 转换时写入的加载结果，章节规则和转换时不同时返回null
+    public synchronized BookMeta readMeta(long rulesSignature) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(metaOffset)), 64 * 1024));
+        if (in.readLong() != rulesSignature) return null;
+        return BookMeta.read(in);
+    }
+    
+    private byte[] block(int index) {
+        Block recent = last;
+        if (recent != null && recent.index == index) return recent.data;
+        byte[] data;
+        synchronized (cache) {
+            data = cache.get(index);
+        }
+        if (data == null) {
+            // 解压不持有锁，并行扫描章节时各线程可以同时解压不同的块
+            data = inflate(index);
+            synchronized (cache) {
+                cache.put(index, data);
+                Iterator<Integer> it = cache.keySet().iterator();
+                while (cache.size() > CACHED_BLOCKS && it.hasNext()) {
+                    it.next();
+                    it.remove();
+                }
+            }
+        }
+        last = new Block(index, data);
+        return data;
+    }
+    
+    private byte[] inflate(int index) {
+        int rawLength = (int) Math.min(blockSize, size - (long) index * blockSize);
+        byte[] data = new byte[rawLength];
+        Inflater inflater = new Inflater();
+        try {
+            ByteBuffer compressed = readAt(offsets[index], lengths[index]);
+            inflater.setInput(compressed.array(), 0, lengths[index]);
+            int filled = 0;
+            while (filled < rawLength && !inflater.finished()) {
+                int count = inflater.inflate(data, filled, rawLength - filled);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                filled += count;
+            }
+            if (filled != rawLength) {
+                throw new IOException("压缩块" + index + "长度不对");
+            }
+            return data;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (DataFormatException e) {
+            throw new UncheckedIOException(new IOException("压缩块" + index + "已损坏", e));
+        } finally {
+            inflater.end();
+        }
+    }
+    
+    public byte get(long position) {
+        return block((int) (position / blockSize))[(int) (position % blockSize)];
+    }
+    
+    public long indexOf(byte value, long from) {
+        for (int index = (int) (from / blockSize); index < offsets.length; index++) {
+            byte[] data = block(index);
+            int start = index == from / blockSize ? (int) (from % blockSize) : 0;
+            for (int i = start; i < data.length; i++) {
+                if (data[i] == value) {
+                    return (long) index * blockSize + i;
+                }
+            }
+        }
+        return -1;
+    }
+    
+    // 在一块之内时直接返回块的视图，跨块时复制
+    public ByteBuffer slice(long start, int length) {
+        if (length == 0) {
+            return ByteBuffer.allocate(0);
+        }
+        int index = (int) (start / blockSize);
+        int offset = (int) (start % blockSize);
+        byte[] data = block(index);
+        if (offset + length <= data.length) {
+            return ByteBuffer.wrap(data, offset, length).slice().asReadOnlyBuffer();
+        }
+        byte[] bytes = new byte[length];
+        int copied = 0;
+        while (copied < length) {
+            int count = Math.min(data.length - offset, length - copied);
+            System.arraycopy(data, offset, bytes, copied, count);
+            copied += count;
+            data = copied < length ? block(++index) : data;
+            offset = 0;
+        }
+        return ByteBuffer.wrap(bytes);
+    }
+    
+    public void close() throws IOException {
+        channel.close();
+    }
+}
+
+// 把TXT（也可以是.gz或.zip）转换成分块压缩格式，同时写入编码、指纹、行索引和章节，打开时不用再扫描全书
+class BlockCompressor {
+    public static final int BLOCK_SIZE = 256 * 1024;
+    
+    public static void convert(Path source, Path target, ArrayList<ChapterRule> rules) throws IOException {
+        try (BookContent content = BookContent.open(source, null)) {
+            ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+            ArrayList<Chapter> chapters;
+            try {
+                chapters = new ChapterScanner(rules, pool).scan(content, content.getLineIndex(), new LoadTask(null), new AtomicLong());
+            } finally {
+                pool.shutdown();
+            }
+            write(content, BookMetaCache.rulesSignature(rules), BookMeta.of(source, content, content.getLineIndex(), chapters), target);
+        }
+    }
+    
+    private static void write(BookContent content, long rulesSignature, BookMeta meta, Path target) throws IOException {
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try {
+            long size = content.getSize();
+            int count = (int) ((size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+            long[] offsets = new long[count];
+            int[] lengths = new int[count];
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 256 * 1024))) {
+                out.writeInt(BlockCompressedFile.MAGIC);
+                out.writeInt(BlockCompressedFile.VERSION);
+                long position = 8;
+                Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+                byte[] raw = new byte[BLOCK_SIZE];
+                byte[] compressed = new byte[BLOCK_SIZE + BLOCK_SIZE / 8 + 64];
+                try {
+                    for (int i = 0; i < count; i++) {
+                        int length = (int) Math.min(BLOCK_SIZE, size - (long) i * BLOCK_SIZE);
+                        content.bytes((long) i * BLOCK_SIZE, length).get(raw, 0, length);
+                        deflater.reset();
+                        deflater.setInput(raw, 0, length);
+                        deflater.finish();
+                        offsets[i] = position;
+                        while (!deflater.finished()) {
+                            int produced = deflater.deflate(compressed);
+                            out.write(compressed, 0, produced);
+                            lengths[i] += produced;
+                        }
+                        position += lengths[i];
+                    }
+                } finally {
+                    deflater.end();
+                }
+                long tableOffset = position;
+                for (int i = 0; i < count; i++) {
+                    out.writeLong(offsets[i]);
+                    out.writeInt(lengths[i]);
+                }
+                long metaOffset = tableOffset + count * 12L;
+                out.writeLong(rulesSignature);
+                meta.write(out);
+                out.writeLong(size);
+                out.writeInt(BLOCK_SIZE);
+                out.writeInt(count);
+                out.writeLong(tableOffset);
+                out.writeLong(metaOffset);
+                out.writeInt(BlockCompressedFile.MAGIC);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
+
+// 行偏移索引：记录每行的起始字节和起始字符（按\n连接后的文本计算），两个方向都用二分查找
+class LineIndex {
+    private long[] byteStarts;
+    private long[] charStarts;
+    // 从缓存文件映射的索引直接读映射的内存，不复制到数组
+    private LongBuffer mappedByteStarts;
+    private LongBuffer mappedCharStarts;
+    private int lineCount;
+    private long totalBytes;
+    private long totalChars;
+    
+    public LineIndex() {
+        this(0);
+    }
+    
+    // firstByte为第一行的起始字节，用于跳过BOM
+    public LineIndex(long firstByte) {
+        byteStarts = new long[1024];
+        charStarts = new long[1024];
+        totalBytes = firstByte;
+    }
+    
+    private LineIndex(long[] byteStarts, long[] charStarts, int lineCount, long totalBytes, long totalChars) {
+        this.byteStarts = byteStarts;
+        this.charStarts = charStarts;
+        this.lineCount = lineCount;
+        this.totalBytes = totalBytes;
+        this.totalChars = totalChars;
+    }
+    
+    // byteStarts和charStarts各有lineCount个元素
+    public static LineIndex mapped(LongBuffer byteStarts, LongBuffer charStarts, int lineCount, long totalBytes, long totalChars) {
+        LineIndex index = new LineIndex(null, null, lineCount, totalBytes, totalChars);
+        index.mappedByteStarts = byteStarts;
+        index.mappedCharStarts = charStarts;
+        return index;
+    }
+    
+    // 追加一行：字节到byteEnd为止（含换行符），内容有charLength个字符
+    public void addLine(long byteEnd, int charLength) {
+        if (mappedByteStarts != null) {
+            byteStarts = new long[Math.max(1024, lineCount * 2)];
+            charStarts = new long[byteStarts.length];
+            mappedByteStarts.get(0, byteStarts, 0, lineCount);
+            mappedCharStarts.get(0, charStarts, 0, lineCount);
+            mappedByteStarts = null;
+            mappedCharStarts = null;
+        }
+        if (lineCount == byteStarts.length) {
+            byteStarts = Arrays.copyOf(byteStarts, lineCount * 2);
+            charStarts = Arrays.copyOf(charStarts, lineCount * 2);
+        }
+        long charStart = lineCount == 0 ? 0 : totalChars + 1;
+        byteStarts[lineCount] = totalBytes;
+        charStarts[lineCount] = charStart;
+        lineCount++;
+        totalBytes = byteEnd;
+        totalChars = charStart + charLength;
+    }
+    
+    // 只读快照，与当前索引共享数组：已写入的元素不会再改，扩容时会换成新数组
+    public LineIndex snapshot() {
+        LineIndex snapshot = new LineIndex(byteStarts, charStarts, lineCount, totalBytes, totalChars);
+        snapshot.mappedByteStarts = mappedByteStarts;
+        snapshot.mappedCharStarts = mappedCharStarts;
+        return snapshot;
+    }
+    
+    // 每行只写字节数和字符数两个变长整数
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeLong(lineCount > 0 ? getByteStart(0) : totalBytes);
+        out.writeInt(lineCount);
+        for (int line = 0; line < lineCount; line++) {
+            IndexSegmentWriter.writeVarint(out, (int) (getByteEnd(line) - getByteStart(line)));
+            IndexSegmentWriter.writeVarint(out, (int) (getCharEnd(line) - getCharStart(line)));
+        }
+    }
+    
+    public static LineIndex readFrom(DataInputStream in) throws IOException {
+        LineIndex index = new LineIndex(in.readLong());
+        int count = in.readInt();
+        for (int line = 0; line < count; line++) {
+            long byteEnd = index.getTotalBytes() + IndexSegmentWriter.readVarint(in);
+            index.addLine(byteEnd, IndexSegmentWriter.readVarint(in));
+        }
+        return index;
+    }
+    
+    public int getLineCount() { return lineCount; }
+    public long getTotalBytes() { return totalBytes; }
+    public long getTotalChars() { return totalChars; }
+    
+    public boolean isMapped() { return mappedByteStarts != null; }
+    
+    public long getByteStart(int line) {
+        return mappedByteStarts != null ? mappedByteStarts.get(line) : byteStarts[line];
+    }
+    
+    public long getCharStart(int line) {
+        return mappedCharStarts != null ? mappedCharStarts.get(line) : charStarts[line];
+    }
+    
+    public long getByteEnd(int line) {
+        return line + 1 < lineCount ? getByteStart(line + 1) : totalBytes;
+    }
+    
+    public long getCharEnd(int line) {
+        return line + 1 < lineCount ? getCharStart(line + 1) - 1 : totalChars;
+    }
+    
+    public int lineAtByte(long position) {
+        return mappedByteStarts != null ? search(mappedByteStarts, position) : search(byteStarts, position);
+    }
+    
+    public int lineAtChar(long position) {
+        return mappedCharStarts != null ? search(mappedCharStarts, position) : search(charStarts, position);
+    }
+    
+    // 返回起始位置不大于position的最后一行
+    private int search(long[] starts, long position) {
+        if (lineCount == 0) return 0;
+        int index = Arrays.binarySearch(starts, 0, lineCount, position);
+        if (index < 0) {
+            index = -index - 2;
+        }
+        return Math.max(0, index);
+    }
+    
+    private int search(LongBuffer starts, long position) {
+        int low = 0;
+        int high = lineCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (starts.get(mid) <= position) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return Math.max(0, high);
+    }
+}
+
+// 行解码器：复用CharsetDecoder和字符缓冲区，避免每行创建新对象
+class LineDecoder {
+    private CharsetDecoder decoder;
+    private CharBuffer buffer;
+    
+    public LineDecoder(Charset charset) {
+        decoder = charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        buffer = CharBuffer.allocate(1024);
+    }
+    
+    // 返回的缓冲区在下次调用前有效
+    public CharBuffer decode(ByteBuffer in) {
+        int capacity = (int) (in.remaining() * (double) decoder.maxCharsPerByte()) + 1;
+        if (buffer.capacity() < capacity) {
+            buffer = CharBuffer.allocate(Math.max(capacity, buffer.capacity() * 2));
+        }
+        buffer.clear();
+        decoder.reset();
+        decoder.decode(in, buffer, true);
+        decoder.flush(buffer);
+        buffer.flip();
+        return buffer;
+    }
+}
+
+// 编码检测：先看BOM，再对文件开头取样做统计判断
+class CharsetDetector {
+    public static final Charset GB18030 = Charset.forName("GB18030");
+    public static final Charset BIG5 = Charset.forName("Big5");
+    
+    private static final int SAMPLE_BYTES = 256 * 1024;
+    // 无BOM的UTF-16统计判断至少需要的编码单元数
+    private static final int MIN_UTF16_UNITS = 64;
+    // 简繁体中文里最常见的字，用于区分GB18030和Big5的解码结果
+    private static final String COMMON_CHARS = "的一是不了人我在有他这中大来上个国到说们为子和你地出道也时年着就那要下以生会自过家么里后小心多天而能好都然没日于起还发成事只作当想看文无开手十用主行方又如前所本见经头面公同三已老从动两长知民样现分将外但身些与高意进把法此实回二理美点月明其种声全工己话儿者向情部正名定女问力机给等几很业最间新什打便位因重被走电四第门相次东政海口使教西再平真听世气信北少关并内加化由却代军产入先山五太水万市眼体别处总才场师书比住员九笑性通目华报立马命张活难神数件安表原车白应路期叫死常提感金何更反合放做系计或司利受光王果亲界及今京务制解各任至清物台象记边共风战干接它许八特觉望直服毛林题建南度统色字请交爱让认算论百吃义科怎元社术结六功指思非流每青管夫连远资队跟带花快条院变联言权往展该领传近留红治决周保达办运武半候七必城父强步完革深区即求品士转量空甚众技轻程告江语英基派满式李息写呢识极令黄德收脸钱党倒未持取设始版双历越史商千片容研像找友孩站广改议形委早房音火际则首单据导影失拿网香似斯专石若兵弟谁校读志飞观争究包组造落视济喜离虽坏兴切务树";
+    
+    // 返回检测到的编码，纯ASCII按UTF-8处理
+    public static Charset detect(BookStorage file) {
+        Charset bom = charsetFromBom(file);
+        if (bom != null) {
+            return bom;
+        }
+        ByteBuffer sample = file.slice(0, (int) Math.min(file.size(), SAMPLE_BYTES));
+        Charset utf16 = guessUtf16(sample.duplicate());
+        if (utf16 != null) {
+            return utf16;
+        }
+        if (isValid(sample.duplicate(), StandardCharsets.UTF_8)) {
+            return StandardCharsets.UTF_8;
+        }
+        return score(sample.duplicate(), BIG5) > score(sample.duplicate(), GB18030) ? BIG5 : GB18030;
+    }
+    
+    public static Charset charsetFromBom(BookStorage file) {
+        long size = file.size();
+        if (size >= 3 && file.get(0) == (byte) 0xEF && file.get(1) == (byte) 0xBB && file.get(2) == (byte) 0xBF) {
+            return StandardCharsets.UTF_8;
+        }
+        if (size >= 2 && file.get(0) == (byte) 0xFF && file.get(1) == (byte) 0xFE) {
+            return StandardCharsets.UTF_16LE;
+        }
+        if (size >= 2 && file.get(0) == (byte) 0xFE && file.get(1) == (byte) 0xFF) {
+            return StandardCharsets.UTF_16BE;
+        }
+        return null;
+    }
+    
+    // 文件以charset对应的BOM开头时返回BOM长度
+    public static int bomLength(BookStorage file, Charset charset) {
+        Charset bom = charsetFromBom(file);
+        if (bom == null || !bom.equals(charset)) {
+            return 0;
+        }
+        return bom.equals(StandardCharsets.UTF_8) ? 3 : 2;
+    }
+    
+    public static boolean isUtf16(Charset charset) {
+        return charset.equals(StandardCharsets.UTF_16LE) || charset.equals(StandardCharsets.UTF_16BE);
+    }
+    
+    // 没有BOM的UTF-16：0字节或常见字符的高字节集中出现在固定的奇偶位置
+    private static Charset guessUtf16(ByteBuffer sample) {
+        int length = sample.remaining() & ~1;
+        int units = length / 2;
+        // 样本太短时统计没有意义，交给UTF-8和GB18030/Big5判断
+        if (units < MIN_UTF16_UNITS) {
+            return null;
+        }
+        int[] zeros = new int[2];
+        int[] highs = new int[2];
+        for (int i = 0; i < length; i++) {
+            byte b = sample.get(i);
+            if (b == 0) zeros[i & 1]++;
+            if (isUtf16High(b)) highs[i & 1]++;
+        }
+        for (int high = 0; high < 2; high++) {
+            int low = 1 - high;
+            boolean ascii = zeros[high] > units * 3 / 10 && zeros[low] < units / 20;
+            boolean cjk = highs[high] > units * 7 / 10 && highs[high] - highs[low] > units * 35 / 100;
+            if (ascii || cjk) {
+                return high == 0 ? StandardCharsets.UTF_16BE : StandardCharsets.UTF_16LE;
+            }
+        }
+        return null;
+    }
+    
+    // 0x00 ASCII，0x20 引号，0x30 中文标点，0x4E-0x9F 常用汉字，0xFF 全角符号
+    private static boolean isUtf16High(byte b) {
+        int value = b & 0xFF;
+        return value == 0x00 || value == 0x20 || value == 0x30 || value == 0xFF || (value >= 0x4E && value <= 0x9F);
+    }
+    
+    // 严格解码样本，末尾被截断的字符不算错误
+    private static boolean isValid(ByteBuffer sample, Charset charset) {
+        CharsetDecoder decoder = charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPORT)
+            .onUnmappableCharacter(CodingErrorAction.REPORT);
+        CharBuffer out = CharBuffer.allocate(8192);
+        while (true) {
+            CoderResult result = decoder.decode(sample, out, false);
+            if (result.isError()) {
+                return false;
+            }
+            if (result.isUnderflow()) {
+                return true;
+            }
+            out.clear();
+        }
+    }
+    
+    // 解码错误扣分，常用汉字加分
+    private static int score(ByteBuffer sample, Charset charset) {
+        CharsetDecoder decoder = charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE)
+            .replaceWith("\uFFFD");
+        CharBuffer chars;
+        try {
+            chars = decoder.decode(sample);
+        } catch (CharacterCodingException e) {
+            return Integer.MIN_VALUE;
+        }
+        int score = 0;
+        int length = chars.remaining();
+        for (int i = 0; i < length; i++) {
+            char c = chars.get(i);
+            if (c == '\uFFFD') {
+                score -= 20;
+            } else if (COMMON_CHARS.indexOf(c) >= 0) {
+                score += 2;
+            } else if (c >= '\u4E00' && c <= '\u9FFF') {
+                score += 1;
+            }
+        }
+        return score;
+    }
+}
+
+// 建立行索引的进度回调，每索引一行调用一次
+interface LineIndexProgress {
+    void lineIndexed(LineIndex building);
+}
+
+// 书籍内容：基于行索引，只解码需要显示的行
+class BookContent implements Closeable {
+    private BookStorage file;
+    private Charset charset;
+    private volatile LineIndex index;
+    // 跳过BOM后的起始字节，以及编码单元的字节数（UTF-16为2）
+    private int dataStart;
+    private int unitBytes;
+    private boolean bigEndian;
+    private volatile String fingerprint;
+    
+    public BookContent(BookStorage file, Charset charset) {
+        this.file = file;
+        this.charset = charset;
+        this.dataStart = CharsetDetector.bomLength(file, charset);
+        this.unitBytes = CharsetDetector.isUtf16(charset) ? 2 : 1;
+        this.bigEndian = charset.equals(StandardCharsets.UTF_16BE);
+        this.index = new LineIndex(dataStart);
+    }
+    
+    public Path getPath() {
+        return file.getPath();
+    }
+    
+    // 从缓存的加载结果恢复时直接使用保存的指纹
+    public void setFingerprint(String fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+    
+    public String getFingerprint() {
+        if (fingerprint == null) {
+            fingerprint = ContentFingerprint.of(file);
+        }
+        return fingerprint;
+    }
+    
+    // charset为null时自动检测编码
+    public static BookContent open(Path path, Charset charset) throws IOException {
+        BookStorage file = BookStorage.open(path);
+        BookContent content = new BookContent(file, charset != null ? charset : CharsetDetector.detect(file));
+        content.setLineIndex(content.buildLineIndex(null));
+        return content;
+    }
+    
+    // 解码每一行统计字符数并建立索引，不修改当前使用的索引
+    public LineIndex buildLineIndex(LineIndexProgress progress) {
+        LineIndex building = new LineIndex(dataStart);
+        LineDecoder decoder = new LineDecoder(charset);
+        long size = file.size();
+        long position = dataStart;
+        // 缓存下一个\n和\r的位置，每个字节只扫描一次
+        long lf = -1;
+        long cr = -1;
+        while (position < size) {
+            if (lf < position) lf = findUnit('\n', position);
+            if (cr < position) cr = findUnit('\r', position);
+            long next = nextLineStart(lf, cr);
+            building.addLine(next, decoder.decode(lineBytes(position, next)).remaining());
+            position = next;
+            if (progress != null) {
+                progress.lineIndexed(building);
+            }
+        }
+        return building;
+    }
+    
+    // 行以\n、\r\n或单独的\r结尾，没有换行符时返回文件大小
+    private long nextLineStart(long lf, long cr) {
+        long size = file.size();
+        long end = Math.min(lf, cr);
+        if (end >= size) {
+            return size;
+        }
+        if (end == cr && lf < size && cr + unitBytes == lf) {
+            return lf + unitBytes;
+        }
+        return end + unitBytes;
+    }
+    
+    // 从from开始找到下一个等于ch的编码单元，没有时返回文件大小
+    private long findUnit(char ch, long from) {
+        long size = file.size();
+        while (true) {
+            long found = file.indexOf((byte) ch, from);
+            if (found < 0) {
+                return size;
+            }
+            if (unitBytes == 1) {
+                return found;
+            }
+            long unit = found - ((found - dataStart) & 1);
+            if (unit + 1 < size && unitAt(unit) == ch) {
+                return unit;
+            }
+            from = found + 1;
+        }
+    }
+    
+    private int unitAt(long position) {
+        if (unitBytes == 1) {
+            return file.get(position) & 0xFF;
+        }
+        int first = file.get(position) & 0xFF;
+        int second = file.get(position + 1) & 0xFF;
+        return bigEndian ? (first << 8) | second : (second << 8) | first;
+    }
+    
+    // 一行的内容字节，不含行尾的\n、\r\n或单独的\r
+    private ByteBuffer lineBytes(long start, long end) {
+        if (end - start >= unitBytes && unitAt(end - unitBytes) == '\n') end -= unitBytes;
+        if (end - start >= unitBytes && unitAt(end - unitBytes) == '\r') end -= unitBytes;
+        return file.slice(start, (int) (end - start));
+    }
+    
+    public int getLineCount() { return index.getLineCount(); }
+    public long getSize() { return file.size(); }
+    public Charset getCharset() { return charset; }
+    public LineIndex getLineIndex() { return index; }
+    public void setLineIndex(LineIndex index) { this.index = index; }
+    
+    // 按给定索引解码一行，供后台线程使用
+    public CharBuffer decodeLine(LineIndex lines, int line, LineDecoder decoder) {
+        return decoder.decode(lineBytes(lines.getByteStart(line), lines.getByteEnd(line)));
+    }
+    
+    public ByteBuffer bytes(long start, int length) {
+        return file.slice(start, length);
+    }
+    
+    // 只解码一行开头最多maxBytes个字节，末尾可能有被截断的替换字符
+    public CharBuffer decodeLinePrefix(LineIndex lines, int line, int maxBytes, LineDecoder decoder) {
+        long start = lines.getByteStart(line);
+        long end = Math.min(lines.getByteEnd(line), start + maxBytes);
+        return decoder.decode(file.slice(start, (int) (end - start)));
+    }
+    
+    public String getLine(int line) {
+        return getText(line, line + 1);
+    }
+    
+    // 解码[fromLine, toLine)之间的行，以\n连接
+    public String getText(int fromLine, int toLine) {
+        if (fromLine >= toLine) {
+            return "";
+        }
+        LineIndex lines = index;
+        LineDecoder decoder = new LineDecoder(charset);
+        StringBuilder sb = new StringBuilder((int) (lines.getCharEnd(toLine - 1) - lines.getCharStart(fromLine)));
+        for (int line = fromLine; line < toLine; line++) {
+            if (line > fromLine) {
+                sb.append('\n');
+            }
+            sb.append(decodeLine(lines, line, decoder));
+        }
+        return sb.toString();
+    }
+    
+    public void close() throws IOException {
+        file.close();
+    }
+}
+
+// 章节规则：预编译的正则和可能的行首字符
+class ChapterRule {
+    private String name;
+    private String regex;
+    private Pattern pattern;
+    private int level;
+    private String leadChars;
+    
+    // leadChars为null时不做行首预过滤
+    public ChapterRule(String name, String regex, int level, String leadChars) {
+        this.name = name;
+        this.regex = regex;
+        this.pattern = Pattern.compile(regex);
+        this.level = level;
+        this.leadChars = leadChars;
+    }
+    
+    // 用户自定义规则：以^加普通字符开头时用该字符做预过滤
+    public static ChapterRule custom(String regex) {
+        String lead = null;
+        if (regex.length() > 1 && regex.charAt(0) == '^' && "\\[](){}.*+?^$|".indexOf(regex.charAt(1)) < 0) {
+            lead = String.valueOf(regex.charAt(1));
+        }
+        return new ChapterRule(regex, regex, Chapter.LEVEL_CHAPTER, lead);
+    }
+    
+    public String getName() { return name; }
+    public String getRegex() { return regex; }
+    public int getLevel() { return level; }
+    public String getLeadChars() { return leadChars; }
+    
+    public boolean matches(CharSequence line) {
+        return pattern.matcher(line).matches();
+    }
+}
+
+// 章节扫描：行首字符预过滤，把大文件按字节分块在ForkJoin线程池中并行扫描，按顺序合并结果
+class ChapterScanner {
+    public static final String RULE_VOLUME = "卷/部";
+    public static final String RULE_CHAPTER = "章/节/回";
+    public static final String RULE_ENGLISH = "Chapter N";
+    public static final String RULE_NUMBERED = "数字编号标题";
+    
+    private static final String RULES_DISABLED_KEY = "chapter_rules_disabled";
+    private static final String RULES_CUSTOM_KEY = "chapter_rules_custom";
+    private static final String NUMERALS = "[零一二三四五六七八九十百千万两〇\\d]+";
+    private static final int PREFIX_BYTES = 64;
+    private static final long CHUNK_BYTES = 4L * 1024 * 1024;
+    
+    private ArrayList<ChapterRule> rules;
+    private boolean[] leadTable;
+    private boolean prefilter;
+    private ForkJoinPool pool;
+    
+    public ChapterScanner(ArrayList<ChapterRule> rules, ForkJoinPool pool) {
+        this.rules = rules;
+        this.pool = pool;
+        this.leadTable = new boolean[65536];
+        this.prefilter = true;
+        for (ChapterRule rule : rules) {
+            if (rule.getLeadChars() == null) {
+                prefilter = false;
+            } else {
+                for (char c : rule.getLeadChars().toCharArray()) {
+                    leadTable[c] = true;
+                }
+            }
+        }
+    }
+    
+    public static ArrayList<ChapterRule> builtInRules() {
+        ArrayList<ChapterRule> rules = new ArrayList<>();
+        rules.add(new ChapterRule(RULE_VOLUME, "^(第" + NUMERALS + "[卷部]|卷" + NUMERALS + ").*", Chapter.LEVEL_VOLUME, "第卷"));
+        rules.add(new ChapterRule(RULE_CHAPTER, "^第" + NUMERALS + "[章节回].*", Chapter.LEVEL_CHAPTER, "第"));
+        rules.add(new ChapterRule(RULE_ENGLISH, "(?i)^chapter\\s*(\\d+|[ivxlc]+)\\b.*", Chapter.LEVEL_CHAPTER, "Cc"));
+        rules.add(new ChapterRule(RULE_NUMBERED, "^\\d{1,4}[、.．]\\s*\\S.{0,30}", Chapter.LEVEL_CHAPTER, "0123456789"));
+        return rules;
+    }
+    
+    // 从设置中读取启用的规则；数字编号标题容易误判，默认不启用
+    public static ArrayList<ChapterRule> loadRules(Preferences prefs) {
+        Set<String> disabled = new HashSet<>(Arrays.asList(prefs.get(RULES_DISABLED_KEY, RULE_NUMBERED).split("\n")));
+        ArrayList<ChapterRule> rules = new ArrayList<>();
+        for (ChapterRule rule : builtInRules()) {
+            if (!disabled.contains(rule.getName())) {
+                rules.add(rule);
+            }
+        }
+        for (String regex : prefs.get(RULES_CUSTOM_KEY, "").split("\n")) {
+            if (!regex.trim().isEmpty()) {
+                try {
+                    rules.add(ChapterRule.custom(regex.trim()));
+                } catch (PatternSyntaxException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return rules;
+    }
+    
+    public static void saveRules(Preferences prefs, Collection<String> disabledNames, Collection<String> customRegexes) {
+        prefs.put(RULES_DISABLED_KEY, String.join("\n", disabledNames));
+        prefs.put(RULES_CUSTOM_KEY, String.join("\n", customRegexes));
+    }
+    
+    // 扫描全书，scannedLines累计已扫描的行数，供调用方显示进度
+    public ArrayList<Chapter> scan(BookContent content, LineIndex index, LoadTask task, AtomicLong scannedLines) {
+        if (rules.isEmpty() || index.getLineCount() == 0) {
+            return new ArrayList<>();
+        }
+        return pool.invoke(new ScanTask(content, index, 0, index.getLineCount(), task, scannedLines));
+    }
+    
+    private class ScanTask extends RecursiveTask<ArrayList<Chapter>> {
+        private BookContent content;
+        private LineIndex index;
+        private int fromLine;
+        private int toLine;
+        private LoadTask task;
+        private AtomicLong scannedLines;
+        
+        ScanTask(BookContent content, LineIndex index, int fromLine, int toLine, LoadTask task, AtomicLong scannedLines) {
+            this.content = content;
+            this.index = index;
+            this.fromLine = fromLine;
+            this.toLine = toLine;
+            this.task = task;
+            this.scannedLines = scannedLines;
+        }
+        
+        protected ArrayList<Chapter> compute() {
+            long bytes = index.getByteEnd(toLine - 1) - index.getByteStart(fromLine);
+            if (bytes > CHUNK_BYTES && toLine - fromLine > 1) {
+                int middle = index.lineAtByte(index.getByteStart(fromLine) + bytes / 2);
+                middle = Math.max(fromLine + 1, Math.min(middle, toLine - 1));
+                ScanTask left = new ScanTask(content, index, fromLine, middle, task, scannedLines);
+                ScanTask right = new ScanTask(content, index, middle, toLine, task, scannedLines);
+                left.fork();
+                ArrayList<Chapter> rightResult = right.compute();
+                ArrayList<Chapter> result = left.join();
+                result.addAll(rightResult);
+                return result;
+            }
+            return scanRange();
+        }
+        
+        private ArrayList<Chapter> scanRange() {
+            ArrayList<Chapter> found = new ArrayList<>();
+            LineDecoder decoder = new LineDecoder(content.getCharset());
+            for (int line = fromLine; line < toLine; line++) {
+                if (((line - fromLine) & 1023) == 0 && task != null) {
+                    task.checkCancelled();
+                }
+                if (prefilter) {
+                    char lead = firstNonBlank(content.decodeLinePrefix(index, line, PREFIX_BYTES, decoder));
+                    if (lead != 0 && !leadTable[lead]) {
+                        continue;
+                    }
+                }
+                String text = stripBlank(content.decodeLine(index, line, decoder));
+                if (text.isEmpty()) {
+                    continue;
+                }
+                for (ChapterRule rule : rules) {
+                    if (rule.matches(text)) {
+                        found.add(new Chapter(text, line, rule.getLevel()));
+                        break;
+                    }
+                }
+            }
+            if (scannedLines != null) {
+                scannedLines.addAndGet(toLine - fromLine);
+            }
+            return found;
+        }
+    }
+    
+    private static boolean isBlank(char c) {
+        return c <= ' ' || c == '　' || Character.isWhitespace(c);
+    }
+    
+    // 返回第一个非空白字符，整个前缀都是空白时返回0
+    private static char firstNonBlank(CharBuffer chars) {
+        int length = chars.remaining();
+        for (int i = 0; i < length; i++) {
+            char c = chars.get(i);
+            if (!isBlank(c)) {
+                return c;
+            }
+        }
+        return 0;
+    }
+    
+    // 去掉首尾空白，包括全角空格
+    private static String stripBlank(CharBuffer chars) {
+        int start = 0;
+        int end = chars.remaining();
+        while (start < end && isBlank(chars.get(start))) start++;
+        while (end > start && isBlank(chars.get(end - 1))) end--;
+        return chars.subSequence(start, end).toString();
+    }
+}
+
+// 章节规则设置对话框
+class ChapterRuleDialog extends JDialog {
+    private Preferences prefs;
+    private ArrayList<JCheckBox> ruleBoxes;
+    private JTextArea customArea;
+    private boolean saved;
+    
+    public ChapterRuleDialog(JFrame parent, Preferences prefs) {
+        super(parent, "章节规则", true);
+        this.prefs = prefs;
+        initComponents();
+        pack();
+        setSize(420, 360);
+        setLocationRelativeTo(parent);
+    }
+    
+    private void initComponents() {
+        setLayout(new BorderLayout());
+        
+        Set<String> enabled = new HashSet<>();
+        StringBuilder custom = new StringBuilder();
+        for (ChapterRule rule : ChapterScanner.loadRules(prefs)) {
+            enabled.add(rule.getName());
+            if (rule.getName().equals(rule.getRegex())) {
+                custom.append(rule.getRegex()).append("\n");
+            }
+        }
+        
+        JPanel rulePanel = new JPanel(new GridLayout(0, 1));
+        rulePanel.setBorder(BorderFactory.createTitledBorder("内置规则"));
+        ruleBoxes = new ArrayList<>();
+        for (ChapterRule rule : ChapterScanner.builtInRules()) {
+            JCheckBox box = new JCheckBox(rule.getName(), enabled.contains(rule.getName()));
+            ruleBoxes.add(box);
+            rulePanel.add(box);
+        }
+        
+        customArea = new JTextArea(custom.toString());
+        JScrollPane customPane = new JScrollPane(customArea);
+        customPane.setBorder(BorderFactory.createTitledBorder("自定义正则（每行一条）"));
+        
+        JPanel buttonPanel = new JPanel(new FlowLayout());
+        JButton okButton = new JButton("确定");
+        JButton cancelButton = new JButton("取消");
+        
+        okButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                saveRules();
+            }
+        });
+        cancelButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                dispose();
+            }
+        });
+        
+        buttonPanel.add(okButton);
+        buttonPanel.add(cancelButton);
+        
+        add(rulePanel, BorderLayout.NORTH);
+        add(customPane, BorderLayout.CENTER);
+        add(buttonPanel, BorderLayout.SOUTH);
+    }
+    
+    private void saveRules() {
+        ArrayList<String> disabled = new ArrayList<>();
+        for (JCheckBox box : ruleBoxes) {
+            if (!box.isSelected()) {
+                disabled.add(box.getText());
+            }
+        }
+        ArrayList<String> custom = new ArrayList<>();
+        for (String regex : customArea.getText().split("\n")) {
+            if (regex.trim().isEmpty()) continue;
+            try {
+                Pattern.compile(regex.trim());
+                custom.add(regex.trim());
+            } catch (PatternSyntaxException e) {
+                JOptionPane.showMessageDialog(this, "正则表达式有误: " + e.getDescription() + "\n" + regex, "错误", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+        }
+        ChapterScanner.saveRules(prefs, disabled, custom);
+        saved = true;
+        dispose();
+    }
+    
+    public boolean isSaved() { return saved; }
+}
+
+// 文字整理的一步：逐行处理，返回null表示去掉这一行；可以记住前面的行，每段文字用新的实例
+interface LineTransform {
+    String apply(String line);
+}
+
+// 去掉行首行尾的空白（包括全角空格和不换行空格）和行中多余的\r，非空行统一缩进两个全角空格
+class WhitespaceTransform implements LineTransform {
+    public static final String INDENT = "\u3000\u3000";
+    
+    public String apply(String line) {
+        int start = 0;
+        int end = line.length();
+        while (start < end && TextPipeline.isSpace(line.charAt(start))) start++;
+        while (end > start && TextPipeline.isSpace(line.charAt(end - 1))) end--;
+        if (start == end) return "";
+        String core = line.substring(start, end);
+        if (core.indexOf('\r') >= 0) {
+            core = core.replace("\r", "");
+        }
+        return INDENT + core;
+    }
+}
+
+// 连续的空行只保留一个
+class BlankLineTransform implements LineTransform {
+    private boolean previousBlank;
+    
+    public String apply(String line) {
+        boolean blank = line.trim().isEmpty();
+        if (blank && previousBlank) return null;
+        previousBlank = blank;
+        return line;
+    }
+}
+
+// 匹配任一正则的行整行去掉，用于去掉广告和网址
+class LineRemovalTransform implements LineTransform {
+    private Pattern[] patterns;
+    
+    public LineRemovalTransform(Pattern[] patterns) {
+        this.patterns = patterns;
+    }
+    
+    public String apply(String line) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(line).find()) return null;
+        }
+        return line;
+    }
+}
+
+// 整理后的一段文字：保留的行以\n连接，记录每个原始行在文字中的位置，书签、章节和搜索结果仍按原始行号定位
+class TransformedText {
+    private String text;
+    private int fromLine;
+    // 每行在text中的起始字符；去掉的行记为下一个保留行的起始位置，后面没有保留行时为text长度加1
+    private int[] starts;
+    private BitSet removed;
+    // 每行开头增加的字符数（缩进减去去掉的空白），用于换算搜索结果的列；都没有变化时为null
+    private int[] shifts;
+    
+    public TransformedText(String text, int fromLine, int[] starts, BitSet removed, int[] shifts) {
+        this.text = text;
+        this.fromLine = fromLine;
+        this.starts = starts;
+        this.removed = removed;
+        this.shifts = shifts;
+        int next = text.length() + 1;
+        for (int i = starts.length - 1; i >= 0; i--) {
+            if (removed.get(i)) {
+                starts[i] = next;
+            } else {
+                next = starts[i];
+            }
+        }
+    }
+    
+    public String getText() { return text; }
+    public int getFromLine() { return fromLine; }
+    public int getToLine() { return fromLine + starts.length; }
+    
+    public boolean isRemoved(int line) {
+        return removed.get(line - fromLine);
+    }
+    
+    // line在[fromLine, toLine]之间，toLine对应文字末尾
+    public int offsetOf(int line) {
+        int i = line - fromLine;
+        return i < starts.length ? Math.min(starts[i], text.length()) : text.length();
+    }
+    
+    // 包含offset处文字的原始行，总是保留的行（全部去掉时返回第一行）
+    public int lineAt(int offset) {
+        int low = 0;
+        int high = starts.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (starts[middle] <= offset) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        while (low > 0 && removed.get(low)) low--;
+        return fromLine + low;
+    }
+    
+    // 整理后的一行，去掉的行返回null
+    public String lineText(int line) {
+        int i = line - fromLine;
+        if (removed.get(i)) return null;
+        int end = i + 1 < starts.length ? starts[i + 1] - 1 : text.length();
+        return text.substring(starts[i], end);
+    }
+    
+    // 原始行中的列换算成整理后的列
+    public int columnOf(int line, int column) {
+        int i = line - fromLine;
+        int end = i + 1 < starts.length ? starts[i + 1] - 1 : text.length();
+        int shifted = column + (shifts != null ? shifts[i] : 0);
+        return Math.max(0, Math.min(shifted, end - starts[i]));
+    }
+    
+    public long memoryBytes() {
+        return text.length() * 2L + starts.length * 4L + (shifts != null ? shifts.length * 4L : 0);
+    }
+    
+    // 把相邻的几段连成一段，段之间用\n隔开
+    public static TransformedText join(ArrayList<TransformedText> parts) {
+        int lineCount = 0;
+        for (TransformedText part : parts) {
+            lineCount += part.starts.length;
+        }
+        StringBuilder sb = new StringBuilder();
+        int[] starts = new int[lineCount];
+        BitSet removed = new BitSet(lineCount);
+        int[] shifts = null;
+        int base = 0;
+        for (TransformedText part : parts) {
+            int count = part.starts.length;
+            boolean empty = part.removed.nextClearBit(0) >= count;
+            if (!empty && sb.length() > 0) {
+                sb.append('\n');
+            }
+            int offset = sb.length();
+            sb.append(part.text);
+            for (int i = 0; i < count; i++) {
+                if (part.removed.get(i)) {
+                    removed.set(base + i);
+                } else {
+                    starts[base + i] = offset + part.starts[i];
+                }
+                if (part.shifts != null && part.shifts[i] != 0) {
+                    if (shifts == null) shifts = new int[lineCount];
+                    shifts[base + i] = part.shifts[i];
+                }
+            }
+            base += count;
+        }
+        return new TransformedText(sb.toString(), parts.isEmpty() ? 0 : parts.get(0).fromLine, starts, removed, shifts);
+    }
+}
+
+// 双数组Trie：base/check两个int数组表示整棵树，查一个字只要一次加法和一次比较
+// 字符先映射成连续的小编码，编码0留给词尾；check里存父节点加一，0表示空位
+class DoubleArrayTrie {
+    private char[] codes = new char[65536];
+    private int[] base;
+    private int[] check;
+    private int nextFree;
+    private int size;
+    
+    // keys按字符顺序排好且不重复，查到的序号就是键在keys里的下标
+    public DoubleArrayTrie(String[] keys) {
+        TreeSet<Character> alphabet = new TreeSet<>();
+        for (String key : keys) {
+            for (int i = 0; i < key.length(); i++) {
+                alphabet.add(key.charAt(i));
+            }
+        }
+        char next = 1;
+        for (char c : alphabet) {
+            codes[c] = next++;
+        }
+        base = new int[Math.max(1024, keys.length * 2)];
+        check = new int[base.length];
+        check[0] = -1;
+        nextFree = 1;
+        if (keys.length > 0) {
+            insert(0, keys, 0, 0, keys.length);
+        }
+        base = Arrays.copyOf(base, size + 1);
+        check = Arrays.copyOf(check, size + 1);
+    }
+    
+    private int codeAt(String key, int depth) {
+        return depth < key.length() ? codes[key.charAt(depth)] : 0;
+    }
+    
+    // 为节点node安排[from, to)这些键在depth处的子节点，再逐个递归
+    private void insert(int node, String[] keys, int depth, int from, int to) {
+        ArrayList<int[]> children = new ArrayList<>();
+        int i = from;
+        while (i < to) {
+            int code = codeAt(keys[i], depth);
+            int j = i + 1;
+            if (code != 0) {
+                while (j < to && codeAt(keys[j], depth) == code) j++;
+            }
+            children.add(new int[] {code, i, j});
+            i = j;
+        }
+        int begin = findBase(children);
+        base[node] = begin;
+        for (int[] child : children) {
+            check[begin + child[0]] = node + 1;
+            size = Math.max(size, begin + child[0]);
+        }
+        for (int[] child : children) {
+            int position = begin + child[0];
+            if (child[0] == 0) {
+                base[position] = -child[1] - 1;
+            } else {
+                insert(position, keys, depth + 1, child[1], child[2]);
+            }
+        }
+    }
+    
+    // 从第一个空位往后找能放下所有子节点的位置；扫过的位置九成以上都占满了，下次就从这里开始找
+    private int findBase(ArrayList<int[]> children) {
+        int first = children.get(0)[0];
+        while (nextFree < check.length && check[nextFree] != 0) nextFree++;
+        int from = Math.max(nextFree, first + 1);
+        int occupied = 0;
+        for (int position = from; ; position++) {
+            ensureCapacity(position + 1);
+            if (check[position] != 0) {
+                occupied++;
+                continue;
+            }
+            int begin = position - first;
+            boolean fits = true;
+            for (int[] child : children) {
+                ensureCapacity(begin + child[0] + 1);
+                if (check[begin + child[0]] != 0) {
+                    fits = false;
+                    break;
+                }
+            }
+            if (fits) {
+                if (occupied * 20 >= (position - from + 1) * 19) nextFree = position;
+                return begin;
+            }
+        }
+    }
+    
+    private void ensureCapacity(int length) {
+        if (length <= check.length) return;
+        int grown = Math.max(length, check.length * 2);
+        base = Arrays.copyOf(base, grown);
+        check = Arrays.copyOf(check, grown);
+    }
+    
+    // 从start开始的最长匹配：高32位是长度，低32位是键的序号；没有匹配返回-1
+    public long longestMatch(CharSequence text, int start) {
+        int node = 0;
+        long result = -1;
+        for (int i = start; i < text.length(); i++) {
+            int code = codes[text.charAt(i)];
+            if (code == 0) break;
+            int position = base[node] + code;
+            if (position >= check.length || check[position] != node + 1) break;
+            node = position;
+            int end = base[node];
+            if (end >= 0 && end < check.length && check[end] == node + 1) {
+                result = ((long) (i - start + 1) << 32) | (-base[end] - 1);
+            }
+        }
+        return result;
+    }
+    
+    public int getSize() { return size + 1; }
+}
+
+// 简繁转换：内置常用字和词的对照表，数据目录opencc下有OpenCC格式的词典文件时一并载入，
+// 同一个键以词典文件为准；转换时从左到右取最长匹配，词优先于单字
+class ChineseConverter {
+    public static final String NONE = "none";
+    public static final String S2T = "s2t";
+    public static final String T2S = "t2s";
+    
+    // 简繁一一对应的常用字，每两个字一组：简体、繁体
+    private static final String CHARS =
+        "语語说說话話请請让讓认認识識记記许許论論设設访訪证證评評诉訴词詞译譯试試诗詩诚誠该該详詳误誤读讀课課谁誰调調谈談谊誼谋謀谎謊谜謎谢謝谣謠谦謙谨謹谱譜讲講讨討训訓议議讯訊讶訝讼訟讽諷诀訣诅詛诈詐诊診诞誕询詢诡詭诫誡诬誣诱誘诲誨诵誦诸諸诺諾诽誹谅諒谍諜谐諧谓謂谚諺谤謗谩謾谬謬谴譴计計订訂讥譏讳諱讹訛诋詆诏詔诘詰诛誅诠詮誉譽变變"
+        + "钱錢铁鐵银銀钢鋼铜銅错錯钟鐘针針钉釘钓釣钝鈍钞鈔钥鑰钦欽钩鉤钮鈕钻鑽铃鈴铅鉛铝鋁铭銘铲鏟链鏈销銷锁鎖锄鋤锅鍋锈鏽锋鋒锐銳锡錫锣鑼锤錘锦錦键鍵锯鋸锻鍛镇鎮镜鏡镶鑲铺鋪铸鑄钳鉗镀鍍镰鐮镯鐲钗釵铠鎧锚錨锥錐锭錠"
+        + "红紅纪紀约約级級纯純纱紗纲綱纳納纵縱纷紛纸紙纹紋纺紡线線练練组組细細织織终終绍紹经經结結绕繞绘繪给給络絡绝絕统統绢絹绣繡继繼绩績绪緒续續绳繩维維绵綿绸綢综綜绿綠缀綴缓緩编編缘緣缚縛缝縫缠纏缩縮缴繳纤纖纠糾纬緯绅紳绒絨绑綁绞絞绷繃绽綻缆纜缎緞缔締缕縷缤繽缨纓缭繚纽紐纶綸绊絆绎繹绚絢绫綾绮綺绯緋"
+        + "饭飯饮飲饱飽饼餅饿餓馆館饺餃饰飾饲飼饶饒馅餡馒饅饥飢饵餌饷餉馈饋馋饞"
+        + "门門闪閃问問闭閉闯闖闲閒间間闷悶闸閘闹鬧闺閨闻聞阀閥阁閣阅閱阐闡阔闊阎閻阑闌"
+        + "马馬驰馳驱驅驳駁驴驢驶駛驹駒驻駐驼駝驾駕驿驛骂罵骄驕骆駱验驗骏駿骑騎骗騙骚騷骤驟腾騰驯馴骇駭骡騾"
+        + "鸟鳥鸡雞鸣鳴鸥鷗鸦鴉鸭鴨鸽鴿鹅鵝鹊鵲鹏鵬鹤鶴鹰鷹鹦鸚鹉鵡鸳鴛鸯鴦鸿鴻鹭鷺"
+        + "车車轨軌军軍轩軒转轉轮輪软軟轰轟轴軸轻輕载載较較辅輔辆輛辈輩辉輝辐輻输輸辖轄辗輾辙轍阵陣连連库庫裤褲轿轎辑輯斩斬暂暫渐漸惭慚"
+        + "贝貝负負贡貢财財责責贤賢败敗账賬货貨质質贩販贪貪贫貧购購贯貫贴貼贵貴贷貸贸貿费費贺賀贼賊资資赋賦赌賭赏賞赐賜赔賠赖賴赚賺赛賽赞贊赠贈赢贏赵趙赶趕贾賈贿賄赂賂赃贓赎贖侦偵侧側测測厕廁贞貞员員圆圓损損"
+        + "见見观觀规規视視览覽觉覺宽寬现現舰艦砚硯亲親觅覓"
+        + "页頁顶頂项項顺順须須顽頑顾顧顿頓颁頒颂頌预預领領颇頗颈頸频頻颗顆题題颜顏额額颠顛颤顫烦煩硕碩顷頃颅顱颊頰颓頹颖穎"
+        + "风風飘飄枫楓疯瘋鱼魚鲁魯鲜鮮鲸鯨鲤鯉鲍鮑鲨鯊鳄鱷鳞鱗渔漁龙龍垄壟聋聾笼籠拢攏庞龐宠寵袭襲韦韋伟偉违違围圍卫衛苇葦韧韌"
+        + "东東乐樂为為书書买買乱亂亏虧云雲产產亩畝亿億仅僅从從仓倉仪儀们們众眾优優会會伞傘传傳伤傷伦倫体體余餘佣傭侠俠侣侶侥僥侨僑价價俭儉债債倾傾偿償"
+        + "儿兒兴興关關兰蘭养養兽獸内內冈岡册冊写寫农農冻凍净淨凉涼减減几幾凤鳳凭憑击擊刘劉则則刚剛创創删刪别別剂劑剑劍剧劇劝勸办辦务務动動励勵劲勁劳勞势勢勋勳"
+        + "区區医醫华華协協单單卖賣卢盧卤滷却卻厂廠厅廳历歷压壓厌厭厉厲县縣参參双雙叙敘叠疊号號叹嘆吓嚇吕呂吗嗎启啟吴吳呜嗚响響哑啞哗嘩唤喚啸嘯喷噴嘱囑"
+        + "团團园園国國图圖圣聖场場坏壞块塊坚堅坛壇坝壩坟墳坠墜垒壘垦墾报報执執扩擴扫掃扬揚扰擾抚撫抛拋抢搶护護拟擬拥擁拦攔择擇挂掛挚摯挡擋挣掙挤擠挥揮捞撈捡撿换換据據掷擲掺摻揽攬搀攙摄攝摆擺摇搖携攜撑撐扑撲担擔拣揀挟挾挠撓捣搗搁擱搂摟搅攪摊攤"
+        + "敌敵数數斋齋无無旧舊时時旷曠昼晝显顯晒曬晓曉晕暈晋晉术術机機杀殺杂雜权權条條来來杨楊极極构構枪槍标標栋棟树樹样樣桥橋档檔梦夢检檢楼樓欢歡欧歐残殘毁毀毕畢气氣枢樞枣棗柜櫃栏欄桨槳桩樁椭橢杰傑"
+        + "汉漢汤湯沟溝没沒泪淚泽澤洁潔洒灑浅淺浊濁济濟浓濃涛濤涌湧润潤涨漲渊淵温溫湾灣湿濕满滿滚滾滞滯滥濫滨濱滩灘潜潛灭滅灯燈灵靈灾災炉爐点點炼煉烂爛烛燭烟煙热熱焕煥烧燒烫燙"
+        + "爱愛爷爺牵牽犹猶狮獅独獨狭狹狱獄猎獵猪豬猫貓献獻环環琐瑣琼瓊电電画畫畅暢疗療疮瘡痒癢痴癡瘾癮皱皺盏盞盐鹽监監盖蓋盘盤盗盜睁睜矫矯矿礦码碼砖磚础礎确確碍礙礼禮祸禍离離种種积積称稱稳穩穷窮窃竊窍竅窝窩竞競"
+        + "笔筆笋筍筑築简簡签簽筹籌篮籃类類粮糧紧緊罗羅罚罰罢罷网網义義习習翘翹耸聳职職联聯聪聰肃肅肠腸肤膚肿腫胀脹胁脅脉脈脏髒脑腦脚腳脸臉腊臘舆輿艰艱艺藝节節芦蘆苍蒼苹蘋茧繭荐薦荡蕩荣榮药藥莱萊莲蓮获獲蓝藍虑慮虚虛虫蟲虽雖蚁蟻蛮蠻蜡蠟补補装裝里裡触觸"
+        + "趋趨跃躍践踐踪蹤辞辭边邊辽遼达達迁遷过過运運还還这這进進远遠迟遲适適选選逊遜递遞逻邏遗遺邓鄧邮郵邻鄰郑鄭酱醬酿釀释釋队隊阳陽阴陰际際陆陸陈陳险險随隨隐隱难難雾霧韩韓飞飛齐齊齿齒龟龜"
+        + "师師帅帥帐帳带帶帮幫广廣庄莊庆慶应應庙廟废廢开開异異弃棄张張弯彎弹彈强強归歸当當录錄彻徹径徑忆憶忧憂怀懷态態怜憐总總恋戀恒恆恶惡恼惱悦悅悬懸惊驚惧懼惨慘惯慣愤憤愿願懒懶戏戲战戰断斷"
+        + "个個么麼乌烏乔喬乡鄉亚亞伪偽俩倆储儲兑兌党黨冯馮尔爾尘塵尝嘗层層属屬屡屢岁歲岂豈岗崗岛島岭嶺峡峽币幣巩鞏状狀狈狽玛瑪疟瘧痪瘓禀稟禄祿秃禿窑窯窜竄窥窺竖豎笺箋筛篩筝箏箩籮篱籬粤粵粪糞"
+        + "后後发發干幹于於冲衝尽盡准準咸鹹苏蘇叶葉仆僕夸誇尸屍凄淒迹跡";
+    
+    // 一简对多繁、按上下文才能定的常用词，每两个一组
+    private static final String[] PHRASES = {
+        "头发", "頭髮", "理发", "理髮", "白发", "白髮", "长发", "長髮", "短发", "短髮", "发型", "髮型", "毛发", "毛髮", "秀发", "秀髮", "发丝", "髮絲",
+        "皇后", "皇后", "太后", "太后", "王后", "王后", "天后", "天后", "后土", "后土",
+        "干净", "乾淨", "干燥", "乾燥", "饼干", "餅乾", "干杯", "乾杯", "干脆", "乾脆", "干枯", "乾枯", "干涸", "乾涸", "干瘪", "乾癟", "干粮", "乾糧",
+        "干涉", "干涉", "干扰", "干擾", "干预", "干預", "若干", "若干", "相干", "相干", "干戈", "干戈",
+        "面条", "麵條", "面包", "麵包", "面粉", "麵粉", "拉面", "拉麵", "汤面", "湯麵",
+        "台风", "颱風", "一只", "一隻", "两只", "兩隻", "几只", "幾隻", "船只", "船隻",
+        "钟情", "鍾情", "钟爱", "鍾愛", "关系", "關係", "联系", "聯繫", "维系", "維繫",
+        "日历", "日曆", "历法", "曆法", "阴历", "陰曆", "农历", "農曆", "复杂", "複雜", "复制", "複製", "重复", "重複", "复印", "複印", "复习", "複習",
+        "范围", "範圍", "规范", "規範", "模范", "模範", "示范", "示範", "典范", "典範", "防范", "防範",
+        "放松", "放鬆", "轻松", "輕鬆", "松开", "鬆開", "松手", "鬆手", "松了口气", "鬆了口氣", "蓬松", "蓬鬆",
+        "制造", "製造", "制作", "製作", "制品", "製品", "特征", "特徵", "象征", "象徵", "征求", "徵求",
+        "冲洗", "沖洗", "冲泡", "沖泡", "冲澡", "沖澡", "茶几", "茶几",
+        "战斗", "戰鬥", "斗争", "鬥爭", "奋斗", "奮鬥", "决斗", "決鬥", "打斗", "打鬥", "争斗", "爭鬥", "斗志", "鬥志",
+        "稻谷", "稻穀", "谷物", "穀物", "五谷", "五穀", "丑时", "丑時", "卷起", "捲起", "席卷", "席捲",
+        "采取", "採取", "采用", "採用", "采访", "採訪", "采集", "採集", "开采", "開採", "朴素", "樸素", "简朴", "簡樸",
+        "尽管", "儘管", "尽量", "儘量", "批准", "批准", "不准", "不准", "准许", "准許",
+        "词汇", "詞彙", "汇编", "彙編", "收获", "收穫", "划船", "划船", "手表", "手錶", "怀表", "懷錶",
+        "胡子", "鬍子", "胡须", "鬍鬚", "胡茬", "鬍茬", "忧郁", "憂鬱", "郁闷", "鬱悶", "抑郁", "抑鬱", "精致", "精緻", "细致", "細緻", "别致", "別緻",
+        "生姜", "生薑", "舍不得", "捨不得", "舍得", "捨得", "舍弃", "捨棄", "施舍", "施捨", "占据", "佔據", "占领", "佔領", "占有", "佔有",
+        "公里", "公里", "千里", "千里", "万里", "萬里", "里程", "里程", "故里", "故里", "邻里", "鄰里", "里弄", "里弄",
+        "心脏", "心臟", "内脏", "內臟", "肝脏", "肝臟", "脏腑", "臟腑", "老板", "老闆", "萝卜", "蘿蔔",
+        "旅游", "旅遊", "游戏", "遊戲", "游客", "遊客", "游览", "遊覽", "抵御", "抵禦", "防御", "防禦", "呼吁", "呼籲",
+        "委托", "委託", "拜托", "拜託", "托付", "託付", "公布", "公佈", "宣布", "宣佈", "分布", "分佈", "挣扎", "掙扎"
+    };
+    
+    // 反向转换时额外要认的繁体异体和一对多里的其他繁体字
+    private static final String T2S_CHARS =
+        "裏里髮发乾干麵面颱台臺台鬆松製制隻只鍾钟曆历係系繫系沖冲醜丑範范儘尽糰团彙汇穫获罈坛噹当錶表鬍胡鬚须瞭了緻致薑姜嚮向捨舍佔占癥症採采捲卷樸朴鬱郁徵征鬥斗穀谷遊游禦御籲吁閑闲蔔卜佈布託托著着夥伙闆板歎叹衆众啓启爲为峯峰綫线僞伪";
+    
+    // 繁体里保留原字的词
+    private static final String[] T2S_PHRASES = {
+        "乾隆", "乾隆", "乾坤", "乾坤", "乾卦", "乾卦",
+        "著名", "著名", "著作", "著作", "顯著", "显著", "著者", "著者", "原著", "原著", "名著", "名著", "巨著", "巨著", "土著", "土著", "著稱", "著称", "昭著", "昭著",
+        "皇后", "皇后", "太后", "太后", "王后", "王后", "天后", "天后",
+        "公里", "公里", "千里", "千里", "萬里", "万里", "里程", "里程", "故里", "故里",
+        "干涉", "干涉", "干擾", "干扰", "干預", "干预", "若干", "若干", "干戈", "干戈"
+    };
+    
+    private static final HashMap<String, ChineseConverter> instances = new HashMap<>();
+    
+    private DoubleArrayTrie trie;
+    private String[] values;
+    
+    public ChineseConverter(TreeMap<String, String> mappings) {
+        values = mappings.values().toArray(new String[0]);
+        trie = new DoubleArrayTrie(mappings.keySet().toArray(new String[0]));
+    }
+    
+    // 每个方向第一次用到时才建表，之后共用；mode不是s2t或t2s时返回null
+    public static synchronized ChineseConverter forMode(String mode) {
+        if (!S2T.equals(mode) && !T2S.equals(mode)) return null;
+        ChineseConverter converter = instances.get(mode);
+        if (converter == null) {
+            converter = new ChineseConverter(mappings(mode, AppDirs.dataDir().resolve("opencc")));
+            instances.put(mode, converter);
+        }
+        return converter;
+    }
+    
+    // 繁转简用的是简转繁表反过来，再加上异体字和保留原字的词
+    static TreeMap<String, String> mappings(String mode, Path dictDir) {
+        boolean s2t = S2T.equals(mode);
+        TreeMap<String, String> map = new TreeMap<>();
+        addPairs(map, CHARS, s2t);
+        if (!s2t) addPairs(map, T2S_CHARS, true);
+        for (int i = 0; i < PHRASES.length; i += 2) {
+            map.put(PHRASES[s2t ? i : i + 1], PHRASES[s2t ? i + 1 : i]);
+        }
+        if (!s2t) {
+            for (int i = 0; i < T2S_PHRASES.length; i += 2) {
+                map.put(T2S_PHRASES[i], T2S_PHRASES[i + 1]);
+            }
+        }
+        String prefix = s2t ? "ST" : "TS";
+        readDictionary(map, dictDir.resolve(prefix + "Characters.txt"));
+        readDictionary(map, dictDir.resolve(prefix + "Phrases.txt"));
+        return map;
+    }
+    
+    private static void addPairs(TreeMap<String, String> map, String pairs, boolean forward) {
+        for (int i = 0; i + 1 < pairs.length(); i += 2) {
+            String first = String.valueOf(pairs.charAt(i));
+            String second = String.valueOf(pairs.charAt(i + 1));
+            map.put(forward ? first : second, forward ? second : first);
+        }
+    }
+    
+    // OpenCC词典：每行“原文\t转换结果”，有多个结果时用空格隔开，取第一个
+    private static void readDictionary(TreeMap<String, String> map, Path file) {
+        if (!Files.isRegularFile(file)) return;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                int tab = line.indexOf('\t');
+                if (tab <= 0) continue;
+                String value = line.substring(tab + 1).trim();
+                int space = value.indexOf(' ');
+                if (space >= 0) value = value.substring(0, space);
+                if (!value.isEmpty()) {
+                    map.put(line.substring(0, tab), value);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("无法读取 " + file + ": " + e.getMessage());
+        }
+    }
+    
+    public int getTrieSize() { return trie.getSize(); }
+    
+    // 没有要转换的字时原样返回同一个字符串
+    public String convert(String text) {
+        StringBuilder sb = null;
+        int i = 0;
+        while (i < text.length()) {
+            long match = trie.longestMatch(text, i);
+            if (match < 0) {
+                if (sb != null) sb.append(text.charAt(i));
+                i++;
+                continue;
+            }
+            int length = (int) (match >>> 32);
+            String value = values[(int) match];
+            if (sb == null) {
+                if (value.length() == length && text.startsWith(value, i)) {
+                    i += length;
+                    continue;
+                }
+                sb = new StringBuilder(text.length());
+                sb.append(text, 0, i);
+            }
+            sb.append(value);
+            i += length;
+        }
+        return sb == null ? text : sb.toString();
+    }
+}
+
+// 简繁转换放在整理的最后一步，去广告的正则仍按原文匹配
+class ChineseConvertTransform implements LineTransform {
+    private ChineseConverter converter;
+    
+    public ChineseConvertTransform(ChineseConverter converter) {
+        this.converter = converter;
+    }
+    
+    public String apply(String line) {
+        return converter.convert(line);
+    }
+}
+
+// 文字整理设置：显示时才对窗口或章节里的行逐行整理，不改原文件，也不改行号
+class TextPipeline {
+    private static final String WHITESPACE_KEY = "cleanup_whitespace";
+    private static final String BLANK_LINES_KEY = "cleanup_blank_lines";
+    private static final String REMOVE_KEY = "cleanup_remove_patterns";
+    private static final String CHINESE_KEY = "cleanup_chinese";
+    
+    private boolean normalizeWhitespace;
+    private boolean collapseBlankLines;
+    private ArrayList<String> removePatterns;
+    private Pattern[] compiled;
+    private String conversion;
+    private ChineseConverter converter;
+    
+    public TextPipeline(boolean normalizeWhitespace, boolean collapseBlankLines, ArrayList<String> removePatterns, String conversion) {
+        this.normalizeWhitespace = normalizeWhitespace;
+        this.collapseBlankLines = collapseBlankLines;
+        this.removePatterns = removePatterns;
+        this.conversion = conversion;
+        this.converter = ChineseConverter.forMode(conversion);
+        ArrayList<Pattern> patterns = new ArrayList<>();
+        for (String regex : removePatterns) {
+            try {
+                patterns.add(Pattern.compile(regex));
+            } catch (PatternSyntaxException e) {
+                // 设置里保存的正则有误时跳过
+            }
+        }
+        compiled = patterns.toArray(new Pattern[0]);
+    }
+    
+    public boolean isNormalizeWhitespace() { return normalizeWhitespace; }
+    public boolean isCollapseBlankLines() { return collapseBlankLines; }
+    public ArrayList<String> getRemovePatterns() { return removePatterns; }
+    public String getConversion() { return conversion; }
+    
+    public static TextPipeline load(Preferences prefs) {
+        ArrayList<String> patterns = new ArrayList<>();
+        for (String regex : prefs.get(REMOVE_KEY, "").split("\n")) {
+            if (!regex.isEmpty()) {
+                patterns.add(regex);
+            }
+        }
+        return new TextPipeline(prefs.getBoolean(WHITESPACE_KEY, false), prefs.getBoolean(BLANK_LINES_KEY, false), patterns,
+            prefs.get(CHINESE_KEY, ChineseConverter.NONE));
+    }
+    
+    public void save(Preferences prefs) {
+        prefs.putBoolean(WHITESPACE_KEY, normalizeWhitespace);
+        prefs.putBoolean(BLANK_LINES_KEY, collapseBlankLines);
+        prefs.put(REMOVE_KEY, String.join("\n", removePatterns));
+        prefs.put(CHINESE_KEY, conversion);
+    }
+    
+    public static boolean isSpace(char c) {
+        return Character.isWhitespace(c) || c == '\u3000' || c == '\u00a0';
+    }
+    
+    private static int leadingSpaces(String line) {
+        int count = 0;
+        while (count < line.length() && isSpace(line.charAt(count))) count++;
+        return count;
+    }
+    
+    // 章节标题和正文一样转换
+    public String convertTitle(String title) {
+        return converter == null ? title : converter.convert(title);
+    }
+    
+    // 先去广告行，再整理空白，然后合并空行，最后简繁转换
+    private ArrayList<LineTransform> newChain() {
+        ArrayList<LineTransform> chain = new ArrayList<>();
+        if (compiled.length > 0) chain.add(new LineRemovalTransform(compiled));
+        if (normalizeWhitespace) chain.add(new WhitespaceTransform());
+        if (collapseBlankLines) chain.add(new BlankLineTransform());
+        if (converter != null) chain.add(new ChineseConvertTransform(converter));
+        return chain;
+    }
+    
+    // 解码并整理[fromLine, toLine)之间的行
+    public TransformedText apply(BookContent book, int fromLine, int toLine) {
+        LineIndex index = book.getLineIndex();
+        LineDecoder decoder = new LineDecoder(book.getCharset());
+        ArrayList<LineTransform> chain = newChain();
+        int count = Math.max(0, toLine - fromLine);
+        StringBuilder sb = new StringBuilder(count == 0 ? 0 : (int) (index.getCharEnd(toLine - 1) - index.getCharStart(fromLine)));
+        int[] starts = new int[count];
+        BitSet removed = new BitSet(count);
+        int[] shifts = null;
+        boolean first = true;
+        for (int i = 0; i < count; i++) {
+            String original = book.decodeLine(index, fromLine + i, decoder).toString();
+            String text = original;
+            for (int t = 0; t < chain.size() && text != null; t++) {
+                text = chain.get(t).apply(text);
+            }
+            if (text == null) {
+                removed.set(i);
+                continue;
+            }
+            if (!first) {
+                sb.append('\n');
+            }
+            first = false;
+            starts[i] = sb.length();
+            sb.append(text);
+            int shift = text == original ? 0 : leadingSpaces(text) - leadingSpaces(original);
+            if (shift != 0) {
+                if (shifts == null) shifts = new int[count];
+                shifts[i] = shift;
+            }
+        }
+        return new TransformedText(sb.toString(), fromLine, starts, removed, shifts);
+    }
+}
+
+// 文字整理设置对话框
+class TextCleanupDialog extends JDialog {
+    private Preferences prefs;
+    private JCheckBox whitespaceBox;
+    private JCheckBox blankLinesBox;
+    private JTextArea patternArea;
+    private String conversion;
+    private boolean saved;
+    
+    public TextCleanupDialog(JFrame parent, Preferences prefs) {
+        super(parent, "文字整理", true);
+        this.prefs = prefs;
+        initComponents();
+        pack();
+        setSize(420, 360);
+        setLocationRelativeTo(parent);
+    }
+    
+    private void initComponents() {
+        setLayout(new BorderLayout());
+        TextPipeline pipeline = TextPipeline.load(prefs);
+        conversion = pipeline.getConversion();
+        
+        JPanel optionPanel = new JPanel(new GridLayout(0, 1));
+        optionPanel.setBorder(BorderFactory.createTitledBorder("整理"));
+        whitespaceBox = new JCheckBox("去掉多余空白，段首缩进两格", pipeline.isNormalizeWhitespace());
+        blankLinesBox = new JCheckBox("连续的空行只保留一个", pipeline.isCollapseBlankLines());
+        optionPanel.add(whitespaceBox);
+        optionPanel.add(blankLinesBox);
+        
+        patternArea = new JTextArea(String.join("\n", pipeline.getRemovePatterns()));
+        JScrollPane patternPane = new JScrollPane(patternArea);
+        patternPane.setBorder(BorderFactory.createTitledBorder("去掉匹配的行（正则，每行一条）"));
+        
+        JPanel buttonPanel = new JPanel(new FlowLayout());
+        JButton okButton = new JButton("确定");
+        JButton cancelButton = new JButton("取消");
+        
+        okButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                saveSettings();
+            }
+        });
+        cancelButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                dispose();
+            }
+        });
+        
+        buttonPanel.add(okButton);
+        buttonPanel.add(cancelButton);
+        
+        add(optionPanel, BorderLayout.NORTH);
+        add(patternPane, BorderLayout.CENTER);
+        add(buttonPanel, BorderLayout.SOUTH);
+    }
+    
+    private void saveSettings() {
+        ArrayList<String> patterns = new ArrayList<>();
+        for (String regex : patternArea.getText().split("\n")) {
+            if (regex.trim().isEmpty()) continue;
+            try {
+                Pattern.compile(regex.trim());
+                patterns.add(regex.trim());
+            } catch (PatternSyntaxException e) {
+                JOptionPane.showMessageDialog(this, "正则表达式有误: " + e.getDescription() + "\n" + regex, "错误", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+        }
+        new TextPipeline(whitespaceBox.isSelected(), blankLinesBox.isSelected(), patterns, conversion).save(prefs);
+        saved = true;
+        dispose();
+    }
+    
+    public boolean isSaved() { return saved; }
+}
+
+// 按章节缓存解码并整理后的正文，总字节数超过上限时淘汰最久未用的章节
+// 键是章节的起止行；换书或改了整理设置时清空，之前还没完成的预取结果直接丢弃
+class ChapterCache {
+    private long budgetBytes;
+    private long usedBytes;
+    private long hits;
+    private long misses;
+    private BookContent book;
+    private TextPipeline pipeline = new TextPipeline(false, false, new ArrayList<String>(), ChineseConverter.NONE);
+    private int generation;
+    private LinkedHashMap<Long, TransformedText> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private ExecutorService prefetcher;
+    
+    public ChapterCache(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+        prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "chapter-prefetch");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+    
+    public synchronized void setBook(BookContent book) {
+        this.book = book;
+        generation++;
+        entries.clear();
+        usedBytes = 0;
+    }
+    
+    public synchronized void setPipeline(TextPipeline pipeline) {
+        this.pipeline = pipeline;
+        generation++;
+        entries.clear();
+        usedBytes = 0;
+    }
+    
+    private static long key(int startLine, int endLine) {
+        return ((long) startLine << 32) | endLine;
+    }
+    
+    // 未命中时在调用线程上解码
+    public TransformedText get(int startLine, int endLine) {
+        BookContent content;
+        TextPipeline steps;
+        int current;
+        synchronized (this) {
+            TransformedText text = entries.get(key(startLine, endLine));
+            if (text != null) {
+                hits++;
+                return text;
+            }
+            misses++;
+            content = book;
+            steps = pipeline;
+            current = generation;
+        }
+        TransformedText text = steps.apply(content, startLine, endLine);
+        put(current, startLine, endLine, text);
+        return text;
+    }
+    
+    // 在后台线程上解码并放进缓存
+    public void prefetch(final int startLine, final int endLine) {
+        final BookContent content;
+        final TextPipeline steps;
+        final int current;
+        synchronized (this) {
+            if (book == null || entries.containsKey(key(startLine, endLine))) return;
+            content = book;
+            steps = pipeline;
+            current = generation;
+        }
+        prefetcher.execute(new Runnable() {
+            public void run() {
+                synchronized (ChapterCache.this) {
+                    if (current != generation || entries.containsKey(key(startLine, endLine))) return;
+                }
+                put(current, startLine, endLine, steps.apply(content, startLine, endLine));
+            }
+        });
+    }
+    
+    private synchronized void put(int current, int startLine, int endLine, TransformedText text) {
+        long bytes = text.memoryBytes();
+        if (current != generation || bytes > budgetBytes) return;
+        long key = key(startLine, endLine);
+        TransformedText old = entries.put(key, text);
+        if (old != null) {
+            usedBytes -= old.memoryBytes();
+        }
+        usedBytes += bytes;
+        Iterator<Map.Entry<Long, TransformedText>> it = entries.entrySet().iterator();
+        while (usedBytes > budgetBytes && it.hasNext()) {
+            Map.Entry<Long, TransformedText> eldest = it.next();
+            if (eldest.getKey() == key) continue;
+            usedBytes -= eldest.getValue().memoryBytes();
+            it.remove();
+        }
+    }
+    
+    public synchronized long getHits() { return hits; }
+    public synchronized long getMisses() { return misses; }
+    public synchronized long getUsedBytes() { return usedBytes; }
+    public synchronized int getEntryCount() { return entries.size(); }
+    public long getBudgetBytes() { return budgetBytes; }
+}
+
+// 分段折行：长段落每次只排版一个片段，排版量和页面大小有关，和段落长度无关
+class LineBreaker {
+    private static final int CHUNK_CHARS = 4096;
+    private Font font;
+    private FontRenderContext frc;
+    private float width;
+    private String text;
+    private int position;
+    // 当前片段在段落中的范围和它的折行器
+    private int chunkStart;
+    private int chunkEnd;
+    private LineBreakMeasurer measurer;
+    
+    public LineBreaker(Font font, FontRenderContext frc, float width) {
+        this.font = font;
+        this.frc = frc;
+        this.width = width;
+    }
+    
+    public void setParagraph(String text, int offset) {
+        this.text = text;
+        this.position = offset;
+        this.measurer = null;
+    }
+    
+    public boolean hasNext() { return position < text.length(); }
+    public int getPosition() { return position; }
+    
+    // 排下一行并返回排版结果
+    public TextLayout nextLayout() {
+        return (TextLayout) advance(true);
+    }
+    
+    // 只计算下一行的结束位置，不生成排版结果
+    public int skipLine() {
+        advance(false);
+        return position;
+    }
+    
+    private Object advance(boolean wantLayout) {
+        if (measurer == null || position < chunkStart || position >= chunkEnd) {
+            openChunk(position);
+        }
+        measurer.setPosition(position - chunkStart);
+        Object layout = wantLayout ? measurer.nextLayout(width) : null;
+        int end = chunkStart + (wantLayout ? measurer.getPosition() : measurer.nextOffset(width));
+        // 片段末尾的行可能是被片段截断的，从这一行开头换一个片段重排
+        if (end == chunkEnd && chunkEnd < text.length() && chunkStart < position) {
+            openChunk(position);
+            layout = wantLayout ? measurer.nextLayout(width) : null;
+            end = chunkStart + (wantLayout ? measurer.getPosition() : measurer.nextOffset(width));
+        }
+        position = end;
+        return layout;
+    }
+    
+    private void openChunk(int start) {
+        int end = Math.min(text.length(), start + CHUNK_CHARS);
+        if (end < text.length() && Character.isHighSurrogate(text.charAt(end - 1))) {
+            end--;
+        }
+        AttributedString attributed = new AttributedString(text.substring(start, end));
+        attributed.addAttribute(TextAttribute.FONT, font);
+        chunkStart = start;
+        chunkEnd = end;
+        measurer = new LineBreakMeasurer(attributed.getIterator(), frc);
+    }
+}
+
+// 一段（一章，没有章节时为固定行数）在某个字体和宽度下的折行结果：每个排版行的源行号和行内起始字符
+class SectionLayout {
+    private int[] lines;
+    private int[] offsets;
+    
+    public SectionLayout(int[] lines, int[] offsets) {
+        this.lines = lines;
+        this.offsets = offsets;
+    }
+    
+    public int getLineCount() { return lines.length; }
+    public int getLine(int row) { return lines[row]; }
+    public int getOffset(int row) { return offsets[row]; }
+    
+    // 包含(line, offset)处文字的排版行，二分查找
+    public int rowAt(int line, int offset) {
+        int low = 0;
+        int high = lines.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (lines[middle] < line || lines[middle] == line && offsets[middle] <= offset) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+    
+    // 整理时去掉的行不占排版行；整段都去掉时留一个空行
+    public static SectionLayout build(TransformedText section, LineBreaker breaker, PageLayoutCache owner, int generation) {
+        int startLine = section.getFromLine();
+        int endLine = section.getToLine();
+        IntList lines = new IntList(endLine - startLine + 16);
+        IntList offsets = new IntList(endLine - startLine + 16);
+        for (int line = startLine; line < endLine; line++) {
+            if ((line & 255) == 0 && !owner.isCurrent(generation)) return null;
+            String text = section.lineText(line);
+            if (text == null) continue;
+            breaker.setParagraph(text, 0);
+            // 空行也占一行
+            do {
+                lines.add(line);
+                offsets.add(breaker.getPosition());
+                if (breaker.hasNext()) {
+                    breaker.skipLine();
+                }
+            } while (breaker.hasNext());
+        }
+        if (lines.size() == 0) {
+            lines.add(startLine);
+            offsets.add(0);
+        }
+        return new SectionLayout(lines.toArray(), offsets.toArray());
+    }
+}
+
+// 分页排版缓存：按(字体, 宽度, 段)保存折行结果，后台线程从当前段向后再向前排完全书
+class PageLayoutCache {
+    private static final int MAX_SECTIONS = 256;
+    private LinkedHashMap<String, SectionLayout> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // 各段的排版行数，只有几个整数，全书都保留，用来算总页数
+    private HashMap<String, Integer> rowCounts = new HashMap<>();
+    private BookContent book;
+    private TextPipeline pipeline = new TextPipeline(false, false, new ArrayList<String>(), ChineseConverter.NONE);
+    private int generation;
+    private ExecutorService worker;
+    
+    public PageLayoutCache() {
+        worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "page-layout");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+    
+    public static String key(Font font, int width, int startLine, int endLine) {
+        return font.getFontName() + '/' + font.getStyle() + '/' + font.getSize2D() + '/' + width + '/' + startLine + '/' + endLine;
+    }
+    
+    public synchronized void setBook(BookContent book) {
+        this.book = book;
+        generation++;
+        entries.clear();
+        rowCounts.clear();
+    }
+    
+    public synchronized void setPipeline(TextPipeline pipeline) {
+        this.pipeline = pipeline;
+        generation++;
+        entries.clear();
+        rowCounts.clear();
+    }
+    
+    public synchronized boolean isCurrent(int generation) {
+        return this.generation == generation;
+    }
+    
+    public synchronized SectionLayout get(String key) {
+        return entries.get(key);
+    }
+    
+    // 还没排过的段返回-1
+    public synchronized int getRowCount(String key) {
+        Integer count = rowCounts.get(key);
+        return count != null ? count : -1;
+    }
+    
+    private synchronized boolean put(int current, String key, SectionLayout layout) {
+        if (current != generation) return false;
+        entries.put(key, layout);
+        rowCounts.put(key, layout.getLineCount());
+        Iterator<String> it = entries.keySet().iterator();
+        while (entries.size() > MAX_SECTIONS && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+        return true;
+    }
+    
+    // 取消之前的后台排版，从from段开始按新的字体和宽度重新排；每排完一段在事件线程上调用progress
+    public void layoutAll(final Font font, final FontRenderContext frc, final int width, final int[] bounds,
+            final int from, final Runnable progress) {
+        final BookContent content;
+        final TextPipeline steps;
+        final int current;
+        synchronized (this) {
+            generation++;
+            content = book;
+            steps = pipeline;
+            current = generation;
+        }
+        if (content == null) return;
+        worker.execute(new Runnable() {
+            public void run() {
+                LineBreaker breaker = new LineBreaker(font, frc, width);
+                int sections = bounds.length - 1;
+                for (int i = 0; i < sections; i++) {
+                    // 先排当前段和后面的段，再往前排
+                    int section = from + i < sections ? from + i : sections - 1 - i;
+                    String key = key(font, width, bounds[section], bounds[section + 1]);
+                    synchronized (PageLayoutCache.this) {
+                        if (current != generation) return;
+                        if (rowCounts.containsKey(key) && (section != from || entries.containsKey(key))) continue;
+                    }
+                    // 后台排版直接整理，不经过章节缓存，避免把阅读位置附近的章节挤出去
+                    SectionLayout layout = SectionLayout.build(steps.apply(content, bounds[section], bounds[section + 1]),
+                        breaker, PageLayoutCache.this, current);
+                    if (layout == null || !put(current, key, layout)) return;
+                    SwingUtilities.invokeLater(progress);
+                }
+            }
+        });
+    }
+}
+
+// 当前页上排好的一行；空行的layout为null
+class PageLine {
+    private int line;
+    private int offset;
+    private TextLayout layout;
+    
+    public PageLine(int line, int offset, TextLayout layout) {
+        this.line = line;
+        this.offset = offset;
+        this.layout = layout;
+    }
+    
+    public int getLine() { return line; }
+    public int getOffset() { return offset; }
+    public TextLayout getLayout() { return layout; }
+}
+
+interface PageListener {
+    void pageChanged(int line);
+}
+
+// 分页阅读视图：只排版当前页，翻页和改变大小的耗时与书的大小无关；章节从新的一页开始
+class PageView extends JComponent {
+    private static final int MARGIN = 40;
+    private static final int FOOTER = 24;
+    private static final float LINE_SPACING = 1.5f;
+    // 没有章节或章节还没扫描完时按固定行数分段
+    private static final int BLOCK_LINES = 1000;
+    private static final FontRenderContext FRC = new FontRenderContext(null, true, true);
+    
+    private BookContent book;
+    private PageLayoutCache layouts = new PageLayoutCache();
+    // 整理后的段落取自章节缓存，和滚动阅读共用
+    private ChapterCache texts;
+    // 段的起始行，最后一个是总行数；为null时行索引还没建完
+    private int[] sections;
+    // 当前页第一行的位置
+    private int anchorLine;
+    private int anchorOffset;
+    // 当前页排好的行和下一页的起点，字体变化后置空，大小变化后绘制时重新排
+    private ArrayList<PageLine> page;
+    private int pageWidth;
+    private int pageHeight;
+    private int nextLine;
+    private int nextOffset;
+    // 后台排版使用的字体、宽度和分段，变化时重新开始排
+    private String requested;
+    private int sectionsVersion;
+    private SearchHit highlight;
+    private PageListener listener;
+    
+    public PageView() {
+        setOpaque(true);
+        setBackground(Color.WHITE);
+        setFocusable(true);
+        addMouseWheelListener(new MouseWheelListener() {
+            public void mouseWheelMoved(MouseWheelEvent e) {
+                if (e.getWheelRotation() > 0) {
+                    nextPage();
+                } else if (e.getWheelRotation() < 0) {
+                    previousPage();
+                }
+            }
+        });
+        addMouseListener(new MouseAdapter() {
+            public void mouseClicked(MouseEvent e) {
+                requestFocusInWindow();
+                if (e.getX() > getWidth() / 2) {
+                    nextPage();
+                } else {
+                    previousPage();
+                }
+            }
+        });
+        bindKey(KeyEvent.VK_PAGE_DOWN, "nextPage", true);
+        bindKey(KeyEvent.VK_SPACE, "nextPage", true);
+        bindKey(KeyEvent.VK_RIGHT, "nextPage", true);
+        bindKey(KeyEvent.VK_DOWN, "nextPage", true);
+        bindKey(KeyEvent.VK_PAGE_UP, "previousPage", false);
+        bindKey(KeyEvent.VK_LEFT, "previousPage", false);
+        bindKey(KeyEvent.VK_UP, "previousPage", false);
+    }
+    
+    private void bindKey(int keyCode, String name, final boolean forward) {
+        getInputMap(WHEN_FOCUSED).put(KeyStroke.getKeyStroke(keyCode, 0), name);
+        getActionMap().put(name, new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                if (forward) {
+                    nextPage();
+                } else {
+                    previousPage();
+                }
+            }
+        });
+    }
+    
+    public void setPageListener(PageListener listener) {
+        this.listener = listener;
+    }
+    
+    // 章节缓存里的整理设置变化后调用，重新排版
+    public void setTextSource(ChapterCache texts, TextPipeline pipeline) {
+        this.texts = texts;
+        layouts.setPipeline(pipeline);
+        requested = null;
+        invalidatePage();
+    }
+    
+    public void setBook(BookContent book) {
+        this.book = book;
+        layouts.setBook(book);
+        sections = null;
+        sectionsVersion++;
+        highlight = null;
+        anchorLine = 0;
+        anchorOffset = 0;
+        invalidatePage();
+    }
+    
+    // 行索引建完后设置分段，chapterBounds为null时按固定行数分段
+    public void setSections(int[] chapterBounds, int lineCount) {
+        if (chapterBounds != null && chapterBounds[chapterBounds.length - 1] == lineCount) {
+            sections = chapterBounds;
+        } else {
+            IntList bounds = new IntList(lineCount / BLOCK_LINES + 2);
+            for (int line = 0; line < lineCount; line += BLOCK_LINES) {
+                bounds.add(line);
+            }
+            bounds.add(lineCount);
+            sections = bounds.size() >= 2 ? bounds.toArray() : null;
+        }
+        sectionsVersion++;
+        invalidatePage();
+    }
+    
+    @Override
+    public void setFont(Font font) {
+        super.setFont(font);
+        invalidatePage();
+    }
+    
+    public void setHighlight(SearchHit hit) {
+        highlight = hit;
+        repaint();
+    }
+    
+    public int getTopLine() {
+        return anchorLine;
+    }
+    
+    // 显示包含line的那一页
+    public void showLine(int line) {
+        anchorLine = line;
+        anchorOffset = 0;
+        invalidatePage();
+    }
+    
+    private void invalidatePage() {
+        page = null;
+        repaint();
+    }
+    
+    private int sectionIndex(int line) {
+        int index = Arrays.binarySearch(sections, line);
+        return Math.min(index >= 0 ? index : -index - 2, sections.length - 2);
+    }
+    
+    private int sectionStart(int line) {
+        return sections != null ? sections[sectionIndex(line)] : line / BLOCK_LINES * BLOCK_LINES;
+    }
+    
+    private int sectionEnd(int line) {
+        if (sections != null) return sections[sectionIndex(line) + 1];
+        return Math.min(book.getLineCount(), line / BLOCK_LINES * BLOCK_LINES + BLOCK_LINES);
+    }
+    
+    private int layoutWidth() {
+        return Math.max(50, getWidth() - MARGIN * 2);
+    }
+    
+    private TransformedText sectionText(int line) {
+        return texts.get(sectionStart(line), sectionEnd(line));
+    }
+    
+    // 整理后的一行，去掉的行返回null
+    private String paragraph(int line) {
+        return sectionText(line).lineText(line);
+    }
+    
+    // 从line开始第一个没有被去掉的行，到end都去掉了时返回end
+    private int keptLine(int line, int end) {
+        while (line < end && paragraph(line) == null) line++;
+        return line;
+    }
+    
+    private float lineHeight() {
+        return getFontMetrics(getFont()).getHeight() * LINE_SPACING;
+    }
+    
+    private int rowsPerPage() {
+        return Math.max(1, (int) ((getHeight() - MARGIN * 2 - FOOTER) / lineHeight()));
+    }
+    
+    // 当前段的排版结果，后台还没排完时返回null
+    private SectionLayout cachedLayout(int line) {
+        if (sections == null) return null;
+        return layouts.get(sectionKey(line));
+    }
+    
+    private String sectionKey(int line) {
+        return PageLayoutCache.key(getFont(), layoutWidth(), sectionStart(line), sectionEnd(line));
+    }
+    
+    // 字体、宽度或分段变化后，从当前段开始在后台重新排全书
+    private void requestLayout() {
+        if (sections == null) return;
+        String signature = PageLayoutCache.key(getFont(), layoutWidth(), 0, sectionsVersion);
+        if (signature.equals(requested)) return;
+        requested = signature;
+        layouts.layoutAll(getFont(), FRC, layoutWidth(), sections, sectionIndex(anchorLine), new Runnable() {
+            public void run() {
+                repaint();
+            }
+        });
+    }
+    
+    // 排版当前页：后台已排好本段时对齐到整页，否则从锚点开始排一页
+    private void ensurePage() {
+        if (page != null && pageWidth == getWidth() && pageHeight == getHeight() || book == null) return;
+        page = new ArrayList<>();
+        pageWidth = getWidth();
+        pageHeight = getHeight();
+        int lineCount = book.getLineCount();
+        if (lineCount == 0) return;
+        anchorLine = Math.min(anchorLine, lineCount - 1);
+        requestLayout();
+        int rows = rowsPerPage();
+        SectionLayout cached = cachedLayout(anchorLine);
+        if (cached == null && sections != null && layouts.getRowCount(sectionKey(anchorLine)) >= 0) {
+            // 本段的排版结果已被淘汰，从这里重新开始后台排版
+            requested = null;
+            requestLayout();
+        }
+        if (cached != null) {
+            int row = cached.rowAt(anchorLine, anchorOffset) / rows * rows;
+            anchorLine = cached.getLine(row);
+            anchorOffset = cached.getOffset(row);
+        }
+        
+        int end = sectionEnd(anchorLine);
+        LineBreaker breaker = new LineBreaker(getFont(), FRC, layoutWidth());
+        int line = keptLine(anchorLine, end);
+        if (line >= end) {
+            nextLine = end;
+            nextOffset = 0;
+            return;
+        }
+        breaker.setParagraph(paragraph(line), line == anchorLine ? anchorOffset : 0);
+        while (page.size() < rows) {
+            int offset = breaker.getPosition();
+            page.add(new PageLine(line, offset, breaker.hasNext() ? breaker.nextLayout() : null));
+            if (!breaker.hasNext()) {
+                line = keptLine(line + 1, end);
+                if (line >= end) break;
+                breaker.setParagraph(paragraph(line), 0);
+            }
+        }
+        nextLine = line;
+        nextOffset = line < end ? breaker.getPosition() : 0;
+    }
+    
+    public void nextPage() {
+        if (book == null) return;
+        ensurePage();
+        if (nextLine >= book.getLineCount()) return;
+        moveTo(nextLine, nextOffset);
+    }
+    
+    public void previousPage() {
+        if (book == null || anchorLine == 0 && anchorOffset == 0) return;
+        ensurePage();
+        int rows = rowsPerPage();
+        int start = sectionStart(anchorLine);
+        // 在段首时翻到上一段的最后一页
+        int line = anchorLine;
+        int offset = anchorOffset;
+        if (line == start && offset == 0) {
+            start = sectionStart(line - 1);
+            offset = -1;
+            line--;
+        }
+        SectionLayout cached = cachedLayout(line);
+        if (cached != null) {
+            int row = offset < 0 ? cached.getLineCount() - 1 : cached.rowAt(line, offset) - 1;
+            row = Math.max(0, row) / rows * rows;
+            moveTo(cached.getLine(row), cached.getOffset(row));
+            return;
+        }
+        
+        // 本段还没排好，往回排出刚好一页
+        LineBreaker breaker = new LineBreaker(getFont(), FRC, layoutWidth());
+        IntList lines = new IntList();
+        IntList offsets = new IntList();
+        for (int l = offset != 0 ? line : line - 1; l >= start && lines.size() < rows; l--) {
+            String text = paragraph(l);
+            if (text == null) continue;
+            int limit = l == line && offset > 0 ? offset : text.length();
+            IntList starts = new IntList();
+            breaker.setParagraph(text, 0);
+            do {
+                starts.add(breaker.getPosition());
+                if (breaker.hasNext()) {
+                    breaker.skipLine();
+                }
+            } while (breaker.hasNext() && breaker.getPosition() < limit);
+            for (int i = starts.size() - 1; i >= 0; i--) {
+                lines.add(l);
+                offsets.add(starts.get(i));
+            }
+        }
+        int index = Math.min(lines.size(), rows) - 1;
+        if (index < 0 || lines.size() < rows) {
+            moveTo(start, 0);
+        } else {
+            moveTo(lines.get(index), offsets.get(index));
+        }
+    }
+    
+    private void moveTo(int line, int offset) {
+        anchorLine = line;
+        anchorOffset = offset;
+        invalidatePage();
+        if (listener != null) {
+            listener.pageChanged(line);
+        }
+    }
+    
+    // 页脚：本章页码，全书都排完后显示全书页码
+    private String pageStatus() {
+        if (sections == null) return "正在建立索引";
+        int rows = rowsPerPage();
+        int width = layoutWidth();
+        int current = sectionIndex(anchorLine);
+        int before = 0;
+        int total = 0;
+        int done = 0;
+        for (int i = 0; i + 1 < sections.length; i++) {
+            int count = layouts.getRowCount(PageLayoutCache.key(getFont(), width, sections[i], sections[i + 1]));
+            if (count < 0) continue;
+            int pages = (count + rows - 1) / rows;
+            done++;
+            total += pages;
+            if (i < current) before += pages;
+        }
+        SectionLayout cached = cachedLayout(anchorLine);
+        if (cached == null) {
+            return "排版中 " + done + "/" + (sections.length - 1);
+        }
+        int pageInSection = cached.rowAt(anchorLine, anchorOffset) / rows;
+        String status = "本章 " + (pageInSection + 1) + "/" + ((cached.getLineCount() + rows - 1) / rows) + " 页";
+        if (done < sections.length - 1) {
+            return status + "    全书排版中 " + done + "/" + (sections.length - 1);
+        }
+        return status + "    全书 " + (before + pageInSection + 1) + "/" + total + " 页";
+    }
+    
+    @Override
+    protected void paintComponent(Graphics g) {
+        g.setColor(getBackground());
+        g.fillRect(0, 0, getWidth(), getHeight());
+        if (book == null) return;
+        ensurePage();
+        
+        Graphics2D g2 = (Graphics2D) g.create();
+        g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        g2.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+        float lineHeight = lineHeight();
+        float y = MARGIN;
+        for (PageLine row : page) {
+            TextLayout layout = row.getLayout();
+            if (layout != null) {
+                float baseline = y + layout.getAscent();
+                paintHighlight(g2, row, layout, baseline);
+                g2.setColor(getForeground());
+                layout.draw(g2, MARGIN, baseline);
+            }
+            y += lineHeight;
+        }
+        g2.setColor(Color.GRAY);
+        g2.setFont(getFont().deriveFont(12f));
+        g2.drawString(pageStatus(), MARGIN, getHeight() - MARGIN / 2);
+        g2.dispose();
+    }
+    
+    private void paintHighlight(Graphics2D g2, PageLine row, TextLayout layout, float baseline) {
+        if (highlight == null || highlight.getLine() != row.getLine()) return;
+        int column = sectionText(row.getLine()).columnOf(highlight.getLine(), highlight.getColumn());
+        int start = Math.max(0, column - row.getOffset());
+        int end = Math.min(layout.getCharacterCount(), column + highlight.getLength() - row.getOffset());
+        if (start >= end) return;
+        Shape shape = layout.getLogicalHighlightShape(start, end);
+        g2.setColor(Color.ORANGE);
+        g2.translate(MARGIN, baseline);
+        g2.fill(shape);
+        g2.translate(-MARGIN, -baseline);
+    }
+}
+
+// 目录树模型：直接基于章节数组，节点就是Chapter本身，JTree只访问展开的部分
+class ChapterTreeModel implements TreeModel {
+    private static final String ROOT = "章节列表";
+    
+    private Chapter[] chapters = new Chapter[0];
+    private int[] startLines = new int[0];
+    // 卷在chapters中的下标，第一个卷之前的章节直接挂在根节点下
+    private int[] volumes = new int[0];
+    private int firstVolume;
+    private EventListenerList listeners = new EventListenerList();
+    
+    public void setChapters(ArrayList<Chapter> list) {
+        chapters = list.toArray(new Chapter[0]);
+        startLines = new int[chapters.length];
+        int volumeCount = 0;
+        for (int i = 0; i < chapters.length; i++) {
+            startLines[i] = chapters[i].getStartLine();
+            if (chapters[i].getLevel() == Chapter.LEVEL_VOLUME) volumeCount++;
+        }
+        volumes = new int[volumeCount];
+        volumeCount = 0;
+        for (int i = 0; i < chapters.length; i++) {
+            if (chapters[i].getLevel() == Chapter.LEVEL_VOLUME) volumes[volumeCount++] = i;
+        }
+        firstVolume = volumes.length > 0 ? volumes[0] : chapters.length;
+        
+        TreeModelEvent event = new TreeModelEvent(this, new Object[] {ROOT});
+        for (TreeModelListener listener : listeners.getListeners(TreeModelListener.class)) {
+            listener.treeStructureChanged(event);
+        }
+    }
+    
+    public int getChapterCount() { return chapters.length; }
+    
+    // 包含line的章节下标，在第一章之前时返回-1
+    public int indexOfLine(int line) {
+        int index = Arrays.binarySearch(startLines, line);
+        return index >= 0 ? index : -index - 2;
+    }
+    
+    public TreePath pathTo(int index) {
+        int volume = volumeOf(index);
+        if (volume < 0) {
+            return new TreePath(new Object[] {ROOT, chapters[index]});
+        }
+        return new TreePath(new Object[] {ROOT, chapters[volume], chapters[index]});
+    }
+    
+    // 章节所属卷的下标，直接挂在根节点下时返回-1
+    private int volumeOf(int index) {
+        if (index < firstVolume || chapters[index].getLevel() == Chapter.LEVEL_VOLUME) {
+            return -1;
+        }
+        int position = Arrays.binarySearch(volumes, index);
+        return volumes[-position - 2];
+    }
+    
+    private int indexOf(Object node) {
+        if (!(node instanceof Chapter)) return -1;
+        int index = Arrays.binarySearch(startLines, ((Chapter) node).getStartLine());
+        return index >= 0 && chapters[index] == node ? index : -1;
+    }
+    
+    private int volumeEnd(int volume) {
+        int position = Arrays.binarySearch(volumes, volume);
+        return position + 1 < volumes.length ? volumes[position + 1] : chapters.length;
+    }
+    
+    public Object getRoot() {
+        return ROOT;
+    }
+    
+    public Object getChild(Object parent, int index) {
+        if (parent == ROOT) {
+            return index < firstVolume ? chapters[index] : chapters[volumes[index - firstVolume]];
+        }
+        return chapters[indexOf(parent) + 1 + index];
+    }
+    
+    public int getChildCount(Object parent) {
+        if (parent == ROOT) {
+            return firstVolume + volumes.length;
+        }
+        int index = indexOf(parent);
+        if (index < 0 || chapters[index].getLevel() != Chapter.LEVEL_VOLUME) {
+            return 0;
+        }
+        return volumeEnd(index) - index - 1;
+    }
+    
+    public boolean isLeaf(Object node) {
+        return getChildCount(node) == 0;
+    }
+    
+    public int getIndexOfChild(Object parent, Object child) {
+        int index = indexOf(child);
+        if (index < 0) return -1;
+        if (parent == ROOT) {
+            if (index < firstVolume) return index;
+            int position = Arrays.binarySearch(volumes, index);
+            return position >= 0 ? firstVolume + position : -1;
+        }
+        int volume = volumeOf(index);
+        return volume >= 0 && chapters[volume] == parent ? index - volume - 1 : -1;
+    }
+    
+    public void valueForPathChanged(TreePath path, Object newValue) {
+        // 目录只读
+    }
+    
+    public void addTreeModelListener(TreeModelListener l) {
+        listeners.add(TreeModelListener.class, l);
+    }
+    
+    public void removeTreeModelListener(TreeModelListener l) {
+        listeners.remove(TreeModelListener.class, l);
+    }
+}
+
+// 查找结果：行号、行内字符位置和长度
+class SearchHit {
+    private int line;
+    private int column;
+    private int length;
+    private String preview;
+    
+    public SearchHit(int line, int column, int length, String preview) {
+        this.line = line;
+        this.column = column;
+        this.length = length;
+        this.preview = preview;
+    }
+    
+    public int getLine() { return line; }
+    public int getColumn() { return column; }
+    public int getLength() { return length; }
+    
+    @Override
+    public String toString() {
+        return "第" + (line + 1) + "行: " + preview;
+    }
+}
+
+// 查找条件：区分大小写的普通文本直接在字节上匹配，其余情况用正则在解码后的行上匹配
+class SearchQuery {
+    private String text;
+    private boolean regex;
+    private Pattern pattern;
+    
+    public SearchQuery(String text, boolean regex, boolean ignoreCase) {
+        this.text = text;
+        this.regex = regex;
+        if (regex || ignoreCase) {
+            int flags = regex ? 0 : Pattern.LITERAL;
+            if (ignoreCase) {
+                flags |= Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+            }
+            pattern = Pattern.compile(text, flags);
+        }
+    }
+    
+    public String getText() { return text; }
+    public boolean isRegex() { return regex; }
+    public Pattern getPattern() { return pattern; }
+    
+    // 普通文本按书的编码转成字节，无法编码时返回null
+    public byte[] encode(Charset charset) {
+        if (pattern != null) return null;
+        try {
+            ByteBuffer encoded = charset.newEncoder().encode(CharBuffer.wrap(text));
+            byte[] bytes = new byte[encoded.remaining()];
+            encoded.get(bytes);
+            return bytes;
+        } catch (CharacterCodingException e) {
+            return null;
+        }
+    }
+}
+
+// 查找回调，全部在事件线程上调用
+interface SearchListener {
+    void hitsFound(ArrayList<SearchHit> hits);
+    void finished(int total, boolean truncated);
+    void failed(Exception e);
+}
+
+// 正则匹配超时
+class RegexTimeoutException extends RuntimeException {
+    public RegexTimeoutException(String message) {
+        super(message);
+    }
+}
+
+// 带截止时间的字符序列，正则回溯过多时抛出RegexTimeoutException
+class DeadlineCharSequence implements CharSequence {
+    private CharSequence chars;
+    private long deadline;
+    private int calls;
+    
+    public DeadlineCharSequence(CharSequence chars, long deadline) {
+        this.chars = chars;
+        this.deadline = deadline;
+    }
+    
+    public char charAt(int index) {
+        if ((++calls & 0xFFFF) == 0 && System.nanoTime() > deadline) {
+            throw new RegexTimeoutException("正则表达式执行超时");
+        }
+        return chars.charAt(index);
+    }
+    
+    public int length() {
+        return chars.length();
+    }
+    
+    public CharSequence subSequence(int start, int end) {
+        return new DeadlineCharSequence(chars.subSequence(start, end), deadline);
+    }
+    
+    @Override
+    public String toString() {
+        return chars.toString();
+    }
+}
+
+// 全文查找：按字节分块在线程池中并行扫描，结果按块的顺序陆续送回
+class BookSearcher {
+    public static final int MAX_HITS = 10000;
+    private static final long CHUNK_BYTES = 4L * 1024 * 1024;
+    private static final long REGEX_LINE_TIMEOUT_NANOS = 1000000000L;
+    private static final int PREVIEW_CHARS = 30;
+    
+    private ExecutorService executor;
+    private volatile Object currentSearch;
+    
+    public BookSearcher() {
+        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "book-search");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+    
+    public void cancel() {
+        currentSearch = null;
+    }
+    
+    // 查找全部，结果数超过MAX_HITS时停止
+    public void findAll(final BookContent content, final SearchQuery query, final SearchListener listener) {
+        final Object search = new Object();
+        currentSearch = search;
+        final LineIndex index = content.getLineIndex();
+        final byte[] bytes = query.encode(content.getCharset());
+        final int[] bounds = chunkBounds(index);
+        final int chunkCount = bounds.length - 1;
+        final ArrayList<ArrayList<SearchHit>> results = new ArrayList<>();
+        for (int i = 0; i < chunkCount; i++) {
+            results.add(null);
+        }
+        final AtomicLong hitCount = new AtomicLong();
+        // 结果总数超过了上限：某一块超过上限、各块加起来超过上限，或者总数满了以后的块里还有结果
+        final AtomicBoolean truncated = new AtomicBoolean();
+        // flushed[0]为已交给界面的块数，flushed[1]为已交给界面的结果数
+        final int[] flushed = new int[2];
+        if (chunkCount == 0) {
+            post(search, listener, new ArrayList<SearchHit>(), true, 0, false, null);
+            return;
+        }
+        for (int i = 0; i < chunkCount; i++) {
+            final int chunk = i;
+            executor.execute(new Runnable() {
+                public void run() {
+                    ArrayList<SearchHit> hits;
+                    Exception error = null;
+                    try {
+                        if (currentSearch != search) {
+                            hits = new ArrayList<>();
+                        } else if (hitCount.get() >= MAX_HITS) {
+                            // 总数已满，只看这一块里还有没有结果
+                            hits = new ArrayList<>();
+                            if (!truncated.get() && !searchRange(search, content, index, query, bytes, bounds[chunk], bounds[chunk + 1], 1).isEmpty()) {
+                                truncated.set(true);
+                            }
+                        } else {
+                            // 多找一个，用来判断这一块是不是真的超过了上限
+                            hits = searchRange(search, content, index, query, bytes, bounds[chunk], bounds[chunk + 1], MAX_HITS + 1);
+                            if (hits.size() > MAX_HITS) truncated.set(true);
+                        }
+                    } catch (Exception e) {
+                        hits = new ArrayList<>();
+                        error = e;
+                    }
+                    if (hitCount.addAndGet(hits.size()) > MAX_HITS) truncated.set(true);
+                    // 只把从头开始连续完成的块交给界面，保证结果有序
+                    synchronized (results) {
+                        results.set(chunk, hits);
+                        ArrayList<SearchHit> ready = new ArrayList<>();
+                        while (flushed[0] < chunkCount && results.get(flushed[0]) != null) {
+                            ArrayList<SearchHit> chunkHits = results.get(flushed[0]);
+                            ready.addAll(chunkHits.subList(0, Math.min(chunkHits.size(), MAX_HITS - flushed[1] - ready.size())));
+                            results.set(flushed[0], new ArrayList<SearchHit>());
+                            flushed[0]++;
+                        }
+                        flushed[1] += ready.size();
+                        boolean done = flushed[0] == chunkCount;
+                        post(search, listener, ready, done, flushed[1], truncated.get(), error);
+                    }
+                }
+            });
+        }
+    }
+    
+    // 从(line, column)之后查找下一个，到结尾后从头继续
+    public void findNext(final BookContent content, final SearchQuery query, final int line, final int column,
+                         final SearchListener listener) {
+        final Object search = new Object();
+        currentSearch = search;
+        executor.execute(new Runnable() {
+            public void run() {
+                LineIndex index = content.getLineIndex();
+                int lineCount = index.getLineCount();
+                byte[] bytes = query.encode(content.getCharset());
+                try {
+                    ArrayList<SearchHit> found = new ArrayList<>();
+                    if (line < lineCount) {
+                        for (SearchHit hit : searchRange(search, content, index, query, bytes, line, line + 1, Integer.MAX_VALUE)) {
+                            if (hit.getColumn() > column) {
+                                found.add(hit);
+                                break;
+                            }
+                        }
+                    }
+                    int from = line + 1;
+                    for (int pass = 0; pass < 2 && found.isEmpty(); pass++) {
+                        int end = pass == 0 ? lineCount : Math.min(line + 1, lineCount);
+                        while (from < end && found.isEmpty() && currentSearch == search) {
+                            int to = Math.min(end, index.lineAtByte(index.getByteStart(from) + CHUNK_BYTES) + 1);
+                            found = searchRange(search, content, index, query, bytes, from, to, 1);
+                            from = to;
+                        }
+                        from = 0;
+                    }
+                    post(search, listener, found, true, found.size(), false, null);
+                } catch (Exception e) {
+                    post(search, listener, new ArrayList<SearchHit>(), true, 0, false, e);
+                }
+            }
+        });
+    }
+    
+    // 按字节把行切成若干块，返回每块的起始行，最后一个元素为总行数
+    private int[] chunkBounds(LineIndex index) {
+        int lineCount = index.getLineCount();
+        ArrayList<Integer> bounds = new ArrayList<>();
+        int line = 0;
+        while (line < lineCount) {
+            bounds.add(line);
+            line = Math.max(line + 1, index.lineAtByte(index.getByteStart(line) + CHUNK_BYTES));
+        }
+        bounds.add(lineCount);
+        int[] result = new int[bounds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+    
+    private ArrayList<SearchHit> searchRange(Object search, BookContent content, LineIndex index, SearchQuery query,
+                                             byte[] bytes, int fromLine, int toLine, int maxHits) {
+        ArrayList<SearchHit> hits = new ArrayList<>();
+        LineDecoder decoder = new LineDecoder(content.getCharset());
+        if (query.getPattern() != null) {
+            for (int line = fromLine; line < toLine && hits.size() < maxHits; line++) {
+                if ((line & 255) == 0 && currentSearch != search) break;
+                CharBuffer text = content.decodeLine(index, line, decoder);
+                Matcher matcher = query.getPattern().matcher(new DeadlineCharSequence(text, System.nanoTime() + REGEX_LINE_TIMEOUT_NANOS));
+                while (matcher.find() && hits.size() < maxHits) {
+                    if (matcher.end() == matcher.start()) {
+                        continue;
+                    }
+                    hits.add(createHit(line, text, matcher.start(), matcher.end() - matcher.start()));
+                }
+            }
+            return hits;
+        }
+        if (bytes == null || bytes.length == 0) {
+            return hits;
+        }
+        // Boyer-Moore-Horspool：先在字节上找候选位置，再解码所在行确认并取得字符位置
+        int[] shift = new int[256];
+        Arrays.fill(shift, bytes.length);
+        for (int i = 0; i < bytes.length - 1; i++) {
+            shift[bytes[i] & 0xFF] = bytes.length - 1 - i;
+        }
+        long base = index.getByteStart(fromLine);
+        ByteBuffer buffer = content.bytes(base, (int) (index.getByteEnd(toLine - 1) - base));
+        int limit = buffer.remaining() - bytes.length;
+        int position = 0;
+        String text = query.getText();
+        while (position <= limit && hits.size() < maxHits) {
+            int j = bytes.length - 1;
+            while (j >= 0 && buffer.get(position + j) == bytes[j]) {
+                j--;
+            }
+            if (j >= 0) {
+                position += shift[buffer.get(position + bytes.length - 1) & 0xFF];
+                continue;
+            }
+            int line = index.lineAtByte(base + position);
+            CharBuffer lineText = content.decodeLine(index, line, decoder);
+            String lineString = lineText.toString();
+            int column = lineString.indexOf(text);
+            while (column >= 0 && hits.size() < maxHits) {
+                hits.add(createHit(line, lineText, column, text.length()));
+                column = lineString.indexOf(text, column + text.length());
+            }
+            position = (int) (index.getByteEnd(line) - base);
+            if (currentSearch != search) break;
+        }
+        return hits;
+    }
+    
+    private SearchHit createHit(int line, CharBuffer text, int column, int length) {
+        int start = Math.max(0, column - PREVIEW_CHARS);
+        int end = Math.min(text.length(), column + length + PREVIEW_CHARS);
+        String preview = text.subSequence(start, end).toString().trim();
+        return new SearchHit(line, column, length, preview);
+    }
+    
+    private void post(final Object search, final SearchListener listener, final ArrayList<SearchHit> hits,
+                      final boolean done, final int total, final boolean truncated, final Exception error) {
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                if (currentSearch != search) return;
+                if (error != null) {
+                    currentSearch = null;
+                    listener.failed(error);
+                    return;
+                }
+                if (!hits.isEmpty()) {
+                    listener.hitsFound(hits);
+                }
+                if (done) {
+                    currentSearch = null;
+                    listener.finished(total, truncated);
+                }
+            }
+        });
+    }
+}
+
+// 查找时需要的阅读器操作
+interface SearchNavigator {
+    BookContent getBook();
+    int getCurrentLine();
+    void showHit(SearchHit hit);
+    void setSearchHits(ArrayList<SearchHit> hits);
+}
+
+// 查找对话框，非模态，结果边找边显示
+class SearchDialog extends JDialog {
+    private BookSearcher searcher;
+    private SearchNavigator navigator;
+    private JTextField queryField;
+    private JCheckBox regexBox;
+    private JCheckBox ignoreCaseBox;
+    private JLabel statusLabel;
+    private DefaultListModel<SearchHit> hitListModel;
+    private JList<SearchHit> hitList;
+    private ArrayList<SearchHit> hits;
+    private SearchHit lastHit;
+    
+    public SearchDialog(JFrame parent, BookSearcher searcher, SearchNavigator navigator) {
+        super(parent, "查找", false);
+        this.searcher = searcher;
+        this.navigator = navigator;
+        this.hits = new ArrayList<>();
+        initComponents();
+        pack();
+        setSize(480, 400);
+        setLocationRelativeTo(parent);
+    }
+    
+    private void initComponents() {
+        setLayout(new BorderLayout());
+        
+        queryField = new JTextField();
+        regexBox = new JCheckBox("正则表达式");
+        ignoreCaseBox = new JCheckBox("忽略大小写");
+        JButton findNextButton = new JButton("查找下一个");
+        JButton findAllButton = new JButton("查找全部");
+        JButton stopButton = new JButton("停止");
+        
+        queryField.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                findNext();
+            }
+        });
+        findNextButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                findNext();
+            }
+        });
+        findAllButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                findAll();
+            }
+        });
+        stopButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                searcher.cancel();
+                statusLabel.setText("已停止，找到 " + hits.size() + " 处");
+            }
+        });
+        
+        JPanel optionPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        optionPanel.add(regexBox);
+        optionPanel.add(ignoreCaseBox);
+        optionPanel.add(findNextButton);
+        optionPanel.add(findAllButton);
+        optionPanel.add(stopButton);
+        
+        JPanel topPanel = new JPanel(new BorderLayout());
+        topPanel.add(queryField, BorderLayout.NORTH);
+        topPanel.add(optionPanel, BorderLayout.CENTER);
+        
+        hitListModel = new DefaultListModel<>();
+        hitList = new JList<>(hitListModel);
+        hitList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        hitList.addListSelectionListener(new ListSelectionListener() {
+            public void valueChanged(ListSelectionEvent e) {
+                SearchHit hit = hitList.getSelectedValue();
+                if (!e.getValueIsAdjusting() && hit != null) {
+                    lastHit = hit;
+                    navigator.showHit(hit);
+                }
+            }
+        });
+        
+        statusLabel = new JLabel(" ");
+        
+        add(topPanel, BorderLayout.NORTH);
+        add(new JScrollPane(hitList), BorderLayout.CENTER);
+        add(statusLabel, BorderLayout.SOUTH);
+    }
+    
+    private SearchQuery createQuery() {
+        String text = queryField.getText();
+        if (text.isEmpty() || navigator.getBook() == null) {
+            return null;
+        }
+        try {
+            return new SearchQuery(text.replace("\n", ""), regexBox.isSelected(), ignoreCaseBox.isSelected());
+        } catch (PatternSyntaxException e) {
+            JOptionPane.showMessageDialog(this, "正则表达式有误: " + e.getDescription(), "错误", JOptionPane.ERROR_MESSAGE);
+            return null;
+        }
+    }
+    
+    public void findNext() {
+        SearchQuery query = createQuery();
+        if (query == null) return;
+        
+        int line = navigator.getCurrentLine();
+        int column = -1;
+        if (lastHit != null && lastHit.getLine() == line) {
+            column = lastHit.getColumn();
+        }
+        statusLabel.setText("正在查找...");
+        searcher.findNext(navigator.getBook(), query, line, column, new SearchListener() {
+            public void hitsFound(ArrayList<SearchHit> found) {
+                lastHit = found.get(0);
+                navigator.showHit(lastHit);
+            }
+            
+            public void finished(int total, boolean truncated) {
+                statusLabel.setText(total == 0 ? "未找到" : "第" + (lastHit.getLine() + 1) + "行");
+            }
+            
+            public void failed(Exception e) {
+                statusLabel.setText("查找失败: " + e.getMessage());
+            }
+        });
+    }
+    
+    private void findAll() {
+        SearchQuery query = createQuery();
+        if (query == null) return;
+        
+        hits = new ArrayList<>();
+        hitListModel.clear();
+        navigator.setSearchHits(hits);
+        statusLabel.setText("正在查找...");
+        searcher.findAll(navigator.getBook(), query, new SearchListener() {
+            public void hitsFound(ArrayList<SearchHit> found) {
+                hits.addAll(found);
+                for (SearchHit hit : found) {
+                    hitListModel.addElement(hit);
+                }
+                navigator.setSearchHits(hits);
+                statusLabel.setText("正在查找... 已找到 " + hits.size() + " 处");
+            }
+            
+            public void finished(int total, boolean truncated) {
+                statusLabel.setText("找到 " + hits.size() + " 处" + (truncated ? "（结果过多，只显示前" + BookSearcher.MAX_HITS + "处）" : ""));
+            }
+            
+            public void failed(Exception e) {
+                statusLabel.setText("查找失败: " + e.getMessage());
+            }
+        });
+    }
+}
+
+// 程序数据和缓存目录
+class AppDirs {
+    public static Path dataDir() {
+        return Paths.get(System.getProperty("user.home"), ".txt_reader");
+    }
+    
+    // 可以随时删除重建的数据放在系统的缓存目录下
+    public static Path cacheDir() {
+        String os = System.getProperty("os.name", "").toLowerCase();
+        String home = System.getProperty("user.home");
+        if (os.startsWith("windows") && System.getenv("LOCALAPPDATA") != null) {
+            return Paths.get(System.getenv("LOCALAPPDATA"), "txt_reader", "cache");
+        }
+        if (os.startsWith("mac")) {
+            return Paths.get(home, "Library", "Caches", "txt_reader");
+        }
+        String xdg = System.getenv("XDG_CACHE_HOME");
+        return Paths.get(xdg != null && !xdg.isEmpty() ? xdg : home + File.separator + ".cache", "txt_reader");
+    }
+    
+    // 缓存文件名：key的SHA-1取前12字节
+    public static String hashName(String key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 12; i++) {
+                sb.append(String.format("%02x", hash[i]));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
+
+// 可增长的int数组
+class IntList {
+    private int[] values;
+    private int size;
+    
+    public IntList() {
+        this(8);
+    }
+    
+    public IntList(int capacity) {
+        values = new int[Math.max(1, capacity)];
+    }
+    
+    public void add(int value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = value;
+    }
+    
+    public int get(int index) { return values[index]; }
+    public int size() { return size; }
+    public boolean isEmpty() { return size == 0; }
+    
+    public int last() {
+        return values[size - 1];
+    }
+    
+    public int[] toArray() {
+        return Arrays.copyOf(values, size);
+    }
+}
+
+
+// 一个词的倒排表：包含该词的书和每本书中的行号，都按升序排列
+class TermPostings {
+    private int[] docIds;
+    private int[][] lines;
+    
+    public TermPostings(int[] docIds, int[][] lines) {
+        this.docIds = docIds;
+        this.lines = lines;
+    }
+    
+    public int getDocCount() { return docIds.length; }
+    public int getDocId(int index) { return docIds[index]; }
+    public int[] getLines(int index) { return lines[index]; }
+}
+
+// 索引段：内存映射的只读文件，词典按词排序，倒排表用变长整数差值压缩
+// 格式：文件头(魔数, 版本, 词数, 词表偏移)，每个词一条记录(词长, UTF-8词, 倒排表长度, 倒排表)，最后是按词排序的记录偏移表
+class IndexSegment implements Closeable {
+    public static final int MAGIC = 0x54584958;
+    public static final int VERSION = 1;
+    public static final int HEADER_BYTES = 20;
+    
+    private int id;
+    private Path path;
+    private MappedTextFile file;
+    private int termCount;
+    private long tableOffset;
+    
+    public IndexSegment(int id, Path path) throws IOException {
+        this.id = id;
+        this.path = path;
+        this.file = new MappedTextFile(path);
+        if (file.size() < HEADER_BYTES || file.slice(0, 4).getInt() != MAGIC || file.slice(4, 4).getInt() != VERSION) {
+            file.close();
+            throw new IOException("索引文件已损坏: " + path);
+        }
+        termCount = file.slice(8, 4).getInt();
+        tableOffset = file.slice(12, 8).getLong();
+    }
+    
+    public int getId() { return id; }
+    public Path getPath() { return path; }
+    public int getTermCount() { return termCount; }
+    
+    private long entryOffset(int index) {
+        return file.slice(tableOffset + index * 8L, 8).getLong();
+    }
+    
+    public String termAt(int index) {
+        long entry = entryOffset(index);
+        int length = file.slice(entry, 2).getShort() & 0xFFFF;
+        return StandardCharsets.UTF_8.decode(file.slice(entry + 2, length)).toString();
+    }
+    
+    // 二分查找，找不到时返回-(插入位置)-1
+    public int find(String term) {
+        int low = 0;
+        int high = termCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int cmp = termAt(middle).compareTo(term);
+            if (cmp < 0) {
+                low = middle + 1;
+            } else if (cmp > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+    
+    public TermPostings readPostings(int index) {
+        long entry = entryOffset(index);
+        int termLength = file.slice(entry, 2).getShort() & 0xFFFF;
+        int length = file.slice(entry + 2 + termLength, 4).getInt();
+        ByteBuffer in = file.slice(entry + 6 + termLength, length);
+        int docCount = IndexSegmentWriter.readVarint(in);
+        int[] docIds = new int[docCount];
+        int[][] lines = new int[docCount][];
+        int docId = 0;
+        for (int d = 0; d < docCount; d++) {
+            docId += IndexSegmentWriter.readVarint(in);
+            docIds[d] = docId;
+            int[] docLines = new int[IndexSegmentWriter.readVarint(in)];
+            int line = 0;
+            for (int k = 0; k < docLines.length; k++) {
+                line += IndexSegmentWriter.readVarint(in);
+                docLines[k] = line;
+            }
+            lines[d] = docLines;
+        }
+        return new TermPostings(docIds, lines);
+    }
+    
+    public void close() throws IOException {
+        file.close();
+    }
+}
+
+// 顺序写出索引段，词必须按升序添加
+class IndexSegmentWriter implements Closeable {
+    private Path path;
+    private DataOutputStream out;
+    private long position;
+    private long[] entryOffsets;
+    private int termCount;
+    private ByteArrayOutputStream postingsBuffer;
+    
+    public IndexSegmentWriter(Path path) throws IOException {
+        this.path = path;
+        this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 64 * 1024));
+        this.out.write(new byte[IndexSegment.HEADER_BYTES]);
+        this.position = IndexSegment.HEADER_BYTES;
+        this.entryOffsets = new long[1024];
+        this.postingsBuffer = new ByteArrayOutputStream();
+    }
+    
+    public void addTerm(String term, int[] docIds, int[][] lines, int docCount) throws IOException {
+        postingsBuffer.reset();
+        writeVarint(postingsBuffer, docCount);
+        int previousDoc = 0;
+        for (int d = 0; d < docCount; d++) {
+            writeVarint(postingsBuffer, docIds[d] - previousDoc);
+            previousDoc = docIds[d];
+            int[] docLines = lines[d];
+            writeVarint(postingsBuffer, docLines.length);
+            int previousLine = 0;
+            for (int line : docLines) {
+                writeVarint(postingsBuffer, line - previousLine);
+                previousLine = line;
+            }
+        }
+        if (termCount == entryOffsets.length) {
+            entryOffsets = Arrays.copyOf(entryOffsets, termCount * 2);
+        }
+        entryOffsets[termCount++] = position;
+        byte[] termBytes = term.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(termBytes.length);
+        out.write(termBytes);
+        out.writeInt(postingsBuffer.size());
+        postingsBuffer.writeTo(out);
+        position += 2 + termBytes.length + 4 + postingsBuffer.size();
+    }
+    
+    // 写出偏移表并回填文件头
+    public void close() throws IOException {
+        for (int i = 0; i < termCount; i++) {
+            out.writeLong(entryOffsets[i]);
+        }
+        out.close();
+        try (RandomAccessFile header = new RandomAccessFile(path.toFile(), "rw")) {
+            header.writeInt(IndexSegment.MAGIC);
+            header.writeInt(IndexSegment.VERSION);
+            header.writeInt(termCount);
+            header.writeLong(position);
+        }
+    }
+    
+    public static void writeVarint(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+    
+    public static int readVarint(InputStream in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        while (true) {
+            int b = in.read();
+            if (b < 0) throw new EOFException();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+    
+    public static int readVarint(ByteBuffer in) {
+        int value = 0;
+        int shift = 0;
+        while (true) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+}
+
+// 已加入索引的书
+class IndexedDoc {
+    private int docId;
+    private String filePath;
+    private long size;
+    private long modified;
+    
+    public IndexedDoc(int docId, String filePath, long size, long modified) {
+        this.docId = docId;
+        this.filePath = filePath;
+        this.size = size;
+        this.modified = modified;
+    }
+    
+    public int getDocId() { return docId; }
+    public String getFilePath() { return filePath; }
+    public long getSize() { return size; }
+    public long getModified() { return modified; }
+}
+
+// 书库全文搜索结果
+class LibraryHit {
+    private String bookName;
+    private String filePath;
+    private int line;
+    
+    public LibraryHit(String filePath, int line) {
+        this.filePath = filePath;
+        this.line = line;
+    }
+    
+    public String getFilePath() { return filePath; }
+    public int getLine() { return line; }
+    public void setBookName(String bookName) { this.bookName = bookName; }
+    
+    @Override
+    public String toString() {
+        return (bookName != null ? "《" + bookName + "》" : filePath) + " 第" + (line + 1) + "行";
+    }
+}
+
+// 书库索引的回调，全部在事件线程上调用
+interface LibraryIndexListener {
+    void progress(int done, int total);
+    void finished(int indexed);
+    void searched(ArrayList<LibraryHit> hits, long nanos);
+    void failed(Exception e);
+}
+
+// 书库倒排索引：汉字按相邻两字、其他文字按单词切分，记录到行
+// 每次更新把新书写成一个新的索引段，旧书只从清单中删除，段太多时合并并清理已删除的书
+class LibraryIndex {
+    private static final int MANIFEST_VERSION = 1;
+    private static final int MAX_SEGMENTS = 8;
+    private static final long BATCH_BYTES = 64L * 1024 * 1024;
+    private static final int MAX_WORD_LENGTH = 32;
+    
+    private Path dir;
+    private boolean opened;
+    private int nextDocId;
+    private int nextSegmentId;
+    private HashMap<String, IndexedDoc> docsByPath = new HashMap<>();
+    private HashMap<Integer, IndexedDoc> docsById = new HashMap<>();
+    private ArrayList<IndexSegment> segments = new ArrayList<>();
+    private ExecutorService updater;
+    private ExecutorService searcher;
+    private ExecutorService workers;
+    
+    public LibraryIndex(Path dir) {
+        this.dir = dir;
+        updater = Executors.newSingleThreadExecutor(daemonThreads("library-index"));
+        searcher = Executors.newSingleThreadExecutor(daemonThreads("library-search"));
+        workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), daemonThreads("library-index-worker"));
+    }
+    
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+    
+    public void updateAsync(final ArrayList<LibraryBook> books, final LibraryIndexListener listener) {
+        updater.execute(new Runnable() {
+            public void run() {
+                try {
+                    final int indexed = update(books, listener);
+                    SwingUtilities.invokeLater(new Runnable() {
+                        public void run() {
+                            listener.finished(indexed);
+                        }
+                    });
+                } catch (final Exception e) {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        public void run() {
+                            listener.failed(e);
+                        }
+                    });
+                }
+            }
+        });
+    }
+    
+    public void searchAsync(final String query, final int limit, final LibraryIndexListener listener) {
+        searcher.execute(new Runnable() {
+            public void run() {
+                try {
+                    long start = System.nanoTime();
+                    final ArrayList<LibraryHit> hits = search(query, limit);
+                    final long nanos = System.nanoTime() - start;
+                    SwingUtilities.invokeLater(new Runnable() {
+                        public void run() {
+                            listener.searched(hits, nanos);
+                        }
+                    });
+                } catch (final Exception e) {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        public void run() {
+                            listener.failed(e);
+                        }
+                    });
+                }
+            }
+        });
+    }
+    
+    // 按大小和修改时间找出新增、变化和移除的书，只索引有变化的部分，返回新索引的书数
+    public int update(ArrayList<LibraryBook> books, final LibraryIndexListener listener) throws IOException {
+        ensureOpen();
+        HashMap<String, BasicFileAttributes> wanted = new HashMap<>();
+        for (LibraryBook book : books) {
+            try {
+                wanted.put(book.getFilePath(), Files.readAttributes(Paths.get(book.getFilePath()), BasicFileAttributes.class));
+            } catch (IOException e) {
+                // 文件已不存在，从索引中移除
+            }
+        }
+        
+        ArrayList<String> toIndex = new ArrayList<>();
+        boolean removed = false;
+        synchronized (this) {
+            Iterator<IndexedDoc> it = docsByPath.values().iterator();
+            while (it.hasNext()) {
+                IndexedDoc doc = it.next();
+                BasicFileAttributes attrs = wanted.get(doc.getFilePath());
+                if (attrs == null || attrs.size() != doc.getSize() || attrs.lastModifiedTime().toMillis() != doc.getModified()) {
+                    it.remove();
+                    docsById.remove(doc.getDocId());
+                    removed = true;
+                }
+            }
+            for (String path : wanted.keySet()) {
+                if (!docsByPath.containsKey(path)) {
+                    toIndex.add(path);
+                }
+            }
+            if (removed) {
+                saveManifest();
+            }
+        }
+        
+        final int total = toIndex.size();
+        int done = 0;
+        while (done < total) {
+            ArrayList<IndexedDoc> batch = new ArrayList<>();
+            long batchBytes = 0;
+            while (done + batch.size() < total && (batch.isEmpty() || batchBytes < BATCH_BYTES)) {
+                String path = toIndex.get(done + batch.size());
+                BasicFileAttributes attrs = wanted.get(path);
+                synchronized (this) {
+                    batch.add(new IndexedDoc(nextDocId++, path, attrs.size(), attrs.lastModifiedTime().toMillis()));
+                }
+                batchBytes += attrs.size();
+            }
+            indexBatch(batch);
+            done += batch.size();
+            final int progress = done;
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    listener.progress(progress, total);
+                }
+            });
+        }
+        
+        boolean compact;
+        synchronized (this) {
+            compact = segments.size() > MAX_SEGMENTS;
+        }
+        if (compact) {
+            compact();
+        }
+        return total;
+    }
+    
+    // 并行切词，然后写成一个新的索引段
+    private void indexBatch(ArrayList<IndexedDoc> batch) throws IOException {
+        ArrayList<Future<HashMap<String, IntList>>> futures = new ArrayList<>();
+        for (final IndexedDoc doc : batch) {
+            futures.add(workers.submit(new Callable<HashMap<String, IntList>>() {
+                public HashMap<String, IntList> call() throws IOException {
+                    return tokenizeBook(Paths.get(doc.getFilePath()));
+                }
+            }));
+        }
+        ArrayList<IndexedDoc> indexed = new ArrayList<>();
+        ArrayList<HashMap<String, IntList>> docTerms = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            try {
+                docTerms.add(futures.get(i).get());
+                indexed.add(batch.get(i));
+            } catch (Exception e) {
+                // 读不了的书跳过，下次更新时再试
+                e.printStackTrace();
+            }
+        }
+        if (indexed.isEmpty()) return;
+        
+        HashSet<String> termSet = new HashSet<>();
+        for (HashMap<String, IntList> terms : docTerms) {
+            termSet.addAll(terms.keySet());
+        }
+        String[] sortedTerms = termSet.toArray(new String[0]);
+        Arrays.sort(sortedTerms);
+        
+        int segmentId;
+        synchronized (this) {
+            segmentId = nextSegmentId++;
+        }
+        Path path = segmentPath(segmentId);
+        int[] docIds = new int[indexed.size()];
+        int[][] lines = new int[indexed.size()][];
+        try (IndexSegmentWriter writer = new IndexSegmentWriter(path)) {
+            for (String term : sortedTerms) {
+                int count = 0;
+                for (int d = 0; d < indexed.size(); d++) {
+                    IntList termLines = docTerms.get(d).get(term);
+                    if (termLines != null) {
+                        docIds[count] = indexed.get(d).getDocId();
+                        lines[count] = termLines.toArray();
+                        count++;
+                    }
+                }
+                writer.addTerm(term, docIds, lines, count);
+            }
+        }
+        IndexSegment segment = new IndexSegment(segmentId, path);
+        synchronized (this) {
+            segments.add(segment);
+            for (IndexedDoc doc : indexed) {
+                docsByPath.put(doc.getFilePath(), doc);
+                docsById.put(doc.getDocId(), doc);
+            }
+            saveManifest();
+        }
+    }
+    
+    private HashMap<String, IntList> tokenizeBook(Path path) throws IOException {
+        HashMap<String, IntList> terms = new HashMap<>();
+        ArrayList<String> lineTerms = new ArrayList<>();
+        try (BookContent content = BookContent.open(path, null)) {
+            LineIndex index = content.getLineIndex();
+            LineDecoder decoder = new LineDecoder(content.getCharset());
+            for (int line = 0; line < index.getLineCount(); line++) {
+                lineTerms.clear();
+                tokenize(content.decodeLine(index, line, decoder), lineTerms);
+                for (String term : lineTerms) {
+                    IntList termLines = terms.get(term);
+                    if (termLines == null) {
+                        termLines = new IntList(4);
+                        terms.put(term, termLines);
+                    }
+                    if (termLines.isEmpty() || termLines.last() != line) {
+                        termLines.add(line);
+                    }
+                }
+            }
+        }
+        return terms;
+    }
+    
+    private static boolean isCjk(char c) {
+        return (c >= '\u3040' && c <= '\u30FF') || (c >= '\u3400' && c <= '\u4DBF')
+            || (c >= '\u4E00' && c <= '\u9FFF') || (c >= '\uF900' && c <= '\uFAFF');
+    }
+    
+    // 连续的汉字取相邻两字，单独的一个汉字取单字；字母数字组成的单词转小写
+    static void tokenize(CharSequence text, ArrayList<String> out) {
+        int length = text.length();
+        int runStart = -1;
+        int wordStart = -1;
+        for (int i = 0; i <= length; i++) {
+            char c = i < length ? text.charAt(i) : ' ';
+            if (isCjk(c)) {
+                if (wordStart >= 0) {
+                    addWord(text, wordStart, i, out);
+                    wordStart = -1;
+                }
+                if (runStart < 0) {
+                    runStart = i;
+                } else {
+                    out.add(text.subSequence(i - 1, i + 1).toString());
+                }
+                continue;
+            }
+            if (runStart >= 0) {
+                if (i - runStart == 1) {
+                    out.add(String.valueOf(text.charAt(runStart)));
+                }
+                runStart = -1;
+            }
+            if (Character.isLetterOrDigit(c)) {
+                if (wordStart < 0) wordStart = i;
+            } else if (wordStart >= 0) {
+                addWord(text, wordStart, i, out);
+                wordStart = -1;
+            }
+        }
+    }
+    
+    private static void addWord(CharSequence text, int start, int end, ArrayList<String> out) {
+        if (end - start <= MAX_WORD_LENGTH) {
+            out.add(text.subSequence(start, end).toString().toLowerCase(Locale.ROOT));
+        }
+    }
+    
+    // 所有词都出现在同一行才算命中；单个汉字按前缀匹配以它开头的词
+    public ArrayList<LibraryHit> search(String query, int limit) throws IOException {
+        ensureOpen();
+        ArrayList<IndexSegment> searchSegments;
+        synchronized (this) {
+            searchSegments = new ArrayList<>(segments);
+        }
+        ArrayList<String> terms = new ArrayList<>();
+        tokenize(query, terms);
+        
+        TreeMap<Integer, int[]> result = null;
+        for (String term : new LinkedHashSet<>(terms)) {
+            boolean prefix = term.length() == 1 && isCjk(term.charAt(0));
+            TreeMap<Integer, int[]> postings = lookup(searchSegments, term, prefix);
+            result = result == null ? postings : intersect(result, postings);
+            if (result.isEmpty()) break;
+        }
+        
+        ArrayList<LibraryHit> hits = new ArrayList<>();
+        if (result == null) return hits;
+        synchronized (this) {
+            for (Map.Entry<Integer, int[]> entry : result.entrySet()) {
+                IndexedDoc doc = docsById.get(entry.getKey());
+                if (doc == null) continue;
+                for (int line : entry.getValue()) {
+                    if (hits.size() >= limit) return hits;
+                    hits.add(new LibraryHit(doc.getFilePath(), line));
+                }
+            }
+        }
+        return hits;
+    }
+    
+    private TreeMap<Integer, int[]> lookup(ArrayList<IndexSegment> searchSegments, String term, boolean prefix) {
+        TreeMap<Integer, IntList> merged = new TreeMap<>();
+        for (IndexSegment segment : searchSegments) {
+            int index = segment.find(term);
+            if (!prefix) {
+                if (index >= 0) addPostings(merged, segment.readPostings(index));
+                continue;
+            }
+            for (int i = index >= 0 ? index : -index - 1; i < segment.getTermCount(); i++) {
+                String candidate = segment.termAt(i);
+                if (!candidate.startsWith(term)) break;
+                addPostings(merged, segment.readPostings(i));
+            }
+        }
+        TreeMap<Integer, int[]> result = new TreeMap<>();
+        for (Map.Entry<Integer, IntList> entry : merged.entrySet()) {
+            int[] lines = entry.getValue().toArray();
+            Arrays.sort(lines);
+            int count = 0;
+            for (int i = 0; i < lines.length; i++) {
+                if (i == 0 || lines[i] != lines[i - 1]) lines[count++] = lines[i];
+            }
+            result.put(entry.getKey(), Arrays.copyOf(lines, count));
+        }
+        return result;
+    }
+    
+    private void addPostings(TreeMap<Integer, IntList> merged, TermPostings postings) {
+        for (int d = 0; d < postings.getDocCount(); d++) {
+            IntList lines = merged.get(postings.getDocId(d));
+            if (lines == null) {
+                lines = new IntList();
+                merged.put(postings.getDocId(d), lines);
+            }
+            for (int line : postings.getLines(d)) {
+                lines.add(line);
+            }
+        }
+    }
+    
+    private TreeMap<Integer, int[]> intersect(TreeMap<Integer, int[]> a, TreeMap<Integer, int[]> b) {
+        TreeMap<Integer, int[]> result = new TreeMap<>();
+        for (Map.Entry<Integer, int[]> entry : a.entrySet()) {
+            int[] other = b.get(entry.getKey());
+            if (other == null) continue;
+            int[] lines = entry.getValue();
+            IntList common = new IntList();
+            int i = 0;
+            int j = 0;
+            while (i < lines.length && j < other.length) {
+                if (lines[i] < other[j]) {
+                    i++;
+                } else if (lines[i] > other[j]) {
+                    j++;
+                } else {
+                    common.add(lines[i]);
+                    i++;
+                    j++;
+                }
+            }
+            if (!common.isEmpty()) {
+                result.put(entry.getKey(), common.toArray());
+            }
+        }
+        return result;
+    }
+    
+    // 多路归并所有段，丢掉已删除书的倒排表；新书的编号总比旧书大，按段的先后顺序拼接即保持有序
+    private void compact() throws IOException {
+        ArrayList<IndexSegment> oldSegments;
+        HashSet<Integer> liveDocs;
+        int segmentId;
+        synchronized (this) {
+            oldSegments = new ArrayList<>(segments);
+            liveDocs = new HashSet<>(docsById.keySet());
+            segmentId = nextSegmentId++;
+        }
+        int count = oldSegments.size();
+        int[] positions = new int[count];
+        String[] currentTerms = new String[count];
+        for (int s = 0; s < count; s++) {
+            currentTerms[s] = oldSegments.get(s).getTermCount() > 0 ? oldSegments.get(s).termAt(0) : null;
+        }
+        
+        Path path = segmentPath(segmentId);
+        try (IndexSegmentWriter writer = new IndexSegmentWriter(path)) {
+            IntList docIds = new IntList();
+            ArrayList<int[]> lines = new ArrayList<>();
+            while (true) {
+                String term = null;
+                for (String candidate : currentTerms) {
+                    if (candidate != null && (term == null || candidate.compareTo(term) < 0)) {
+                        term = candidate;
+                    }
+                }
+                if (term == null) break;
+                
+                docIds = new IntList();
+                lines.clear();
+                for (int s = 0; s < count; s++) {
+                    if (!term.equals(currentTerms[s])) continue;
+                    IndexSegment segment = oldSegments.get(s);
+                    TermPostings postings = segment.readPostings(positions[s]);
+                    for (int d = 0; d < postings.getDocCount(); d++) {
+                        if (liveDocs.contains(postings.getDocId(d))) {
+                            docIds.add(postings.getDocId(d));
+                            lines.add(postings.getLines(d));
+                        }
+                    }
+                    positions[s]++;
+                    currentTerms[s] = positions[s] < segment.getTermCount() ? segment.termAt(positions[s]) : null;
+                }
+                if (!docIds.isEmpty()) {
+                    writer.addTerm(term, docIds.toArray(), lines.toArray(new int[0][]), docIds.size());
+                }
+            }
+        }
+        
+        IndexSegment merged = new IndexSegment(segmentId, path);
+        synchronized (this) {
+            segments.removeAll(oldSegments);
+            segments.add(0, merged);
+            saveManifest();
+        }
+        for (IndexSegment segment : oldSegments) {
+            segment.close();
+            try {
+                Files.deleteIfExists(segment.getPath());
+            } catch (IOException e) {
+                // 仍被映射时删除可能失败，下次打开时清理
+            }
+        }
+    }
+    
+    private Path segmentPath(int segmentId) {
+        return dir.resolve("seg_" + segmentId + ".idx");
+    }
+    
+    private synchronized void ensureOpen() throws IOException {
+        if (opened) return;
+        Files.createDirectories(dir);
+        Path manifest = dir.resolve("manifest.dat");
+        HashSet<Path> used = new HashSet<>();
+        used.add(manifest);
+        if (Files.exists(manifest)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(manifest)))) {
+                if (in.readInt() == MANIFEST_VERSION) {
+                    nextDocId = in.readInt();
+                    nextSegmentId = in.readInt();
+                    int segmentCount = in.readInt();
+                    for (int i = 0; i < segmentCount; i++) {
+                        int segmentId = in.readInt();
+                        segments.add(new IndexSegment(segmentId, segmentPath(segmentId)));
+                        used.add(segmentPath(segmentId));
+                    }
+                    int docCount = in.readInt();
+                    for (int i = 0; i < docCount; i++) {
+                        IndexedDoc doc = new IndexedDoc(in.readInt(), in.readUTF(), in.readLong(), in.readLong());
+                        docsByPath.put(doc.getFilePath(), doc);
+                        docsById.put(doc.getDocId(), doc);
+                    }
+                }
+            } catch (IOException e) {
+                // 清单损坏时丢弃整个索引重建
+                e.printStackTrace();
+                for (IndexSegment segment : segments) {
+                    segment.close();
+                }
+                segments.clear();
+                docsByPath.clear();
+                docsById.clear();
+                used.clear();
+                nextDocId = 0;
+                nextSegmentId = 0;
+            }
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                if (!used.contains(file)) {
+                    try {
+                        Files.deleteIfExists(file);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+        opened = true;
+    }
+    
+    private void saveManifest() throws IOException {
+        Path temp = dir.resolve("manifest.tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MANIFEST_VERSION);
+            out.writeInt(nextDocId);
+            out.writeInt(nextSegmentId);
+            out.writeInt(segments.size());
+            for (IndexSegment segment : segments) {
+                out.writeInt(segment.getId());
+            }
+            out.writeInt(docsById.size());
+            for (IndexedDoc doc : docsById.values()) {
+                out.writeInt(doc.getDocId());
+                out.writeUTF(doc.getFilePath());
+                out.writeLong(doc.getSize());
+                out.writeLong(doc.getModified());
+            }
+        }
+        Files.move(temp, dir.resolve("manifest.dat"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
+
+// 书库全文搜索对话框
+class LibrarySearchDialog extends JDialog {
+    private static final int MAX_RESULTS = 1000;
+    
+    private LibraryManager libraryManager;
+    private JTextField queryField;
+    private JButton searchButton;
+    private JLabel statusLabel;
+    private DefaultListModel<LibraryHit> hitListModel;
+    private JList<LibraryHit> hitList;
+    
+    public LibrarySearchDialog(JFrame parent, LibraryManager libraryManager) {
+        super(parent, "书库全文搜索", true);
+        this.libraryManager = libraryManager;
+        initComponents();
+        pack();
+        setSize(500, 400);
+        setLocationRelativeTo(parent);
+        updateIndex();
+    }
+    
+    private void initComponents() {
+        setLayout(new BorderLayout());
+        
+        queryField = new JTextField();
+        searchButton = new JButton("搜索");
+        JButton updateButton = new JButton("更新索引");
+        
+        ActionListener searchAction = new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                search();
+            }
+        };
+        queryField.addActionListener(searchAction);
+        searchButton.addActionListener(searchAction);
+        updateButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                updateIndex();
+            }
+        });
+        
+        JPanel topPanel = new JPanel(new BorderLayout());
+        JPanel buttonPanel = new JPanel(new FlowLayout());
+        buttonPanel.add(searchButton);
+        buttonPanel.add(updateButton);
+        topPanel.add(queryField, BorderLayout.CENTER);
+        topPanel.add(buttonPanel, BorderLayout.EAST);
+        
+        hitListModel = new DefaultListModel<>();
+        hitList = new JList<>(hitListModel);
+        hitList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        hitList.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.getClickCount() == 2) {
+                    openHit();
+                }
+            }
+        });
+        
+        statusLabel = new JLabel(" ");
+        
+        add(topPanel, BorderLayout.NORTH);
+        add(new JScrollPane(hitList), BorderLayout.CENTER);
+        add(statusLabel, BorderLayout.SOUTH);
+    }
+    
+    private void updateIndex() {
+        statusLabel.setText("正在检查索引...");
+        libraryManager.getSearchIndex().updateAsync(libraryManager.getAllBooks(), new LibraryIndexAdapter() {
+            public void progress(int done, int total) {
+                statusLabel.setText("正在建立索引 " + done + "/" + total);
+            }
+            
+            public void finished(int indexed) {
+                statusLabel.setText(indexed == 0 ? "索引已是最新" : "索引已更新，新索引 " + indexed + " 本书");
+            }
+        });
+    }
+    
+    private void search() {
+        String query = queryField.getText().trim();
+        if (query.isEmpty()) return;
+        
+        searchButton.setEnabled(false);
+        libraryManager.getSearchIndex().searchAsync(query, MAX_RESULTS, new LibraryIndexAdapter() {
+            public void searched(ArrayList<LibraryHit> hits, long nanos) {
+                searchButton.setEnabled(true);
+                HashMap<String, String> names = new HashMap<>();
+                for (LibraryBook book : libraryManager.getAllBooks()) {
+                    names.put(book.getFilePath(), book.getName());
+                }
+                hitListModel.clear();
+                for (LibraryHit hit : hits) {
+                    hit.setBookName(names.get(hit.getFilePath()));
+                    hitListModel.addElement(hit);
+                }
+                statusLabel.setText("找到 " + hits.size() + " 处" + (hits.size() >= MAX_RESULTS ? "（只显示前" + MAX_RESULTS + "处）" : "")
+                    + "，用时 " + (nanos / 1000000) + " 毫秒");
+            }
+        });
+    }
+    
+    private void openHit() {
+        LibraryHit hit = hitList.getSelectedValue();
+        if (hit == null) return;
+        for (LibraryBook book : libraryManager.getAllBooks()) {
+            if (book.getFilePath().equals(hit.getFilePath())) {
+                libraryManager.openBook(book, hit.getLine());
+                dispose();
+                return;
+            }
+        }
+    }
+    
+    // 默认实现：失败时显示错误
+    private abstract class LibraryIndexAdapter implements LibraryIndexListener {
+        public void progress(int done, int total) {
+        }
+        
+        public void finished(int indexed) {
+        }
+        
+        public void searched(ArrayList<LibraryHit> hits, long nanos) {
+        }
+        
+        public void failed(Exception e) {
+            searchButton.setEnabled(true);
+            statusLabel.setText("出错: " + e.getMessage());
+        }
+    }
+}
+
+// 一本书加载后得到的全部信息：编码、文件大小和修改时间、内容指纹、行索引和章节
+// 文件大小和修改时间都没变时可以直接使用，不必重新解码和扫描
+class BookMeta {
+    private String charsetName;
+    private long size;
+    private long modified;
+    private String fingerprint;
+    private LineIndex index;
+    private ArrayList<Chapter> chapters;
+    
+    public BookMeta(String charsetName, long size, long modified, String fingerprint, LineIndex index, ArrayList<Chapter> chapters) {
+        this.charsetName = charsetName;
+        this.size = size;
+        this.modified = modified;
+        this.fingerprint = fingerprint;
+        this.index = index;
+        this.chapters = chapters;
+    }
+    
+    public static BookMeta of(Path path, BookContent content, LineIndex index, ArrayList<Chapter> chapters) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        return new BookMeta(content.getCharset().name(), attrs.size(), attrs.lastModifiedTime().toMillis(),
+            content.getFingerprint(), index, chapters);
+    }
+    
+    public Charset getCharset() { return Charset.forName(charsetName); }
+    public String getCharsetName() { return charsetName; }
+    public long getSize() { return size; }
+    public long getModified() { return modified; }
+    public String getFingerprint() { return fingerprint; }
+    public LineIndex getLineIndex() { return index; }
+    public ArrayList<Chapter> getChapters() { return chapters; }
+    
+    public boolean matches(Path path) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            return attrs.size() == size && attrs.lastModifiedTime().toMillis() == modified;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    
+    public void write(DataOutputStream out) throws IOException {
+        out.writeUTF(charsetName);
+        out.writeLong(size);
+        out.writeLong(modified);
+        out.writeUTF(fingerprint);
+        index.writeTo(out);
+        writeChapters(out, chapters);
+    }
+    
+    public static BookMeta read(DataInputStream in) throws IOException {
+        String charsetName = in.readUTF();
+        long size = in.readLong();
+        long modified = in.readLong();
+        String fingerprint = in.readUTF();
+        LineIndex index = LineIndex.readFrom(in);
+        return new BookMeta(charsetName, size, modified, fingerprint, index, readChapters(in));
+    }
+    
+    public static void writeChapters(DataOutputStream out, ArrayList<Chapter> chapters) throws IOException {
+        out.writeInt(chapters.size());
+        for (Chapter chapter : chapters) {
+            out.writeUTF(chapter.getTitle());
+            out.writeInt(chapter.getStartLine());
+            out.writeByte(chapter.getLevel());
+        }
+    }
+    
+    public static ArrayList<Chapter> readChapters(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        ArrayList<Chapter> chapters = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            chapters.add(new Chapter(in.readUTF(), in.readInt(), in.readByte()));
+        }
+        return chapters;
+    }
+}
+
+// 上次退出时的会话：打开的书、读到的行和书的加载结果
+// 文件头只有几个字段，启动时先读文件头，加载结果在后台线程上读
+class SessionSnapshot {
+    private static final int MAGIC = 0x54585353;
+    private static final int VERSION = 1;
+    
+    private String filePath;
+    private String url;
+    private int topLine;
+    
+    public SessionSnapshot(String filePath, String url, int topLine) {
+        this.filePath = filePath;
+        this.url = url;
+        this.topLine = topLine;
+    }
+    
+    public String getFilePath() { return filePath; }
+    public String getUrl() { return url; }
+    public int getTopLine() { return topLine; }
+    
+    public static void write(Path path, SessionSnapshot session, BookMeta meta) throws IOException {
+        Files.createDirectories(path.getParent());
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 64 * 1024))) {
+            writeHeader(out, session);
+            meta.write(out);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    private static void writeHeader(DataOutputStream out, SessionSnapshot session) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(session.filePath);
+        out.writeBoolean(session.url != null);
+        if (session.url != null) {
+            out.writeUTF(session.url);
+        }
+        out.writeInt(session.topLine);
+    }
+    
+    private static SessionSnapshot readHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException("会话文件格式不对");
+        }
+        String filePath = in.readUTF();
+        String url = in.readBoolean() ? in.readUTF() : null;
+        return new SessionSnapshot(filePath, url, in.readInt());
+    }
+    
+    // 没有会话或文件损坏时返回null
+    public static SessionSnapshot readHeader(Path path) {
+        if (!Files.exists(path)) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 4096))) {
+            return readHeader(in);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+    
+    public static BookMeta readMeta(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 64 * 1024))) {
+            readHeader(in);
+            return BookMeta.read(in);
+        }
+    }
+}
+
+// 每本书的加载结果缓存：编码、指纹、行索引和章节，文件大小和修改时间没变、章节规则相同时直接使用
+// 批处理模式预先写好，阅读器打开本地文件时先查这里
+// 格式：魔数, 版本, 文件头长度, 文件头(路径、章节规则签名、编码、大小、修改时间、指纹、章节、行数), 对齐到8字节,
+// 每行的起始字节, 每行的起始字符；两个行表是定长数组，打开时直接映射，不用逐行解码
+class BookMetaCache {
+    private static final int MAGIC = 0x54584d43;
+    private static final int VERSION = 2;
+    
+    private Path dir;
+    
+    public BookMetaCache(Path dir) {
+        this.dir = dir;
+    }
+    
+    // 按书的绝对路径的哈希命名，文件里再存一份路径防止冲突
+    private Path fileFor(Path book) {
+        return dir.resolve(AppDirs.hashName(book.toAbsolutePath().normalize().toString()) + ".meta");
+    }
+    
+    // 章节规则变了之前扫描的章节就不能用了
+    public static long rulesSignature(ArrayList<ChapterRule> rules) {
+        CRC32 crc = new CRC32();
+        for (ChapterRule rule : rules) {
+            crc.update((rule.getRegex() + '\n' + rule.getLevel() + '\n').getBytes(StandardCharsets.UTF_8));
+        }
+        return crc.getValue();
+    }
+    
+    // 没有缓存、缓存已过期、版本不对或损坏时返回null；映射在返回的行索引不再使用后由垃圾回收释放
+    public BookMeta load(Path book, long rulesSignature) {
+        Path file = fileFor(book);
+        if (!Files.exists(file)) return null;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) return null;
+            byte[] header = new byte[buffer.getInt()];
+            buffer.get(header);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(header));
+            if (!in.readUTF().equals(book.toAbsolutePath().normalize().toString()) || in.readLong() != rulesSignature) return null;
+            String charsetName = in.readUTF();
+            long size = in.readLong();
+            long modified = in.readLong();
+            String fingerprint = in.readUTF();
+            ArrayList<Chapter> chapters = BookMeta.readChapters(in);
+            int lineCount = in.readInt();
+            long totalBytes = in.readLong();
+            long totalChars = in.readLong();
+            int tableStart = align(12 + header.length);
+            if (tableStart + lineCount * 16L != buffer.capacity()) return null;
+            LongBuffer byteStarts = buffer.position(tableStart).slice().asLongBuffer();
+            LongBuffer charStarts = buffer.position(tableStart + lineCount * 8).slice().asLongBuffer();
+            LineIndex index = LineIndex.mapped(byteStarts, charStarts, lineCount, totalBytes, totalChars);
+            BookMeta meta = new BookMeta(charsetName, size, modified, fingerprint, index, chapters);
+            return meta.matches(book) ? meta : null;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+    
+    private static int align(int position) {
+        return (position + 7) & ~7;
+    }
+    
+    // 先写临时文件再改名，多个线程或进程同时写同一本书也不会留下半个文件
+    // 行表超过2GB无法映射，这样的书不缓存
+    public void save(Path book, long rulesSignature, BookMeta meta) throws IOException {
+        LineIndex index = meta.getLineIndex();
+        int lineCount = index.getLineCount();
+        ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(headerBytes);
+        header.writeUTF(book.toAbsolutePath().normalize().toString());
+        header.writeLong(rulesSignature);
+        header.writeUTF(meta.getCharsetName());
+        header.writeLong(meta.getSize());
+        header.writeLong(meta.getModified());
+        header.writeUTF(meta.getFingerprint());
+        BookMeta.writeChapters(header, meta.getChapters());
+        header.writeInt(lineCount);
+        header.writeLong(index.getTotalBytes());
+        header.writeLong(index.getTotalChars());
+        int tableStart = align(12 + headerBytes.size());
+        if (tableStart + lineCount * 16L > Integer.MAX_VALUE) return;
+        
+        Path file = fileFor(book);
+        Files.createDirectories(dir);
+        Path temp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 256 * 1024))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(headerBytes.size());
+                headerBytes.writeTo(out);
+                out.write(new byte[tableStart - 12 - headerBytes.size()]);
+                for (int line = 0; line < lineCount; line++) {
+                    out.writeLong(index.getByteStart(line));
+                }
+                for (int line = 0; line < lineCount; line++) {
+                    out.writeLong(index.getCharStart(line));
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
+
+// 记录各阶段的耗时
+class PhaseTimer {
+    private long start = System.nanoTime();
+    private long last = start;
+    private ArrayList<String> phases = new ArrayList<>();
+    private ArrayList<Long> durations = new ArrayList<>();
+    
+    public synchronized void mark(String phase) {
+        long now = System.nanoTime();
+        phases.add(phase);
+        durations.add(now - last);
+        last = now;
+    }
+    
+    public synchronized String report() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < phases.size(); i++) {
+            sb.append(phases.get(i)).append(' ').append(durations.get(i) / 1000000).append("ms, ");
+        }
+        return sb.append("共 ").append((last - start) / 1000000).append("ms").toString();
+    }
+}
+
+// JFR事件：加载的一个阶段
+@Name("txtreader.LoadPhase")
+@Label("加载阶段")
+@Category("TxtReader")
+class LoadPhaseEvent extends jdk.jfr.Event {
+    @Label("来源")
+    String source;
+    @Label("阶段")
+    String phase;
+}
+
+// JFR事件：事件线程卡住超过阈值
+@Name("txtreader.EdtStall")
+@Label("界面卡顿")
+@Category("TxtReader")
+class EdtStallEvent extends jdk.jfr.Event {
+    @Label("卡住的毫秒数")
+    long stallMillis;
+    @Label("事件线程的调用栈")
+    String stack;
+}
+
+// 一个正在计时的阶段，结束时记入诊断信息并提交JFR事件
+class DiagnosticPhase {
+    private String phase;
+    private long start;
+    private LoadPhaseEvent event;
+    
+    public DiagnosticPhase(String source, String phase) {
+        this.phase = phase;
+        this.start = System.nanoTime();
+        this.event = new LoadPhaseEvent();
+        this.event.source = source;
+        this.event.phase = phase;
+        this.event.begin();
+    }
+    
+    public void end() {
+        event.commit();
+        Diagnostics.recordPhase(phase, System.nanoTime() - start);
+    }
+}
+
+// 诊断信息：最近一次加载各阶段的耗时、事件线程卡顿记录和各种计数器
+class Diagnostics {
+    private static final int MAX_STALLS = 20;
+    
+    private static final AtomicLong bytesLoaded = new AtomicLong();
+    private static final AtomicLong booksLoaded = new AtomicLong();
+    private static final AtomicLong stallCount = new AtomicLong();
+    private static String lastSource = "";
+    private static String startup = "";
+    private static ArrayList<String> lastPhases = new ArrayList<>();
+    private static LinkedList<String> stalls = new LinkedList<>();
+    private static volatile ChapterCache chapterCache;
+    private static volatile long documentBytes;
+    
+    public static synchronized DiagnosticPhase begin(String phase) {
+        return new DiagnosticPhase(lastSource, phase);
+    }
+    
+    // 开始加载一本书，清空上一本书的阶段记录
+    public static synchronized void loadStarted(String source) {
+        lastSource = source;
+        lastPhases = new ArrayList<>();
+    }
+    
+    public static void loadFinished(long bytes) {
+        bytesLoaded.addAndGet(bytes);
+        booksLoaded.incrementAndGet();
+    }
+    
+    static synchronized void recordPhase(String phase, long nanos) {
+        lastPhases.add(phase + " " + (nanos / 1000000) + "ms");
+    }
+    
+    static synchronized void recordStall(long millis, String stack) {
+        stallCount.incrementAndGet();
+        stalls.addFirst(new Date() + " 卡住 " + millis + "ms\n" + stack);
+        if (stalls.size() > MAX_STALLS) {
+            stalls.removeLast();
+        }
+    }
+    
+    // 启动到恢复上次的书并显示出目录的各阶段耗时
+    public static synchronized void setStartup(String report) { startup = report; }
+    public static synchronized String getStartup() { return startup; }
+    
+    public static void setChapterCache(ChapterCache cache) { chapterCache = cache; }
+    public static void setDocumentBytes(long bytes) { documentBytes = bytes; }
+    
+    public static long getBytesLoaded() { return bytesLoaded.get(); }
+    public static long getBooksLoaded() { return booksLoaded.get(); }
+    public static long getStallCount() { return stallCount.get(); }
+    public static long getDocumentBytes() { return documentBytes; }
+    public static long getCacheHits() { return chapterCache != null ? chapterCache.getHits() : 0; }
+    public static long getCacheMisses() { return chapterCache != null ? chapterCache.getMisses() : 0; }
+    public static long getCacheBytes() { return chapterCache != null ? chapterCache.getUsedBytes() : 0; }
+    
+    public static long getHeapUsed() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+    
+    public static synchronized String getLastLoad() {
+        return lastSource + ": " + String.join(", ", lastPhases);
+    }
+    
+    public static synchronized String getLastStall() {
+        return stalls.isEmpty() ? "" : stalls.getFirst();
+    }
+    
+    public static synchronized String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("启动耗时\n  ").append(startup.isEmpty() ? "启动中" : startup).append("\n\n");
+        sb.append("最近一次加载\n  ").append(getLastLoad()).append("\n\n");
+        sb.append("计数\n");
+        sb.append("  已加载 ").append(getBooksLoaded()).append(" 本书, 共 ").append(getBytesLoaded() / 1024).append(" KB\n");
+        sb.append("  章节缓存 命中 ").append(getCacheHits()).append(" 未命中 ").append(getCacheMisses())
+          .append(" 占用 ").append(getCacheBytes() / 1024).append(" KB\n");
+        sb.append("  当前书占用约 ").append(getDocumentBytes() / 1024).append(" KB, 堆已用 ")
+          .append(getHeapUsed() / 1048576).append(" MB\n\n");
+        sb.append("界面卡顿 ").append(getStallCount()).append(" 次\n");
+        for (String stall : stalls) {
+            sb.append(stall).append('\n');
+        }
+        return sb.toString();
+    }
+    
+    public static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                new StandardMBean(new DiagnosticsBean(), TxtReader.DiagnosticsMBean.class),
+                new ObjectName("txtreader:type=Diagnostics"));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
+
+// JMX接口的实现，数据都来自Diagnostics
+class DiagnosticsBean implements TxtReader.DiagnosticsMBean {
+    public long getBytesLoaded() { return Diagnostics.getBytesLoaded(); }
+    public long getBooksLoaded() { return Diagnostics.getBooksLoaded(); }
+    public long getChapterCacheHits() { return Diagnostics.getCacheHits(); }
+    public long getChapterCacheMisses() { return Diagnostics.getCacheMisses(); }
+    public long getChapterCacheBytes() { return Diagnostics.getCacheBytes(); }
+    public long getDocumentBytes() { return Diagnostics.getDocumentBytes(); }
+    public long getHeapUsed() { return Diagnostics.getHeapUsed(); }
+    public long getEdtStallCount() { return Diagnostics.getStallCount(); }
+    public String getLastLoad() { return Diagnostics.getLastLoad(); }
+    public String getLastEdtStall() { return Diagnostics.getLastStall(); }
+    public String getStartup() { return Diagnostics.getStartup(); }
+}
+
+// 事件线程卡顿检测：定时往事件线程投一个空任务，超过阈值还没执行就记下事件线程的调用栈
+class EdtWatchdog {
+    private static final long PROBE_INTERVAL_MS = 100;
+    
+    private long thresholdMillis;
+    private volatile Thread edt;
+    // 最近一次投递但还没被执行的时间，0表示没有
+    private final AtomicLong pendingSince = new AtomicLong();
+    private volatile String stallStack;
+    
+    public EdtWatchdog(long thresholdMillis) {
+        this.thresholdMillis = thresholdMillis;
+    }
+    
+    public void start() {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(PROBE_INTERVAL_MS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    probe();
+                }
+            }
+        }, "edt-watchdog");
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    private void probe() {
+        long since = pendingSince.get();
+        if (since == 0) {
+            final long posted = System.nanoTime();
+            pendingSince.set(posted);
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    edt = Thread.currentThread();
+                    pendingSince.set(0);
+                    finished(posted);
+                }
+            });
+        } else if (stallStack == null && System.nanoTime() - since > thresholdMillis * 1000000 && edt != null) {
+            // 卡住期间只取一次调用栈，恢复后再记录总时长
+            StringBuilder sb = new StringBuilder();
+            for (StackTraceElement element : edt.getStackTrace()) {
+                sb.append("    at ").append(element).append('\n');
+            }
+            synchronized (this) {
+                stallStack = sb.toString();
+            }
+        }
+    }
+    
+    private synchronized void finished(long posted) {
+        if (stallStack == null) return;
+        long millis = (System.nanoTime() - posted) / 1000000;
+        EdtStallEvent event = new EdtStallEvent();
+        event.stallMillis = millis;
+        event.stack = stallStack;
+        event.commit();
+        Diagnostics.recordStall(millis, stallStack);
+        stallStack = null;
+    }
+}
+
+// 诊断信息对话框
+class DiagnosticsDialog extends JDialog {
+    private JTextArea reportArea;
+    
+    public DiagnosticsDialog(JFrame parent) {
+        super(parent, "诊断信息", false);
+        initComponents();
+        setSize(600, 450);
+        setLocationRelativeTo(parent);
+    }
+    
+    private void initComponents() {
+        setLayout(new BorderLayout());
+        
+        reportArea = new JTextArea(Diagnostics.report());
+        reportArea.setEditable(false);
+        add(new JScrollPane(reportArea), BorderLayout.CENTER);
+        
+        JPanel buttonPanel = new JPanel(new FlowLayout());
+        JButton refreshButton = new JButton("刷新");
+        JButton closeButton = new JButton("关闭");
+        refreshButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                reportArea.setText(Diagnostics.report());
+                reportArea.setCaretPosition(0);
+            }
+        });
+        closeButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                dispose();
+            }
+        });
+        buttonPanel.add(refreshButton);
+        buttonPanel.add(closeButton);
+        add(buttonPanel, BorderLayout.SOUTH);
+    }
+}
+
+// 加载回调，全部在事件线程上调用
+interface BookLoadListener {
+    void progress(String stage, int percent);
+    // 网络文件下载了一部分，内容不完整
+    void preview(BookContent content);
+    // 第一屏文字已就绪，此时索引可能还不完整
+    void firstScreen(BookContent content);
+    void linesIndexed(BookContent content, boolean complete);
+    void chaptersFound(ArrayList<Chapter> chapters, boolean complete);
+    void failed(Exception e);
+}
+
+// 一次加载任务，取消后不再向监听器发送任何通知
+class LoadTask {
+    private BookLoadListener listener;
+    private volatile boolean cancelled;
+    private volatile boolean done;
+    private boolean contentPosted;
+    private String lastStage;
+    private int lastPercent = -1;
+    
+    public LoadTask(BookLoadListener listener) {
+        this.listener = listener;
+    }
+    
+    public void cancel() { cancelled = true; }
+    public boolean isCancelled() { return cancelled; }
+    public boolean isContentPosted() { return contentPosted; }
+    public boolean isDone() { return done; }
+    public void setDone() { done = true; }
+    
+    public void checkCancelled() {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+    }
+    
+    // 只有阶段或百分比变化时才通知
+    public void progress(final String stage, final int percent) {
+        if (stage.equals(lastStage) && percent == lastPercent) return;
+        lastStage = stage;
+        lastPercent = percent;
+        post(new Runnable() {
+            public void run() {
+                listener.progress(stage, percent);
+            }
+        });
+    }
+    
+    public void firstScreen(final BookContent content, final LineIndex index) {
+        contentPosted = true;
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                if (cancelled) {
+                    try {
+                        content.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    return;
+                }
+                content.setLineIndex(index);
+                listener.firstScreen(content);
+            }
+        });
+    }
+    
+    // 下载中先显示已收到的部分，之后的firstScreen会用完整的书替换它
+    public void preview(final BookContent content, final LineIndex index) {
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                if (cancelled) {
+                    try {
+                        content.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    return;
+                }
+                content.setLineIndex(index);
+                listener.preview(content);
+            }
+        });
+    }
+    
+    public void linesIndexed(final BookContent content, final LineIndex index, final boolean complete) {
+        post(new Runnable() {
+            public void run() {
+                content.setLineIndex(index);
+                listener.linesIndexed(content, complete);
+            }
+        });
+    }
+    
+    public void chaptersFound(final ArrayList<Chapter> chapters, final boolean complete) {
+        post(new Runnable() {
+            public void run() {
+                listener.chaptersFound(chapters, complete);
+            }
+        });
+    }
+    
+    public void failed(final Exception e) {
+        post(new Runnable() {
+            public void run() {
+                listener.failed(e);
+            }
+        });
+    }
+    
+    private void post(final Runnable action) {
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                if (!cancelled) {
+                    action.run();
+                }
+            }
+        });
+    }
+}
+
+// 下载缓存的元数据：校验用的ETag和Last-Modified，以及是否已下载完整
+class DownloadMeta {
+    private String url;
+    private String etag;
+    private String lastModified;
+    private long length;
+    private boolean complete;
+    
+    public DownloadMeta(String url, String etag, String lastModified, long length, boolean complete) {
+        this.url = url;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.length = length;
+        this.complete = complete;
+    }
+    
+    public String getUrl() { return url; }
+    public String getEtag() { return etag; }
+    public String getLastModified() { return lastModified; }
+    public long getLength() { return length; }
+    public boolean isComplete() { return complete; }
+    public boolean hasValidator() { return etag != null || lastModified != null; }
+    
+    public void setComplete(boolean complete) { this.complete = complete; }
+    
+    // 文件不存在或内容不是这个URL的时返回null
+    public static DownloadMeta read(Path path, String url) {
+        if (!Files.exists(path)) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            DownloadMeta meta = new DownloadMeta(in.readUTF(), readOptional(in), readOptional(in), in.readLong(), in.readBoolean());
+            return meta.getUrl().equals(url) ? meta : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+    
+    public void write(Path path) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeUTF(url);
+            writeOptional(out, etag);
+            writeOptional(out, lastModified);
+            out.writeLong(length);
+            out.writeBoolean(complete);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    private static String readOptional(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+    
+    private static void writeOptional(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+}
+
+// 下载进度回调，在下载线程上调用；partial是正在写入的文件
+interface DownloadProgress {
+    void received(Path partial, long bytes, long total);
+}
+
+// 网络文件下载：带超时，按URL缓存在本地，用ETag/Last-Modified校验，中断后用Range续传
+class HttpBookFetcher {
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+    // 超过这么久没收到数据就放弃，下次打开时续传
+    private static final long READ_TIMEOUT_MS = 30000;
+    
+    private HttpClient client;
+    private Path dir;
+    private ScheduledExecutorService watchdog;
+    
+    public HttpBookFetcher(Path dir) {
+        this.dir = dir;
+        this.client = HttpClient.newBuilder()
+            .connectTimeout(CONNECT_TIMEOUT)
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .build();
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "download-watchdog");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+    
+    private static String keyOf(String url) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(url.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : hash) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    // 返回下载完整的本地文件；服务器不可用时退回已缓存的旧版本
+    public Path fetch(String url, LoadTask task, DownloadProgress progress) throws IOException, InterruptedException {
+        Files.createDirectories(dir);
+        String key = keyOf(url);
+        Path body = dir.resolve(key + ".txt");
+        Path part = dir.resolve(key + ".part");
+        Path metaPath = dir.resolve(key + ".meta");
+        DownloadMeta meta = DownloadMeta.read(metaPath, url);
+        boolean cached = meta != null && meta.isComplete() && Files.exists(body);
+        
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(url)).timeout(REQUEST_TIMEOUT).GET();
+        long resumeFrom = 0;
+        if (cached) {
+            if (meta.getEtag() != null) request.header("If-None-Match", meta.getEtag());
+            if (meta.getLastModified() != null) request.header("If-Modified-Since", meta.getLastModified());
+        } else if (meta != null && meta.hasValidator() && Files.exists(part)) {
+            resumeFrom = Files.size(part);
+            if (resumeFrom > 0) {
+                request.header("Range", "bytes=" + resumeFrom + "-");
+                request.header("If-Range", meta.getEtag() != null ? meta.getEtag() : meta.getLastModified());
+            }
+        }
+        
+        HttpResponse<InputStream> response;
+        try {
+            response = client.send(request.build(), HttpResponse.BodyHandlers.ofInputStream());
+        } catch (IOException e) {
+            if (cached) return body;
+            throw e;
+        }
+        int status = response.statusCode();
+        if (status == 304 && cached) {
+            response.body().close();
+            return body;
+        }
+        boolean append = status == 206 && resumeFrom > 0;
+        if (status != 200 && !append) {
+            response.body().close();
+            if (cached) return body;
+            throw new IOException("服务器返回 HTTP " + status);
+        }
+        if (!append) {
+            resumeFrom = 0;
+        }
+        
+        HttpHeaders headers = response.headers();
+        long total = totalLength(headers, resumeFrom);
+        String etag = headers.firstValue("ETag").orElse(append ? meta.getEtag() : null);
+        String lastModified = headers.firstValue("Last-Modified").orElse(append ? meta.getLastModified() : null);
+        DownloadMeta fresh = new DownloadMeta(url, etag, lastModified, total, false);
+        fresh.write(metaPath);
+        
+        copyBody(response.body(), part, append, resumeFrom, total, task, progress);
+        Files.move(part, body, StandardCopyOption.REPLACE_EXISTING);
+        fresh.setComplete(true);
+        fresh.write(metaPath);
+        return body;
+    }
+    
+    // 完整长度：200看Content-Length，206看Content-Range；不知道时返回-1
+    private static long totalLength(HttpHeaders headers, long resumeFrom) {
+        String range = headers.firstValue("Content-Range").orElse(null);
+        if (range != null && range.lastIndexOf('/') >= 0) {
+            try {
+                return Long.parseLong(range.substring(range.lastIndexOf('/') + 1).trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        long length = headers.firstValueAsLong("Content-Length").orElse(-1);
+        return length >= 0 ? resumeFrom + length : -1;
+    }
+    
+    // 取消或长时间收不到数据时由看门狗关闭输入流，让阻塞的读取立即返回
+    private void copyBody(final InputStream in, Path part, boolean append, long resumeFrom, long total,
+                          final LoadTask task, DownloadProgress progress) throws IOException {
+        final AtomicLong lastRead = new AtomicLong(System.currentTimeMillis());
+        ScheduledFuture<?> guard = watchdog.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                if (task.isCancelled() || System.currentTimeMillis() - lastRead.get() > READ_TIMEOUT_MS) {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        // 忽略
+                    }
+                }
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+        
+        StandardOpenOption mode = append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING;
+        try (InputStream body = in;
+             OutputStream out = Files.newOutputStream(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE, mode)) {
+            byte[] buffer = new byte[64 * 1024];
+            long received = resumeFrom;
+            int n;
+            while ((n = body.read(buffer)) > 0) {
+                task.checkCancelled();
+                lastRead.set(System.currentTimeMillis());
+                out.write(buffer, 0, n);
+                received += n;
+                out.flush();
+                progress.received(part, received, total);
+            }
+            task.checkCancelled();
+            if (total >= 0 && received < total) {
+                throw new IOException("下载中断，已收到 " + received + "/" + total + " 字节");
+            }
+        } finally {
+            guard.cancel(false);
+        }
+    }
+}
+
+// 要恢复的会话文件，以及记录启动耗时的计时器
+class SessionSource {
+    private Path file;
+    private PhaseTimer timer;
+    
+    public SessionSource(Path file, PhaseTimer timer) {
+        this.file = file;
+        this.timer = timer;
+    }
+    
+    public Path getFile() { return file; }
+    public PhaseTimer getTimer() { return timer; }
+}
+
+// 后台加载流水线：读取 -> 检测编码 -> 解码并建立行索引 -> 章节扫描，开始新任务时取消旧任务
+class BookLoader {
+    private static final int FIRST_SCREEN_CHARS = 64 * 1024;
+    private static final long PUBLISH_INTERVAL_NANOS = 300000000L;
+    private static final long PREVIEW_BYTES = 256 * 1024;
+    // 预览之后每多收到几MB、且距上次至少几秒才刷新，复制的总量受时间间隔限制
+    private static final long PREVIEW_REFRESH_BYTES = 4L * 1024 * 1024;
+    private static final long PREVIEW_REFRESH_NANOS = 3000000000L;
+    
+    private HttpBookFetcher fetcher = new HttpBookFetcher(AppDirs.cacheDir().resolve("downloads"));
+    private BookMetaCache metaCache = new BookMetaCache(AppDirs.cacheDir().resolve("meta"));
+    private ExecutorService executor;
+    private ForkJoinPool scanPool;
+    private LoadTask currentTask;
+    private volatile ArrayList<ChapterRule> chapterRules;
+    
+    public BookLoader() {
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "book-loader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scanPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        chapterRules = ChapterScanner.builtInRules();
+    }
+    
+    public void setChapterRules(ArrayList<ChapterRule> rules) {
+        chapterRules = rules;
+    }
+    
+    public boolean isLoading() {
+        return currentTask != null && !currentTask.isDone();
+    }
+    
+    // 用当前规则重新扫描已加载完成的书
+    public LoadTask rescanChapters(final BookContent content, BookLoadListener listener) {
+        if (currentTask != null) {
+            currentTask.cancel();
+        }
+        final LoadTask task = new LoadTask(listener);
+        currentTask = task;
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    scanChapters(task, content, content.getLineIndex());
+                } catch (CancellationException e) {
+                    // 被新的任务取代
+                } catch (Exception e) {
+                    task.failed(e);
+                } finally {
+                    task.setDone();
+                }
+            }
+        });
+        return task;
+    }
+    
+    public LoadTask loadFile(Path path, Charset charset, BookLoadListener listener) {
+        return submit(path, null, charset, null, listener);
+    }
+    
+    public LoadTask loadUrl(String url, Charset charset, BookLoadListener listener) {
+        return submit(null, url, charset, null, listener);
+    }
+    
+    // 恢复上次的会话：文件没变时直接使用保存的行索引和章节，否则照常加载
+    public LoadTask loadSession(Path path, Path sessionFile, PhaseTimer timer, BookLoadListener listener) {
+        return submit(path, null, null, new SessionSource(sessionFile, timer), listener);
+    }
+    
+    private LoadTask submit(final Path path, final String url, final Charset charset, final SessionSource session, BookLoadListener listener) {
+        if (currentTask != null) {
+            currentTask.cancel();
+        }
+        final LoadTask task = new LoadTask(listener);
+        currentTask = task;
+        executor.execute(new Runnable() {
+            public void run() {
+                runTask(task, path, url, charset, session);
+            }
+        });
+        return task;
+    }
+    
+    private void runTask(final LoadTask task, Path path, String url, Charset charset, SessionSource session) {
+        BookContent content = null;
+        try {
+            Diagnostics.loadStarted(url != null ? url : path.toString());
+            if (session != null && restoreSession(task, path, session)) return;
+            if (url == null && restoreEmbedded(task, path, charset)) return;
+            if (url == null && restoreCached(task, path, charset)) return;
+            task.progress("读取", 0);
+            if (url != null) {
+                DiagnosticPhase downloading = Diagnostics.begin("下载");
+                path = download(task, url, charset);
+                downloading.end();
+            }
+            task.checkCancelled();
+            DiagnosticPhase reading = Diagnostics.begin("映射文件");
+            BookStorage file = BookStorage.open(path);
+            reading.end();
+            if (charset == null) {
+                task.progress("检测编码", 0);
+                DiagnosticPhase detecting = Diagnostics.begin("检测编码");
+                charset = CharsetDetector.detect(file);
+                detecting.end();
+            }
+            content = new BookContent(file, charset);
+            DiagnosticPhase decoding = Diagnostics.begin("解码建索引");
+            LineIndex index = indexLines(task, content);
+            decoding.end();
+            DiagnosticPhase scanning = Diagnostics.begin("扫描章节");
+            ArrayList<Chapter> chapters = scanChapters(task, content, index);
+            scanning.end();
+            Diagnostics.loadFinished(content.getSize());
+            if (url == null) {
+                saveCached(path, content, index, chapters);
+            }
+        } catch (CancellationException e) {
+            closeUnposted(task, content);
+        } catch (Exception e) {
+            closeUnposted(task, content);
+            task.failed(e);
+        } finally {
+            task.setDone();
+        }
+    }
+    
+    private LineIndex indexLines(final LoadTask task, final BookContent content) {
+        final long size = Math.max(1, content.getSize());
+        LineIndex index = content.buildLineIndex(new LineIndexProgress() {
+            private long lastPublish = System.nanoTime();
+            
+            public void lineIndexed(LineIndex building) {
+                task.checkCancelled();
+                if (!task.isContentPosted()) {
+                    if (building.getTotalChars() >= FIRST_SCREEN_CHARS) {
+                        task.firstScreen(content, building.snapshot());
+                        lastPublish = System.nanoTime();
+                    }
+                } else if (System.nanoTime() - lastPublish > PUBLISH_INTERVAL_NANOS) {
+                    task.linesIndexed(content, building.snapshot(), false);
+                    task.progress("建立行索引", (int) (building.getTotalBytes() * 100 / size));
+                    lastPublish = System.nanoTime();
+                }
+            }
+        });
+        if (!task.isContentPosted()) {
+            task.firstScreen(content, index);
+        }
+        task.linesIndexed(content, index, true);
+        return index;
+    }
+    
+    private boolean restoreSession(LoadTask task, Path path, SessionSource session) {
+        BookMeta meta;
+        DiagnosticPhase reading = Diagnostics.begin("读取会话");
+        try {
+            meta = SessionSnapshot.readMeta(session.getFile());
+            reading.end();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        session.getTimer().mark("读取会话");
+        if (!meta.matches(path)) return false;
+        return openMeta(task, path, meta);
+    }
+    
+    // 批处理模式或之前打开时留下的加载结果，文件没变、章节规则和编码都相同时直接使用
+    private boolean restoreCached(LoadTask task, Path path, Charset charset) {
+        DiagnosticPhase reading = Diagnostics.begin("读取缓存");
+        BookMeta meta = metaCache.load(path, BookMetaCache.rulesSignature(chapterRules));
+        reading.end();
+        if (meta == null || charset != null && !charset.equals(meta.getCharset())) return false;
+        return openMeta(task, path, meta);
+    }
+    
+    // 分块压缩的书里带着转换时的加载结果
+    private boolean restoreEmbedded(LoadTask task, Path path, Charset charset) {
+        if (!path.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(BlockCompressedFile.EXTENSION)) return false;
+        BookMeta meta;
+        DiagnosticPhase reading = Diagnostics.begin("读取缓存");
+        try (BlockCompressedFile file = new BlockCompressedFile(path)) {
+            meta = file.readMeta(BookMetaCache.rulesSignature(chapterRules));
+            reading.end();
+        } catch (IOException e) {
+            return false;
+        }
+        if (meta == null || charset != null && !charset.equals(meta.getCharset())) return false;
+        return openMeta(task, path, meta);
+    }
+    
+    private void saveCached(Path path, BookContent content, LineIndex index, ArrayList<Chapter> chapters) {
+        try {
+            metaCache.save(path, BookMetaCache.rulesSignature(chapterRules), BookMeta.of(path, content, index, chapters));
+        } catch (IOException e) {
+            // 缓存写不进去不影响阅读
+            e.printStackTrace();
+        }
+    }
+    
+    private boolean openMeta(LoadTask task, Path path, BookMeta meta) {
+        BookContent content = null;
+        try {
+            content = new BookContent(BookStorage.open(path), meta.getCharset());
+            content.setFingerprint(meta.getFingerprint());
+            LineIndex index = meta.getLineIndex();
+            task.checkCancelled();
+            task.firstScreen(content, index);
+            task.linesIndexed(content, index, true);
+            task.chaptersFound(meta.getChapters(), true);
+            Diagnostics.loadFinished(content.getSize());
+            return true;
+        } catch (IOException e) {
+            closeUnposted(task, content);
+            return false;
+        }
+    }
+    
+    // 并行扫描章节，本线程只负责等待结果并汇报进度
+    private ArrayList<Chapter> scanChapters(LoadTask task, BookContent content, LineIndex index) throws Exception {
+        ChapterScanner scanner = new ChapterScanner(chapterRules, scanPool);
+        AtomicLong scannedLines = new AtomicLong();
+        ForkJoinTask<ArrayList<Chapter>> scan = scanPool.submit(new Callable<ArrayList<Chapter>>() {
+            public ArrayList<Chapter> call() {
+                return scanner.scan(content, index, task, scannedLines);
+            }
+        });
+        long lineCount = Math.max(1, index.getLineCount());
+        while (true) {
+            try {
+                ArrayList<Chapter> chapters = scan.get(PUBLISH_INTERVAL_NANOS, TimeUnit.NANOSECONDS);
+                task.chaptersFound(chapters, true);
+                return chapters;
+            } catch (TimeoutException e) {
+                task.progress("扫描章节", (int) (scannedLines.get() * 100 / lineCount));
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof CancellationException) {
+                    throw (CancellationException) e.getCause();
+                }
+                throw e;
+            }
+        }
+    }
+    
+    // 下载够一屏后先用已收到的部分预览并定期刷新，下载完成后再按完整文件加载
+    private Path download(final LoadTask task, String url, final Charset charset) throws Exception {
+        final ArrayList<Path> previewCopies = new ArrayList<>();
+        Path body = fetcher.fetch(url, task, new DownloadProgress() {
+            private int previews;
+            private long nextPreviewBytes = PREVIEW_BYTES;
+            private long lastPreviewNanos;
+            
+            public void received(Path partial, long bytes, long total) {
+                if (total > 0) {
+                    task.progress("下载", (int) (bytes * 100 / total));
+                }
+                if (bytes < nextPreviewBytes || (total >= 0 && bytes >= total)) {
+                    return;
+                }
+                if (previews > 0 && System.nanoTime() - lastPreviewNanos < PREVIEW_REFRESH_NANOS) {
+                    return;
+                }
+                Path copy = preview(task, partial, charset, previews++);
+                nextPreviewBytes = bytes + PREVIEW_REFRESH_BYTES;
+                lastPreviewNanos = System.nanoTime();
+                if (copy != null) {
+                    // 新副本交给界面后旧副本就不再需要了
+                    deletePreviews(previewCopies);
+                    previewCopies.add(copy);
+                }
+            }
+        });
+        deletePreviews(previewCopies);
+        return body;
+    }
+    
+    // 预览用已收到部分的副本，避免映射着正在下载的文件导致下载完后无法改名
+    // 每次刷新写新的副本，界面还映射着的旧副本不会被覆盖
+    private Path preview(LoadTask task, Path partial, Charset charset, int number) {
+        try {
+            Path copy = partial.resolveSibling(partial.getFileName() + ".preview" + number);
+            Files.copy(partial, copy, StandardCopyOption.REPLACE_EXISTING);
+            MappedTextFile file = new MappedTextFile(copy);
+            BookContent content = new BookContent(file, charset != null ? charset : CharsetDetector.detect(file));
+            task.preview(content, content.buildLineIndex(null));
+            return copy;
+        } catch (IOException e) {
+            // 预览失败不影响下载
+            e.printStackTrace();
+            return null;
+        }
+    }
+    
+    private void deletePreviews(ArrayList<Path> copies) {
+        Iterator<Path> it = copies.iterator();
+        while (it.hasNext()) {
+            try {
+                Files.deleteIfExists(it.next());
+                it.remove();
+            } catch (IOException e) {
+                // 仍被映射时删不掉，留到下次再删
+            }
+        }
+    }
+    
+    private void closeUnposted(LoadTask task, BookContent content) {
+        if (content != null && !task.isContentPosted()) {
+            try {
+                content.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
+
+// 生成用于性能测试的中文小说：同样的参数总是生成同样的内容
+class CorpusGenerator {
+    private static final String COMMON_CHARS =
+        "的一是了我不人在他有这个上们来到时大地为子中你说生国年着就那和要她出也得里后自以会家可下而过天去能对小多然于心学么之都好看起发当没成只如事把还用第样道想作种开美总从无情己面最女但现前些所同日手又行意动方期它头经长儿回位分爱老因很给名法间斯知世什两次使身者被高已亲其进此话常与活正感";
+    private static final String[] TITLE_WORDS = {
+        "风起", "云涌", "初入", "江湖", "少年", "剑心", "归来", "夜雨", "山门", "试炼",
+        "故人", "重逢", "秘境", "惊变", "破局", "天机", "长歌", "落幕", "星火", "燎原"
+    };
+    private static final String DIGITS = "零一二三四五六七八九";
+    // Big5只能编码繁体字，按这张表逐字转换
+    private static final String SIMPLIFIED = "这个们来时为说国着里后会过对于学么发当没还样种开总从无现动头经长儿爱给间两亲进话与风云涌剑归门试炼惊变机";
+    private static final String TRADITIONAL = "這個們來時為說國著裡後會過對於學麼發當沒還樣種開總從無現動頭經長兒愛給間兩親進話與風雲湧劍歸門試煉驚變機";
+    
+    private long targetBytes;
+    private int chaptersPerMb;
+    private Charset charset;
+    private boolean traditional;
+    private Random random;
+    
+    public CorpusGenerator(long targetBytes, int chaptersPerMb, Charset charset, long seed) {
+        this.targetBytes = targetBytes;
+        this.chaptersPerMb = Math.max(1, chaptersPerMb);
+        // UTF-16每次编码都会加BOM，改用大端并只在开头写一次BOM
+        this.charset = charset.equals(StandardCharsets.UTF_16) ? StandardCharsets.UTF_16BE : charset;
+        this.traditional = this.charset.equals(CharsetDetector.BIG5);
+        this.random = new Random(seed);
+    }
+    
+    // 每50章插入一个卷标题，章节标题交替使用中文和阿拉伯数字
+    public void write(Path path) throws IOException {
+        long chapterBytes = 1024L * 1024 / chaptersPerMb;
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(path), 1 << 20)) {
+            if (CharsetDetector.isUtf16(charset)) {
+                out.write("\uFEFF".getBytes(charset));
+            }
+            long written = 0;
+            int chapter = 1;
+            while (written < targetBytes) {
+                if (chapter % 50 == 1) {
+                    written += writeLine(out, "第" + chineseNumber(chapter / 50 + 1) + "卷 " + title());
+                }
+                String number = chapter % 2 == 0 ? String.valueOf(chapter) : chineseNumber(chapter);
+                written += writeLine(out, "第" + number + "章 " + title());
+                long end = Math.min(targetBytes, written + chapterBytes / 2 + (long) (random.nextDouble() * chapterBytes));
+                while (written < end) {
+                    written += writeLine(out, paragraph());
+                }
+                chapter++;
+            }
+        }
+    }
+    
+    private int writeLine(OutputStream out, String line) throws IOException {
+        if (traditional) {
+            line = toTraditional(line);
+        }
+        byte[] bytes = (line + "\n").getBytes(charset);
+        out.write(bytes);
+        return bytes.length;
+    }
+    
+    private static String toTraditional(String text) {
+        char[] chars = text.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            int index = SIMPLIFIED.indexOf(chars[i]);
+            if (index >= 0) {
+                chars[i] = TRADITIONAL.charAt(index);
+            }
+        }
+        return new String(chars);
+    }
+    
+    private String title() {
+        return TITLE_WORDS[random.nextInt(TITLE_WORDS.length)] + TITLE_WORDS[random.nextInt(TITLE_WORDS.length)];
+    }
+    
+    private String paragraph() {
+        StringBuilder sb = new StringBuilder("　　");
+        int sentences = 1 + random.nextInt(5);
+        for (int s = 0; s < sentences; s++) {
+            int length = 6 + random.nextInt(30);
+            for (int i = 0; i < length; i++) {
+                sb.append(COMMON_CHARS.charAt(random.nextInt(COMMON_CHARS.length())));
+                if (i > 0 && i < length - 1 && random.nextInt(12) == 0) {
+                    sb.append('，');
+                }
+            }
+            sb.append(random.nextInt(6) == 0 ? '！' : '。');
+        }
+        return sb.toString();
+    }
+    
+    static String chineseNumber(int n) {
+        if (n < 10) return String.valueOf(DIGITS.charAt(n));
+        StringBuilder sb = new StringBuilder();
+        String[] units = {"", "十", "百", "千", "万"};
+        String digits = String.valueOf(n);
+        boolean zero = false;
+        for (int i = 0; i < digits.length(); i++) {
+            int d = digits.charAt(i) - '0';
+            int unit = digits.length() - 1 - i;
+            if (d == 0) {
+                zero = true;
+                continue;
+            }
+            if (zero) {
+                sb.append('零');
+                zero = false;
+            }
+            if (!(d == 1 && unit == 1 && i == 0)) {
+                sb.append(DIGITS.charAt(d));
+            }
+            sb.append(units[unit]);
+        }
+        return sb.toString();
+    }
+}
+
+// 性能测试：对一本书反复执行各个热点路径，报告平均耗时、吞吐量和分配的内存
+class ReaderBenchmark {
+    // 防止结果被优化掉
+    static volatile Object sink;
+    
+    private int warmup;
+    private int iterations;
+    private ThreadMXBean threads;
+    
+    public ReaderBenchmark(int warmup, int iterations) {
+        this.warmup = warmup;
+        this.iterations = iterations;
+        this.threads = ManagementFactory.getThreadMXBean();
+    }
+    
+    public void run(final Path file) throws Exception {
+        final BookContent content = BookContent.open(file, null);
+        final LineIndex index = content.getLineIndex();
+        final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        final long size = content.getSize();
+        final Random random = new Random(42);
+        System.out.println(file + ": " + size + " 字节, " + content.getCharset().name() + ", " + index.getLineCount() + " 行");
+        System.out.println(String.format("%-16s %12s %12s %14s", "操作", "平均(ms)", "MB/s", "分配(MB)"));
+        
+        measure("检测编码", 0, new Callable<Object>() {
+            public Object call() throws IOException {
+                try (BookStorage mapped = BookStorage.open(file)) {
+                    return CharsetDetector.detect(mapped);
+                }
+            }
+        });
+        measure("打开并建索引", size, new Callable<Object>() {
+            public Object call() throws IOException {
+                try (BookContent opened = BookContent.open(file, null)) {
+                    return opened.getLineCount();
+                }
+            }
+        });
+        measure("扫描章节", size, new Callable<Object>() {
+            public Object call() {
+                ChapterScanner scanner = new ChapterScanner(ChapterScanner.builtInRules(), pool);
+                return scanner.scan(content, index, new LoadTask(null), new AtomicLong());
+            }
+        });
+        // 跳转：取目标行附近一个窗口的正文，和阅读器跳转时做的事一样
+        measure("跳转取窗口x100", 0, new Callable<Object>() {
+            public Object call() {
+                int total = 0;
+                for (int i = 0; i < 100; i++) {
+                    int line = random.nextInt(Math.max(1, index.getLineCount()));
+                    int end = Math.min(index.getLineCount(), index.lineAtChar(index.getCharStart(line) + 200000) + 1);
+                    total += content.getText(line, end).length();
+                }
+                return total;
+            }
+        });
+        // 当前行：按字符位置二分查找行号
+        measure("定位行x100万", 0, new Callable<Object>() {
+            public Object call() {
+                long sum = 0;
+                long chars = Math.max(1, index.getTotalChars());
+                for (int i = 0; i < 1000000; i++) {
+                    sum += index.lineAtChar((long) (random.nextDouble() * chars));
+                }
+                return sum;
+            }
+        });
+        // 简繁转换：前1M字的吞吐，以及切换转换方式后重新整理一个显示窗口的耗时
+        final ChineseConverter converter = ChineseConverter.forMode(ChineseConverter.S2T);
+        final int sampleEnd = index.getLineCount() == 0 ? 0 : Math.min(index.getLineCount(), index.lineAtChar(1 << 20) + 1);
+        final String sample = content.getText(0, sampleEnd);
+        measure("简繁转换", sampleEnd == 0 ? 0 : index.getByteEnd(sampleEnd - 1), new Callable<Object>() {
+            public Object call() {
+                return converter.convert(sample);
+            }
+        });
+        final TextPipeline pipeline = new TextPipeline(false, false, new ArrayList<String>(), ChineseConverter.S2T);
+        measure("转换窗口x100", 0, new Callable<Object>() {
+            public Object call() {
+                int total = 0;
+                for (int i = 0; i < 100; i++) {
+                    int line = random.nextInt(Math.max(1, index.getLineCount()));
+                    int end = Math.min(index.getLineCount(), index.lineAtChar(index.getCharStart(line) + 200000) + 1);
+                    total += pipeline.apply(content, line, end).getText().length();
+                }
+                return total;
+            }
+        });
+        // 每轮写进临时目录下的一个新子目录，测完整个删掉；不导入也不改动用户的设置
+        final Path libraryDir = Files.createTempDirectory("txtreader_bench");
+        final AtomicInteger round = new AtomicInteger();
+        measure("书库写入x1万", 0, new Callable<Object>() {
+            public Object call() throws IOException {
+                Path dir = libraryDir.resolve(String.valueOf(round.incrementAndGet()));
+                LibraryStore store = new LibraryStore(dir, null, null);
+                for (int i = 0; i < 10000; i++) {
+                    store.put(new LibraryBook("书" + i, dir.resolve(i + ".txt").toString()));
+                }
+                store.close();
+                return store;
+            }
+        });
+        deleteTree(libraryDir);
+        content.close();
+        pool.shutdown();
+    }
+    
+    private void measure(String name, long bytes, Callable<Object> operation) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            sink = operation.call();
+        }
+        long nanos = 0;
+        long allocated = 0;
+        for (int i = 0; i < iterations; i++) {
+            long allocatedBefore = allocatedBytes();
+            long start = System.nanoTime();
+            sink = operation.call();
+            nanos += System.nanoTime() - start;
+            allocated += allocatedBytes() - allocatedBefore;
+        }
+        double millis = nanos / 1e6 / iterations;
+        String throughput = bytes > 0 ? String.format("%.1f", bytes / 1048576.0 / (millis / 1000)) : "-";
+        System.out.println(String.format("%-16s %12.2f %12s %14.1f", name, millis, throughput, allocated / 1048576.0 / iterations));
+    }
+    
+    private static void deleteTree(Path dir) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult postVisitDirectory(Path subdir, IOException e) throws IOException {
+                Files.delete(subdir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+    
+    // 所有存活线程分配的字节数，包括并行扫描的工作线程
+    private long allocatedBytes() {
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) return 0;
+        com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+        long total = 0;
+        for (long bytes : sunThreads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (bytes > 0) total += bytes;
+        }
+        return total;
+    }
+}
+
+// 批处理模式：不打开窗口，用固定数量的线程为目录下所有的书检测编码、建行索引、扫描章节和计算指纹，
+// 结果写进加载结果缓存，阅读器以后打开这些书时不用再做一遍
+class BatchIndexer {
+    private int threads;
+    private boolean force;
+    private ArrayList<ChapterRule> rules;
+    private long rulesSignature;
+    private BookMetaCache cache;
+    // 各工作线程的章节扫描共用一个同样大小的ForkJoin线程池
+    private ForkJoinPool scanPool;
+    private AtomicLong processedBytes = new AtomicLong();
+    private AtomicLong processedFiles = new AtomicLong();
+    private AtomicLong skippedFiles = new AtomicLong();
+    private AtomicLong failedFiles = new AtomicLong();
+    
+    public BatchIndexer(int threads, boolean force, ArrayList<ChapterRule> rules, BookMetaCache cache) {
+        this.threads = threads;
+        this.force = force;
+        this.rules = rules;
+        this.rulesSignature = BookMetaCache.rulesSignature(rules);
+        this.cache = cache;
+        this.scanPool = new ForkJoinPool(threads);
+    }
+    
+    public void run(Path dir) throws Exception {
+        final ArrayList<Path> files = new ArrayList<>();
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && BookStorage.isBookFile(file.getFileName().toString())) {
+                    files.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+            
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                System.err.println("无法读取 " + file + ": " + e.getMessage());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        // 大文件先做，避免最后只剩一个线程在处理大文件
+        final HashMap<Path, Long> sizes = new HashMap<>();
+        for (Path file : files) {
+            sizes.put(file, Files.size(file));
+        }
+        Collections.sort(files, new Comparator<Path>() {
+            public int compare(Path a, Path b) {
+                return Long.compare(sizes.get(b), sizes.get(a));
+            }
+        });
+        System.out.println("找到 " + files.size() + " 个文件, 使用 " + threads + " 个线程");
+        
+        ExecutorService workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int count;
             
-            try (PrintWriter writer = new PrintWriter(backupFile, "UTF-8")) {
-                for (LibraryBook book : books.values()) {
-                    writer.println(book.getName() + "|" + book.getFilePath() + "|" + book.getAddTime().getTime());
-                }
+            public synchronized Thread newThread(Runnable r) {
+                return new Thread(r, "batch-index-" + (++count));
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-    
-    @SuppressWarnings("unchecked")
-    private void loadLibrary() {
-        books = new HashMap<>();
-        try {
-            String libraryData = prefs.get(LIBRARY_KEY, "");
-            if (!libraryData.isEmpty()) {
-                String[] entries = libraryData.split(";;");
-                for (String entry : entries) {
-                    String[] parts = entry.split("\\|");
-                    if (parts.length >= 2) {
-                        books.put(parts[0], new LibraryBook(parts[0], parts[1]));
-                    }
+        });
+        long start = System.nanoTime();
+        ArrayList<Future<?>> results = new ArrayList<>();
+        for (final Path file : files) {
+            results.add(workers.submit(new Runnable() {
+                public void run() {
+                    indexFile(file);
                 }
-            }
-        } catch (Exception e) {
-            books = new HashMap<>();
+            }));
+        }
+        for (Future<?> result : results) {
+            result.get();
         }
+        workers.shutdown();
+        scanPool.shutdown();
+        
+        double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+        double megabytes = processedBytes.get() / 1048576.0;
+        System.out.println(String.format("处理 %d 个, 未变跳过 %d 个, 失败 %d 个; %.1f MB, 用时 %.2f 秒, %.1f MB/s, %.1f 个/秒",
+            processedFiles.get(), skippedFiles.get(), failedFiles.get(), megabytes, seconds,
+            megabytes / seconds, processedFiles.get() / seconds));
     }
     
-    private void saveLibrary() {
-        StringBuilder sb = new StringBuilder();
-        for (LibraryBook book : books.values()) {
-            sb.append(book.getName()).append("|")
-              .append(book.getFilePath()).append("|")
-              .append(book.getAddTime().getTime())
-              .append(";;");
+    // 为一个文件建立加载结果，缓存仍然有效时跳过；失败时返回false
+    public boolean indexFile(Path file) {
+        if (!force && cache.load(file, rulesSignature) != null) {
+            skippedFiles.incrementAndGet();
+            return true;
+        }
+        try (BookContent content = BookContent.open(file, null)) {
+            ChapterScanner scanner = new ChapterScanner(rules, scanPool);
+            ArrayList<Chapter> chapters = scanner.scan(content, content.getLineIndex(), new LoadTask(null), new AtomicLong());
+            cache.save(file, rulesSignature, BookMeta.of(file, content, content.getLineIndex(), chapters));
+            processedBytes.addAndGet(content.getSize());
+            processedFiles.incrementAndGet();
+            return true;
+        } catch (Exception e) {
+            failedFiles.incrementAndGet();
+            System.err.println(file + ": " + e);
+            return false;
         }
-        prefs.put(LIBRARY_KEY, sb.toString());
     }
 }
 
 // 主程序
 public class TxtReader extends JFrame {
     private JTree chapterTree;
-    private DefaultTreeModel treeModel;
+    private ChapterTreeModel treeModel;
     private JTextArea textArea;
     private JScrollPane textScrollPane;
+    // 滚动阅读和分页阅读两种视图放在同一个卡片面板里
+    private JPanel textCards;
+    private PageView pageView;
+    private JCheckBoxMenuItem pageModeItem;
+    private boolean pageMode;
     private JSplitPane mainSplitPane;
     private JPanel leftPanel;
     private JButton toggleDirButton;
     private JButton addBookmarkButton;
     private JButton manageLibraryButton;
+    private JProgressBar loadProgressBar;
     
     private File currentFile;
-    private ArrayList<String> lines;
+    private String currentUrl;
+    private BookContent book;
+    private int windowStart;
+    private int windowEnd;
+    // 文本框里显示的整理后的窗口，文本框位置和原始行号通过它换算
+    private TransformedText shownText;
+    private TextPipeline textPipeline;
+    private boolean adjustingWindow;
+    private boolean syncingTree;
+    private int currentChapterIndex = -1;
+    // 从书库搜索结果打开时要跳到的行，-1表示回到上次读到的位置
+    private int pendingJumpLine = -1;
+    // 正在显示下载了一部分的网络文件
+    private boolean previewing;
+    // 行索引和章节都已完成，可以保存会话
+    private boolean loadComplete;
+    // 恢复会话期间记录启动各阶段的耗时
+    private PhaseTimer startupTimer;
+    private ExecutorService sessionWriter;
+    // 打开书后等行索引建到这一行再跳过去，-1表示没有
+    private int restoreLine = -1;
+    private ChapterCache chapterCache;
+    // 各章节的起始行，最后一个是总行数；第一章之前的内容也算一段
+    private int[] chapterBounds;
+    // 滚动停下后才更新目录选中、高亮和阅读位置
+    private javax.swing.Timer positionTimer;
+    private BookSearcher bookSearcher;
+    private SearchDialog searchDialog;
+    private ArrayList<SearchHit> searchHits;
+    private SearchHit currentHit;
+    private ArrayList<Object> highlightTags = new ArrayList<>();
     private ArrayList<Chapter> chapters;
-    private HashMap<String, Bookmark> bookmarks;
+    private BookmarkStore bookmarkStore;
+    // 当前书的内容指纹，用作书签的键
+    private String bookKey;
     private LibraryManager libraryManager;
+    private BookLoader bookLoader;
+    // 用户指定的编码，为null时自动检测
+    private Charset encodingOverride;
     private Preferences prefs;
     
-    private static final String CHAPTER_PATTERN = "^第[零一二三四五六七八九十百千\\d]+[章节回].*";
     private static final int WINDOW_WIDTH = 1200;
     private static final int WINDOW_HEIGHT = 800;
+    // 文本框中同时保留的字符数，以及目标行之前保留的字符数
+    private static final int WINDOW_CHARS = 200000;
+    private static final int WINDOW_MARGIN_CHARS = 50000;
+    // 按章节对齐的窗口里目标行前后至少保留的字符数，不够时退回按行取窗口
+    private static final int WINDOW_EDGE_CHARS = 20000;
+    private static final int DEFAULT_CHAPTER_CACHE_MB = 32;
+    // 事件线程卡住超过这么多毫秒时记录调用栈
+    private static final int DEFAULT_STALL_MILLIS = 500;
+    // 只给视口内的查找结果加高亮
+    private static final int MAX_VISIBLE_HIGHLIGHTS = 500;
+    private static final Highlighter.HighlightPainter HIT_PAINTER = new DefaultHighlighter.DefaultHighlightPainter(Color.YELLOW);
+    private static final Highlighter.HighlightPainter CURRENT_HIT_PAINTER = new DefaultHighlighter.DefaultHighlightPainter(Color.ORANGE);
+    
+    // 诊断信息的JMX接口，JMX要求接口是public的，所以放在主类里
+    public interface DiagnosticsMBean {
+        long getBytesLoaded();
+        long getBooksLoaded();
+        long getChapterCacheHits();
+        long getChapterCacheMisses();
+        long getChapterCacheBytes();
+        long getDocumentBytes();
+        long getHeapUsed();
+        long getEdtStallCount();
+        String getLastLoad();
+        String getLastEdtStall();
+        String getStartup();
+    }
     
     public TxtReader() {
         initComponents();
         loadPreferences();
         libraryManager = new LibraryManager();
-        bookmarks = new HashMap<>();
+        libraryManager.setBookOpener(new BookOpener() {
+            public void openBook(File file, int line) {
+                currentFile = file;
+                pendingJumpLine = line;
+                loadFile(file);
+            }
+        });
+        bookLoader = new BookLoader();
+        bookLoader.setChapterRules(ChapterScanner.loadRules(prefs));
+        libraryManager.startWatching(ChapterScanner.loadRules(prefs));
+        bookSearcher = new BookSearcher();
+        chapterCache = new ChapterCache(prefs.getInt("chapter_cache_mb", DEFAULT_CHAPTER_CACHE_MB) * 1024L * 1024);
+        textPipeline = TextPipeline.load(prefs);
+        chapterCache.setPipeline(textPipeline);
+        pageView.setTextSource(chapterCache, textPipeline);
+        bookmarkStore = new BookmarkStore(AppDirs.dataDir().resolve("bookmarks"));
+        Diagnostics.setChapterCache(chapterCache);
+        Diagnostics.registerMBean();
+        new EdtWatchdog(prefs.getInt("edt_stall_ms", DEFAULT_STALL_MILLIS)).start();
+        if (prefs.getBoolean("page_mode", false)) {
+            pageModeItem.setSelected(true);
+            setPageMode(true);
+        }
+        sessionWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "session-writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
     }
     
     private void initComponents() {
@@ -534,6 +8314,8 @@ public class TxtReader extends JFrame {
         addWindowListener(new WindowAdapter() {
             @Override
             public void windowClosing(WindowEvent e) {
+                recordPosition();
+                saveSessionAndWait();
                 savePreferences();
             }
         });
@@ -559,12 +8341,30 @@ public class TxtReader extends JFrame {
         });
         exitItem.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
+                recordPosition();
+                saveSessionAndWait();
                 System.exit(0);
             }
         });
         
+        JMenu encodingMenu = new JMenu("编码");
+        ButtonGroup encodingGroup = new ButtonGroup();
+        String[] encodings = {"自动检测", "UTF-8", "GB18030", "Big5", "UTF-16LE", "UTF-16BE"};
+        for (int i = 0; i < encodings.length; i++) {
+            final Charset charset = i == 0 ? null : Charset.forName(encodings[i]);
+            JRadioButtonMenuItem encodingItem = new JRadioButtonMenuItem(encodings[i], i == 0);
+            encodingItem.addActionListener(new ActionListener() {
+                public void actionPerformed(ActionEvent e) {
+                    changeEncoding(charset);
+                }
+            });
+            encodingGroup.add(encodingItem);
+            encodingMenu.add(encodingItem);
+        }
+        
         fileMenu.add(openFileItem);
         fileMenu.add(openUrlItem);
+        fileMenu.add(encodingMenu);
         fileMenu.addSeparator();
         fileMenu.add(exitItem);
         
@@ -586,10 +8386,76 @@ public class TxtReader extends JFrame {
         bookmarkMenu.add(addBookmarkItem);
         bookmarkMenu.add(manageBookmarksItem);
         
+        JMenu searchMenu = new JMenu("查找");
+        JMenuItem findItem = new JMenuItem("查找...");
+        JMenuItem findNextItem = new JMenuItem("查找下一个");
+        findItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F, InputEvent.CTRL_DOWN_MASK));
+        findNextItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F3, 0));
+        
+        findItem.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                showSearchDialog();
+            }
+        });
+        findNextItem.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                findNext();
+            }
+        });
+        
+        searchMenu.add(findItem);
+        searchMenu.add(findNextItem);
+        
+        JMenu chapterMenu = new JMenu("目录");
+        JMenuItem chapterRulesItem = new JMenuItem("章节规则");
+        
+        chapterRulesItem.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                editChapterRules();
+            }
+        });
+        
+        chapterMenu.add(chapterRulesItem);
+        
+        JMenu viewMenu = new JMenu("视图");
+        pageModeItem = new JCheckBoxMenuItem("分页阅读");
+        pageModeItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_F6, 0));
+        pageModeItem.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                setPageMode(pageModeItem.isSelected());
+            }
+        });
+        JMenuItem cleanupItem = new JMenuItem("文字整理...");
+        cleanupItem.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                editTextCleanup();
+            }
+        });
+        JMenu chineseMenu = new JMenu("简繁转换");
+        ButtonGroup chineseGroup = new ButtonGroup();
+        String[] chineseNames = {"不转换", "简体转繁体", "繁体转简体"};
+        String[] chineseModes = {ChineseConverter.NONE, ChineseConverter.S2T, ChineseConverter.T2S};
+        String conversion = TextPipeline.load(prefs).getConversion();
+        for (int i = 0; i < chineseModes.length; i++) {
+            final String mode = chineseModes[i];
+            JRadioButtonMenuItem chineseItem = new JRadioButtonMenuItem(chineseNames[i], mode.equals(conversion));
+            chineseItem.addActionListener(new ActionListener() {
+                public void actionPerformed(ActionEvent e) {
+                    setChineseConversion(mode);
+                }
+            });
+            chineseGroup.add(chineseItem);
+            chineseMenu.add(chineseItem);
+        }
+        viewMenu.add(pageModeItem);
+        viewMenu.add(cleanupItem);
+        viewMenu.add(chineseMenu);
+        
         JMenu libraryMenu = new JMenu("书库");
         JMenuItem addToLibraryItem = new JMenuItem("添加到书库");
         JMenuItem manageLibraryItem = new JMenuItem("管理书库");
         JMenuItem backupLibraryItem = new JMenuItem("备份书库");
+        JMenuItem searchLibraryItem = new JMenuItem("全文搜索");
         
         addToLibraryItem.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
@@ -606,15 +8472,34 @@ public class TxtReader extends JFrame {
                 backupLibrary();
             }
         });
+        searchLibraryItem.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                searchLibrary();
+            }
+        });
         
         libraryMenu.add(addToLibraryItem);
         libraryMenu.add(manageLibraryItem);
         libraryMenu.add(backupLibraryItem);
+        libraryMenu.add(searchLibraryItem);
         
         menuBar.add(fileMenu);
+        menuBar.add(searchMenu);
         menuBar.add(bookmarkMenu);
+        menuBar.add(chapterMenu);
+        menuBar.add(viewMenu);
         menuBar.add(libraryMenu);
         
+        JMenu helpMenu = new JMenu("帮助");
+        JMenuItem diagnosticsItem = new JMenuItem("诊断信息");
+        diagnosticsItem.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                new DiagnosticsDialog(TxtReader.this).setVisible(true);
+            }
+        });
+        helpMenu.add(diagnosticsItem);
+        menuBar.add(helpMenu);
+        
         setJMenuBar(menuBar);
     }
     
@@ -636,21 +8521,32 @@ public class TxtReader extends JFrame {
         dirHeaderPanel.add(dirLabel, BorderLayout.WEST);
         dirHeaderPanel.add(toggleDirButton, BorderLayout.EAST);
         
-        treeModel = new DefaultTreeModel(new DefaultMutableTreeNode("目录"));
+        treeModel = new ChapterTreeModel();
         chapterTree = new JTree(treeModel);
         chapterTree.setFont(new Font("微软雅黑", Font.PLAIN, 12));
+        // 固定行高的大模型只为可见行计算布局
+        chapterTree.setRowHeight(20);
+        chapterTree.setLargeModel(true);
+        chapterTree.setCellRenderer(new DefaultTreeCellRenderer() {
+            @Override
+            public Component getTreeCellRendererComponent(JTree tree, Object value, boolean selected, boolean expanded,
+                    boolean leaf, int row, boolean hasFocus) {
+                super.getTreeCellRendererComponent(tree, value, selected, expanded, leaf, row, hasFocus);
+                if (value instanceof Chapter && textPipeline != null) {
+                    setText(textPipeline.convertTitle(value.toString()));
+                }
+                return this;
+            }
+        });
         chapterTree.addTreeSelectionListener(new TreeSelectionListener() {
             public void valueChanged(TreeSelectionEvent e) {
+                if (syncingTree) return;
                 TreePath path = e.getPath();
-                if (path != null) {
+                if (path != null && e.isAddedPath()) {
                     Object lastComponent = path.getLastPathComponent();
-                    if (lastComponent instanceof DefaultMutableTreeNode) {
-                        DefaultMutableTreeNode node = (DefaultMutableTreeNode) lastComponent;
-                        Object userObject = node.getUserObject();
-                        if (userObject instanceof Chapter) {
-                            Chapter chapter = (Chapter) userObject;
-                            jumpToPosition(chapter.getStartLine());
-                        }
+                    if (lastComponent instanceof Chapter) {
+                        Chapter chapter = (Chapter) lastComponent;
+                        jumpToPosition(chapter.getStartLine());
                     }
                 }
             }
@@ -668,8 +8564,25 @@ public class TxtReader extends JFrame {
         textArea.setEditable(false);
         
         textScrollPane = new JScrollPane(textArea);
+        pageView = new PageView();
+        pageView.setFont(textArea.getFont());
+        pageView.setPageListener(new PageListener() {
+            public void pageChanged(int line) {
+                updateCurrentPosition();
+            }
+        });
+        textCards = new JPanel(new CardLayout());
+        textCards.add(textScrollPane, "scroll");
+        textCards.add(pageView, "page");
+        positionTimer = new javax.swing.Timer(150, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                positionSettled();
+            }
+        });
+        positionTimer.setRepeats(false);
         textScrollPane.getVerticalScrollBar().addAdjustmentListener(new AdjustmentListener() {
             public void adjustmentValueChanged(AdjustmentEvent e) {
+                shiftWindowIfNeeded();
                 updateCurrentPosition();
             }
         });
@@ -689,10 +8602,16 @@ public class TxtReader extends JFrame {
             }
         });
         
+        loadProgressBar = new JProgressBar(0, 100);
+        loadProgressBar.setStringPainted(true);
+        loadProgressBar.setPreferredSize(new Dimension(240, 20));
+        loadProgressBar.setVisible(false);
+        
         buttonPanel.add(addBookmarkButton);
         buttonPanel.add(manageLibraryButton);
+        buttonPanel.add(loadProgressBar);
         
-        mainSplitPane = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, leftPanel, textScrollPane);
+        mainSplitPane = new JSplitPane(JSplitPane.HORIZONTAL_SPLIT, leftPanel, textCards);
         mainSplitPane.setDividerLocation(250);
         mainSplitPane.setResizeWeight(0);
         
@@ -703,11 +8622,12 @@ public class TxtReader extends JFrame {
     
     private void openFile() {
         JFileChooser fileChooser = new JFileChooser();
-        fileChooser.setFileFilter(new javax.swing.filechooser.FileNameExtensionFilter("文本文件 (*.txt)", "txt"));
+        fileChooser.setFileFilter(new javax.swing.filechooser.FileNameExtensionFilter("文本文件 (*.txt, *.txt.gz, *.zip, *.txtz)", "txt", "gz", "zip", "txtz"));
         
         int result = fileChooser.showOpenDialog(this);
         if (result == JFileChooser.APPROVE_OPTION) {
             currentFile = fileChooser.getSelectedFile();
+            pendingJumpLine = -1;
             loadFile(currentFile);
         }
     }
@@ -715,75 +8635,391 @@ public class TxtReader extends JFrame {
     private void openFromUrl() {
         String url = JOptionPane.showInputDialog(this, "请输入TXT文件的URL:", "打开网络文件", JOptionPane.QUESTION_MESSAGE);
         if (url != null && !url.trim().isEmpty()) {
+            pendingJumpLine = -1;
             loadFromUrl(url.trim());
         }
     }
     
     private void loadFile(File file) {
-        try {
-            lines = new ArrayList<>(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
-            textArea.setText(String.join("\n", lines));
-            extractChapters();
-            loadBookmarks();
-            applyBookmark();
-        } catch (IOException e) {
-            JOptionPane.showMessageDialog(this, "读取文件失败: " + e.getMessage(), "错误", JOptionPane.ERROR_MESSAGE);
-        }
+        currentUrl = null;
+        bookLoader.loadFile(file.toPath(), encodingOverride, createLoadListener("读取文件失败: "));
     }
     
     private void loadFromUrl(String urlStr) {
-        try {
-            URL url = new URI(urlStr).toURL();
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream(), StandardCharsets.UTF_8))) {
-                lines = new ArrayList<>();
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    lines.add(line);
+        currentFile = null;
+        currentUrl = urlStr;
+        bookLoader.loadUrl(urlStr, encodingOverride, createLoadListener("加载网络文件失败: "));
+    }
+    
+    // 换编码后重新打开当前的书
+    private void changeEncoding(Charset charset) {
+        encodingOverride = charset;
+        if (currentFile != null) {
+            loadFile(currentFile);
+        } else if (currentUrl != null) {
+            loadFromUrl(currentUrl);
+        }
+    }
+    
+    private BookLoadListener createLoadListener(final String errorMessage) {
+        return new BookLoadListener() {
+            public void progress(String stage, int percent) {
+                loadProgressBar.setVisible(true);
+                loadProgressBar.setValue(percent);
+                loadProgressBar.setString(stage + " " + percent + "%");
+            }
+            
+            public void preview(BookContent content) {
+                // 刷新预览时保持正在读的位置
+                int previewLine = previewing ? getTopVisibleLine() : 0;
+                openBook(content);
+                previewing = true;
+                if (previewLine > 0) {
+                    jumpToPosition(previewLine);
                 }
-                textArea.setText(String.join("\n", lines));
-                extractChapters();
-                bookmarks.clear();
+                chapters = new ArrayList<>();
                 updateChapterTree();
             }
-        } catch (Exception e) {
-            JOptionPane.showMessageDialog(this, "加载网络文件失败: " + e.getMessage(), "错误", JOptionPane.ERROR_MESSAGE);
-        }
+            
+            public void firstScreen(BookContent content) {
+                if (startupTimer != null) {
+                    startupTimer.mark("首屏");
+                }
+                // 预览时已经往下读了的话停在原处
+                int previewLine = previewing ? getTopVisibleLine() : 0;
+                openBook(content);
+                chapters = new ArrayList<>();
+                updateChapterTree();
+                loadBookmarks();
+                restoreLine = pendingJumpLine >= 0 ? pendingJumpLine : previewLine > 0 ? previewLine : savedPosition();
+                pendingJumpLine = -1;
+                restorePositionIfIndexed(false);
+            }
+            
+            public void linesIndexed(BookContent content, boolean complete) {
+                if (complete) {
+                    updateChapterBounds();
+                    pageView.setSections(chapterBounds, content.getLineCount());
+                }
+                restorePositionIfIndexed(complete);
+            }
+            
+            public void chaptersFound(ArrayList<Chapter> found, boolean complete) {
+                chapters = found;
+                DiagnosticPhase building = complete ? Diagnostics.begin("建目录树") : null;
+                updateChapterTree();
+                if (complete) {
+                    building.end();
+                    pageView.setSections(chapterBounds, book.getLineCount());
+                    Diagnostics.setDocumentBytes(documentBytes());
+                    loadProgressBar.setVisible(false);
+                    loadComplete = true;
+                    if (startupTimer != null) {
+                        startupTimer.mark("目录就绪");
+                        Diagnostics.setStartup(startupTimer.report());
+                        startupTimer = null;
+                    } else {
+                        saveSession();
+                    }
+                }
+            }
+            
+            public void failed(Exception e) {
+                loadProgressBar.setVisible(false);
+                startupTimer = null;
+                JOptionPane.showMessageDialog(TxtReader.this, errorMessage + e.getMessage(), "错误", JOptionPane.ERROR_MESSAGE);
+            }
+        };
     }
     
-    private void extractChapters() {
-        chapters = new ArrayList<>();
-        if (lines == null) return;
-        
-        for (int i = 0; i < lines.size(); i++) {
-            String line = lines.get(i).trim();
-            if (line.matches(CHAPTER_PATTERN)) {
-                chapters.add(new Chapter(line, i));
+    private void openBook(BookContent content) {
+        recordPosition();
+        bookKey = null;
+        previewing = false;
+        loadComplete = false;
+        if (book != null) {
+            try {
+                book.close();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
         }
-        updateChapterTree();
+        book = content;
+        chapterBounds = null;
+        chapterCache.setBook(content);
+        pageView.setBook(content);
+        bookSearcher.cancel();
+        searchHits = null;
+        currentHit = null;
+        DiagnosticPhase join = Diagnostics.begin("拼接文字");
+        String text = windowText(0);
+        join.end();
+        DiagnosticPhase display = Diagnostics.begin("setText");
+        textArea.setText(text);
+        display.end();
+        textArea.setCaretPosition(0);
     }
     
-    private void updateChapterTree() {
-        DefaultMutableTreeNode root = new DefaultMutableTreeNode("章节列表");
+    // 只把line附近的一段行放进文本框，窗口大小按字符数计算
+    private void showWindowAround(int line) {
+        textArea.setText(windowText(line));
+    }
+    
+    // 计算line附近的窗口并返回其中的文字
+    private String windowText(int line) {
+        int[] range = chapterWindow(line);
+        if (range != null) {
+            return chapterWindowText(range[0], range[1]);
+        }
+        LineIndex index = book.getLineIndex();
+        long total = index.getTotalChars();
+        long start = Math.max(0, index.getCharStart(line) - WINDOW_MARGIN_CHARS);
+        long end = start + WINDOW_CHARS;
+        if (end > total) {
+            end = total;
+            start = Math.max(0, total - WINDOW_CHARS);
+        }
+        windowStart = Math.min(index.lineAtChar(start), line);
+        windowEnd = Math.min(Math.max(index.lineAtChar(end) + 1, line + 1), book.getLineCount());
+        prefetchAround(chapterAt(line), chapterAt(line));
+        shownText = textPipeline.apply(book, windowStart, windowEnd);
+        return shownText.getText();
+    }
+    
+    // 章节对齐的窗口：包含line的章节，前后尽量加上相邻章节；返回首末章节的下标，不合适时返回null
+    private int[] chapterWindow(int line) {
+        LineIndex index = book.getLineIndex();
+        if (chapterBounds == null || chapterBounds[chapterBounds.length - 1] != index.getLineCount()) return null;
         
+        int first = chapterAt(line);
+        int last = first;
+        long lineChar = index.getCharStart(line);
+        while (first > 0 && lineChar - boundChar(index, first - 1) <= WINDOW_MARGIN_CHARS
+                && boundChar(index, last + 1) - boundChar(index, first - 1) <= WINDOW_CHARS) {
+            first--;
+        }
+        while (last + 2 < chapterBounds.length
+                && boundChar(index, last + 2) - boundChar(index, first) <= WINDOW_CHARS) {
+            last++;
+        }
+        
+        long before = lineChar - boundChar(index, first);
+        long after = boundChar(index, last + 1) - lineChar;
+        if (boundChar(index, last + 1) - boundChar(index, first) > WINDOW_CHARS
+                || before < Math.min(WINDOW_EDGE_CHARS, lineChar)
+                || after < Math.min(WINDOW_EDGE_CHARS, index.getTotalChars() - lineChar)) {
+            return null;
+        }
+        return new int[] {first, last};
+    }
+    
+    private long boundChar(LineIndex index, int bound) {
+        int line = chapterBounds[bound];
+        return line < index.getLineCount() ? index.getCharStart(line) : index.getTotalChars();
+    }
+    
+    private int chapterAt(int line) {
+        if (chapterBounds == null) return -1;
+        int index = Arrays.binarySearch(chapterBounds, line);
+        return Math.min(index >= 0 ? index : -index - 2, chapterBounds.length - 2);
+    }
+    
+    // 窗口正文由缓存中的章节拼成
+    private String chapterWindowText(int first, int last) {
+        windowStart = chapterBounds[first];
+        windowEnd = chapterBounds[last + 1];
+        ArrayList<TransformedText> parts = new ArrayList<>();
+        for (int c = first; c <= last; c++) {
+            parts.add(chapterCache.get(chapterBounds[c], chapterBounds[c + 1]));
+        }
+        prefetchAround(first, last);
+        shownText = parts.size() == 1 ? parts.get(0) : TransformedText.join(parts);
+        return shownText.getText();
+    }
+    
+    // 预取窗口前后各一章，顺序阅读和点目录跳到相邻章节时不用等解码
+    private void prefetchAround(int first, int last) {
+        if (chapterBounds == null || first < 0) return;
+        if (first > 0) {
+            chapterCache.prefetch(chapterBounds[first - 1], chapterBounds[first]);
+        }
+        if (last + 2 < chapterBounds.length) {
+            chapterCache.prefetch(chapterBounds[last + 1], chapterBounds[last + 2]);
+        }
+    }
+    
+    // 章节或行索引变化后重新计算章节边界，只在行索引完整后使用
+    private void updateChapterBounds() {
+        if (book == null || chapters == null || chapters.isEmpty()) {
+            chapterBounds = null;
+            return;
+        }
+        int lineCount = book.getLineCount();
+        IntList bounds = new IntList(chapters.size() + 2);
+        bounds.add(0);
         for (Chapter chapter : chapters) {
-            DefaultMutableTreeNode chapterNode = new DefaultMutableTreeNode(chapter);
-            root.add(chapterNode);
+            int start = chapter.getStartLine();
+            if (start > bounds.last() && start < lineCount) {
+                bounds.add(start);
+            }
         }
+        if (lineCount > bounds.last()) {
+            bounds.add(lineCount);
+        }
+        chapterBounds = bounds.size() >= 2 ? bounds.toArray() : null;
+    }
+    
+    // 文本框内的字符位置与原始行号互相转换
+    private int windowOffsetOf(int line) {
+        return shownText.offsetOf(line);
+    }
+    
+    private int lineAtWindowOffset(int offset) {
+        return shownText.lineAt(offset);
+    }
+    
+    // 滚动到窗口边缘时，以当前顶部行为中心重新取窗口
+    private void shiftWindowIfNeeded() {
+        if (book == null || adjustingWindow) return;
+        JScrollBar bar = textScrollPane.getVerticalScrollBar();
+        if (bar.getValueIsAdjusting()) return;
         
-        treeModel.setRoot(root);
+        int extent = bar.getVisibleAmount();
+        boolean nearTop = bar.getValue() < extent && windowStart > 0;
+        boolean nearBottom = bar.getValue() + extent * 2 > bar.getMaximum() && windowEnd < book.getLineCount();
+        if (nearTop || nearBottom) {
+            int topLine = getTopVisibleLine();
+            showWindowAround(topLine);
+            moveToLine(topLine);
+        }
+    }
+    
+    private int getTopVisibleLine() {
+        if (pageMode) return pageView.getTopLine();
+        Point top = textScrollPane.getViewport().getViewPosition();
+        return lineAtWindowOffset(Math.max(0, textArea.viewToModel2D(new Point(0, top.y))));
+    }
+    
+    // 把窗口内的行移到视口顶部，布局完成前忽略滚动事件
+    private void moveToLine(final int lineNumber) {
+        final int offset = windowOffsetOf(lineNumber);
+        adjustingWindow = true;
+        textArea.setCaretPosition(offset);
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                try {
+                    Rectangle2D rect = textArea.modelToView2D(offset);
+                    if (rect != null) {
+                        int height = textScrollPane.getViewport().getExtentSize().height;
+                        textArea.scrollRectToVisible(new Rectangle(0, (int) rect.getY(), 1, height));
+                    }
+                } catch (BadLocationException e) {
+                    e.printStackTrace();
+                } finally {
+                    adjustingWindow = false;
+                }
+                syncChapterSelection(lineNumber);
+                updateSearchHighlights();
+                recordPosition();
+            }
+        });
+    }
+    
+    private void updateChapterTree() {
+        treeModel.setChapters(chapters);
+        updateChapterBounds();
         chapterTree.expandRow(0);
+        currentChapterIndex = -1;
+        if (book != null) {
+            syncChapterSelection(getTopVisibleLine());
+        }
     }
     
-    private void jumpToPosition(int lineNumber) {
+    // 目录选中当前阅读的章节，用二分查找定位，不触发跳转
+    private void syncChapterSelection(int line) {
+        int index = treeModel.indexOfLine(line);
+        if (index == currentChapterIndex) return;
+        
+        currentChapterIndex = index;
+        syncingTree = true;
         try {
-            int position = 0;
-            for (int i = 0; i < lineNumber && i < lines.size(); i++) {
-                position += lines.get(i).length() + 1; // +1 for newline
+            if (index < 0) {
+                chapterTree.clearSelection();
+            } else {
+                TreePath path = treeModel.pathTo(index);
+                chapterTree.setSelectionPath(path);
+                chapterTree.scrollPathToVisible(path);
             }
-            textArea.setCaretPosition(Math.min(position, textArea.getText().length()));
-        } catch (Exception e) {
-            e.printStackTrace();
+        } finally {
+            syncingTree = false;
+        }
+    }
+    
+    private void jumpToPosition(int lineNumber) {
+        if (book == null || book.getLineCount() == 0) return;
+        
+        int line = Math.max(0, Math.min(lineNumber, book.getLineCount() - 1));
+        if (pageMode) {
+            pageView.showLine(line);
+            syncChapterSelection(line);
+            recordPosition();
+            return;
+        }
+        if (line < windowStart || line >= windowEnd) {
+            showWindowAround(line);
+        }
+        moveToLine(line);
+    }
+    
+    private void editTextCleanup() {
+        TextCleanupDialog dialog = new TextCleanupDialog(this, prefs);
+        dialog.setVisible(true);
+        if (!dialog.isSaved()) return;
+        applyTextPipeline();
+    }
+    
+    // 只换掉转换方式，其他整理设置不变
+    private void setChineseConversion(String mode) {
+        if (mode.equals(textPipeline.getConversion())) return;
+        new TextPipeline(textPipeline.isNormalizeWhitespace(), textPipeline.isCollapseBlankLines(),
+            textPipeline.getRemovePatterns(), mode).save(prefs);
+        applyTextPipeline();
+    }
+    
+    // 整理设置变化后清掉缓存的章节，按新的设置重新显示当前位置；只整理当前窗口，其他章节用到时再整理
+    private void applyTextPipeline() {
+        int line = book != null && book.getLineCount() > 0 ? getTopVisibleLine() : 0;
+        textPipeline = TextPipeline.load(prefs);
+        chapterCache.setPipeline(textPipeline);
+        pageView.setTextSource(chapterCache, textPipeline);
+        chapterTree.repaint();
+        if (book != null && book.getLineCount() > 0 && !pageMode) {
+            showWindowAround(line);
+            moveToLine(line);
+        }
+    }
+    
+    private void editChapterRules() {
+        ChapterRuleDialog dialog = new ChapterRuleDialog(this, prefs);
+        dialog.setVisible(true);
+        if (!dialog.isSaved()) return;
+        
+        bookLoader.setChapterRules(ChapterScanner.loadRules(prefs));
+        if (book != null && !bookLoader.isLoading()) {
+            bookLoader.rescanChapters(book, createLoadListener("扫描章节失败: "));
+        }
+    }
+    
+    // 分页阅读只排版当前页，其余页的分页位置在后台计算；切换时停在同一行
+    private void setPageMode(boolean on) {
+        if (on == pageMode) return;
+        int line = book != null && book.getLineCount() > 0 ? getTopVisibleLine() : 0;
+        pageMode = on;
+        prefs.putBoolean("page_mode", on);
+        ((CardLayout) textCards.getLayout()).show(textCards, on ? "page" : "scroll");
+        jumpToPosition(line);
+        if (on) {
+            pageView.requestFocusInWindow();
         }
     }
     
@@ -800,66 +9036,165 @@ public class TxtReader extends JFrame {
     }
     
     private void addBookmark() {
-        if (currentFile == null && lines == null) {
+        if (book == null) {
             JOptionPane.showMessageDialog(this, "请先打开文件", "提示", JOptionPane.WARNING_MESSAGE);
             return;
         }
+        // 书签按内容指纹保存，预览下载中的书或还没加载完时没有指纹
+        if (bookKey == null) {
+            JOptionPane.showMessageDialog(this, previewing ? "下载完成后才能添加书签" : "文件加载完成后才能添加书签", "提示", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
         
         String bookmarkName = JOptionPane.showInputDialog(this, "请输入书签名称:", "添加书签", JOptionPane.QUESTION_MESSAGE);
         if (bookmarkName != null && !bookmarkName.trim().isEmpty()) {
             int currentLine = getCurrentLine();
-            String key = getBookmarkKey();
-            bookmarks.put(key, new Bookmark(bookmarkName.trim(), currentLine, new Date()));
-            saveBookmarks();
+            bookmarkStore.add(bookKey, new Bookmark(bookmarkName.trim(), currentLine, new Date()));
             JOptionPane.showMessageDialog(this, "书签添加成功", "成功", JOptionPane.INFORMATION_MESSAGE);
         }
     }
     
     private int getCurrentLine() {
-        int caretPosition = textArea.getCaretPosition();
-        String text = textArea.getText();
-        int line = 0;
-        int currentPos = 0;
-        
-        for (int i = 0; i < lines.size() && currentPos < caretPosition; i++) {
-            currentPos += lines.get(i).length() + 1;
-            line = i;
-        }
-        
-        return line;
+        if (pageMode) return pageView.getTopLine();
+        return lineAtWindowOffset(textArea.getCaretPosition());
     }
     
     private void updateCurrentPosition() {
-        // 可以在这里实现当前位置显示
+        if (book == null || adjustingWindow) return;
+        positionTimer.restart();
     }
     
-    private String getBookmarkKey() {
-        if (currentFile != null) {
-            return currentFile.getAbsolutePath();
+    private void positionSettled() {
+        if (book == null || adjustingWindow) return;
+        syncChapterSelection(getTopVisibleLine());
+        updateSearchHighlights();
+        recordPosition();
+    }
+    
+    // 只更新内存中的位置，由书签存储隔几秒写一次盘
+    private void recordPosition() {
+        if (book == null || bookKey == null || restoreLine >= 0 || book.getLineCount() == 0) return;
+        bookmarkStore.setLastLine(bookKey, getTopVisibleLine());
+    }
+    
+    private void showSearchDialog() {
+        if (book == null) {
+            JOptionPane.showMessageDialog(this, "请先打开文件", "提示", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        if (searchDialog == null) {
+            searchDialog = new SearchDialog(this, bookSearcher, new SearchNavigator() {
+                public BookContent getBook() {
+                    return book;
+                }
+                
+                public int getCurrentLine() {
+                    return TxtReader.this.getCurrentLine();
+                }
+                
+                public void showHit(SearchHit hit) {
+                    showSearchHit(hit);
+                }
+                
+                public void setSearchHits(ArrayList<SearchHit> hits) {
+                    searchHits = hits;
+                    updateSearchHighlights();
+                }
+            });
+        }
+        searchDialog.setVisible(true);
+    }
+    
+    private void findNext() {
+        if (searchDialog == null) {
+            showSearchDialog();
         } else {
-            return "url_" + textArea.getText().hashCode();
+            searchDialog.findNext();
+        }
+    }
+    
+    private void showSearchHit(SearchHit hit) {
+        currentHit = hit;
+        pageView.setHighlight(hit);
+        jumpToPosition(hit.getLine());
+    }
+    
+    // 重新给视口内的查找结果加高亮，结果按行号有序，用二分查找定位第一条
+    private void updateSearchHighlights() {
+        Highlighter highlighter = textArea.getHighlighter();
+        for (Object tag : highlightTags) {
+            highlighter.removeHighlight(tag);
+        }
+        highlightTags.clear();
+        if (book == null) return;
+        
+        if (currentHit != null) {
+            addHighlight(currentHit, CURRENT_HIT_PAINTER);
+        }
+        if (searchHits == null || searchHits.isEmpty()) return;
+        
+        int top = getTopVisibleLine();
+        Rectangle view = textScrollPane.getViewport().getViewRect();
+        int bottom = lineAtWindowOffset(Math.max(0, textArea.viewToModel2D(new Point(view.x + view.width, view.y + view.height))));
+        int low = 0;
+        int high = searchHits.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (searchHits.get(middle).getLine() < top) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        for (int i = low; i < searchHits.size() && highlightTags.size() < MAX_VISIBLE_HIGHLIGHTS; i++) {
+            SearchHit hit = searchHits.get(i);
+            if (hit.getLine() > bottom) break;
+            if (hit != currentHit) {
+                addHighlight(hit, HIT_PAINTER);
+            }
+        }
+    }
+    
+    private void addHighlight(SearchHit hit, Highlighter.HighlightPainter painter) {
+        if (hit.getLine() < windowStart || hit.getLine() >= windowEnd) return;
+        try {
+            if (shownText.isRemoved(hit.getLine())) return;
+            int start = windowOffsetOf(hit.getLine()) + shownText.columnOf(hit.getLine(), hit.getColumn());
+            highlightTags.add(textArea.getHighlighter().addHighlight(start, start + hit.getLength(), painter));
+        } catch (BadLocationException e) {
+            e.printStackTrace();
         }
     }
     
+    // 书签按内容指纹保存，同一本书改名、移动或从网络重新下载后仍能找到
     private void loadBookmarks() {
-        bookmarks = new HashMap<>();
-        // 简化实现：在实际应用中，可以从文件加载书签
+        bookKey = book.getFingerprint();
     }
     
-    private void saveBookmarks() {
-        // 简化实现：在实际应用中，可以保存书签到文件
+    // 上次读到的位置，没有时用最近的书签，都没有时返回-1
+    private int savedPosition() {
+        int line = bookmarkStore.getLastLine(bookKey);
+        if (line >= 0) return line;
+        Bookmark bookmark = bookmarkStore.getLatest(bookKey);
+        return bookmark != null ? bookmark.getLineNumber() : -1;
     }
     
-    private void applyBookmark() {
-        String key = getBookmarkKey();
-        Bookmark bookmark = bookmarks.get(key);
-        if (bookmark != null) {
-            jumpToPosition(bookmark.getLineNumber());
+    // 行索引还在后台建立，要恢复的行进入索引后立即跳过去
+    private void restorePositionIfIndexed(boolean complete) {
+        if (restoreLine < 0) return;
+        if (restoreLine < book.getLineCount() || complete) {
+            int line = restoreLine;
+            restoreLine = -1;
+            jumpToPosition(line);
         }
     }
     
     private void manageBookmarks() {
-        new BookmarkManagerDialog(this, bookmarks).setVisible(true);
+        if (book == null || bookKey == null) {
+            JOptionPane.showMessageDialog(this, "请先打开文件", "提示", JOptionPane.WARNING_MESSAGE);
+            return;
+        }
+        new BookmarkManagerDialog(this, bookmarkStore, bookKey).setVisible(true);
     }
     
     private void addCurrentToLibrary() {
@@ -879,11 +9214,66 @@ public class TxtReader extends JFrame {
         new LibraryManagerDialog(this, libraryManager).setVisible(true);
     }
     
+    private void searchLibrary() {
+        new LibrarySearchDialog(this, libraryManager).setVisible(true);
+    }
+    
     private void backupLibrary() {
         libraryManager.backupLibrary();
         JOptionPane.showMessageDialog(this, "书库备份完成", "成功", JOptionPane.INFORMATION_MESSAGE);
     }
     
+    // 当前书大约占用的内存：行索引、章节、文本框和章节缓存
+    private long documentBytes() {
+        if (book == null) return 0;
+        return book.getLineCount() * 16L + chapters.size() * 64L
+            + textArea.getDocument().getLength() * 2L + chapterCache.getUsedBytes();
+    }
+    
+    private static Path sessionPath() {
+        return AppDirs.cacheDir().resolve("session.dat");
+    }
+    
+    // 窗口显示之后再恢复上次打开的书，文件没变时不用重新建索引和扫描章节
+    private void restoreSession(PhaseTimer timer) {
+        SessionSnapshot session = SessionSnapshot.readHeader(sessionPath());
+        if (session == null || !Files.exists(Paths.get(session.getFilePath()))) {
+            timer.mark("无会话");
+            Diagnostics.setStartup(timer.report());
+            return;
+        }
+        Path path = Paths.get(session.getFilePath());
+        currentUrl = session.getUrl();
+        currentFile = currentUrl == null ? path.toFile() : null;
+        pendingJumpLine = session.getTopLine();
+        startupTimer = timer;
+        bookLoader.loadSession(path, sessionPath(), timer, createLoadListener("恢复上次的书失败: "));
+    }
+    
+    // 在后台线程上写会话文件，预览和加载未完成时不保存
+    private Future<?> saveSession() {
+        if (book == null || previewing || !loadComplete) return null;
+        final SessionSnapshot session = new SessionSnapshot(book.getPath().toString(), currentUrl, getTopVisibleLine());
+        final BookContent content = book;
+        final ArrayList<Chapter> savedChapters = chapters;
+        return sessionWriter.submit(new Callable<Void>() {
+            public Void call() throws IOException {
+                SessionSnapshot.write(sessionPath(), session, BookMeta.of(content.getPath(), content, content.getLineIndex(), savedChapters));
+                return null;
+            }
+        });
+    }
+    
+    private void saveSessionAndWait() {
+        Future<?> saving = saveSession();
+        if (saving == null) return;
+        try {
+            saving.get(5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+    
     private void loadPreferences() {
         prefs = Preferences.userNodeForPackage(TxtReader.class);
         // 加载窗口设置
@@ -893,7 +9283,77 @@ public class TxtReader extends JFrame {
         // 保存程序设置
     }
     
+    // 命令行模式，不打开窗口：
+    //   --gen-corpus 输出文件 [--size 64m] [--chapters-per-mb 100] [--encoding UTF-8] [--seed 1]
+    //   --bench 书 [--warmup 2] [--iterations 5]
+    //   --index 目录 [--threads 处理器数] [--force false]
+    //   --compress 书 [--output 书.txtz]
+    private static void runCommandLine(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        HashMap<String, String> options = new HashMap<>();
+        for (int i = 2; i + 1 < args.length; i += 2) {
+            options.put(args[i], args[i + 1]);
+        }
+        if (args.length < 2) {
+            throw new IllegalArgumentException("缺少文件参数");
+        }
+        Path file = Paths.get(args[1]);
+        if (args[0].equals("--gen-corpus")) {
+            long size = parseSize(options.getOrDefault("--size", "64m"));
+            int chaptersPerMb = Integer.parseInt(options.getOrDefault("--chapters-per-mb", "100"));
+            Charset charset = Charset.forName(options.getOrDefault("--encoding", "UTF-8"));
+            long seed = Long.parseLong(options.getOrDefault("--seed", "1"));
+            long start = System.nanoTime();
+            new CorpusGenerator(size, chaptersPerMb, charset, seed).write(file);
+            System.out.println("已生成 " + file + ", " + Files.size(file) + " 字节, 用时 " + (System.nanoTime() - start) / 1000000 + " 毫秒");
+        } else if (args[0].equals("--bench")) {
+            int warmup = Integer.parseInt(options.getOrDefault("--warmup", "2"));
+            int iterations = Integer.parseInt(options.getOrDefault("--iterations", "5"));
+            new ReaderBenchmark(warmup, iterations).run(file);
+        } else if (args[0].equals("--index")) {
+            int threads = Integer.parseInt(options.getOrDefault("--threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+            boolean force = Boolean.parseBoolean(options.getOrDefault("--force", "false"));
+            ArrayList<ChapterRule> rules = ChapterScanner.loadRules(Preferences.userNodeForPackage(TxtReader.class));
+            new BatchIndexer(threads, force, rules, new BookMetaCache(AppDirs.cacheDir().resolve("meta"))).run(file);
+        } else if (args[0].equals("--compress")) {
+            Path output = Paths.get(options.getOrDefault("--output", BookStorage.bookName(file.toString()) + BlockCompressedFile.EXTENSION));
+            ArrayList<ChapterRule> rules = ChapterScanner.loadRules(Preferences.userNodeForPackage(TxtReader.class));
+            long start = System.nanoTime();
+            BlockCompressor.convert(file, output, rules);
+            long original;
+            try (BookStorage source = BookStorage.open(file)) {
+                original = source.size();
+            }
+            long compressed = Files.size(output);
+            System.out.println(String.format("已生成 %s, %d 字节 -> %d 字节 (%.1f%%), 用时 %d 毫秒", output, original, compressed,
+                compressed * 100.0 / Math.max(1, original), (System.nanoTime() - start) / 1000000));
+        } else {
+            throw new IllegalArgumentException("未知的参数: " + args[0]);
+        }
+    }
+    
+    // 支持k、m、g后缀
+    private static long parseSize(String text) {
+        String value = text.trim().toLowerCase(Locale.ROOT);
+        long unit = 1;
+        if (value.endsWith("k")) unit = 1024;
+        if (value.endsWith("m")) unit = 1024 * 1024;
+        if (value.endsWith("g")) unit = 1024 * 1024 * 1024;
+        if (unit > 1) value = value.substring(0, value.length() - 1);
+        return Long.parseLong(value) * unit;
+    }
+    
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].startsWith("--")) {
+            try {
+                runCommandLine(args);
+            } catch (Exception e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            }
+            System.exit(0);
+        }
+        
         // 使用默认外观，不设置特定外观
         try {
             // 尝试设置系统外观
@@ -912,9 +9372,19 @@ public class TxtReader extends JFrame {
             }
         }
         
+        final PhaseTimer startup = new PhaseTimer();
         SwingUtilities.invokeLater(new Runnable() {
             public void run() {
-                new TxtReader().setVisible(true);
+                startup.mark("进入事件线程");
+                final TxtReader reader = new TxtReader();
+                startup.mark("创建窗口");
+                reader.setVisible(true);
+                startup.mark("显示窗口");
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        reader.restoreSession(startup);
+                    }
+                });
             }
         });
     }